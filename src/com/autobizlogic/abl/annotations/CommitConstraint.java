@@ -7,6 +7,8 @@ import java.lang.annotation.Target;
 
 /**
  * Indicates that the method is a constraint that should be executed only once, at commit time.
+ * <p/>
+ * As for Constraint, the method can be void, or return a ConstraintFailure or a boolean.
  */
 
 @Retention(RetentionPolicy.RUNTIME)
@@ -28,8 +30,8 @@ public @interface CommitConstraint {
 	String problemAttributes() default "";
 	
 	/**
-	 * If the constraint is declarative, and it fails, this is the message that will
-	 * be used in the exception.
+	 * If the constraint is declarative, or its method returns a boolean, and it fails, 
+	 * this is the message that will be used in the exception.
 	 * The message will be formatted with all instances of {X} being replaced by the
 	 * toString value of the X attribute for the bean.
 	 */
@@ -4,6 +4,14 @@ import java.lang.annotation.*;
 
 /**
  * Indicates that the method is a business logic constraint.
+ * <p/>
+ * The method can be declared as:<ul>
+ * <li>void: it signals a failure by calling ConstraintFailure.failConstraint</li>
+ * <li>ConstraintFailure: it returns a ConstraintFailure to signal a failure, and null otherwise. 
+ * The returned object is not modified, so the same instance can be returned every time.</li>
+ * <li>boolean: it returns false to signal a failure, which is then described by errorMessage</li>
+ * </ul>
+ * The last two are cheaper when constraints fail often, since no exception is thrown.
  */
 
 @Retention(RetentionPolicy.RUNTIME)
@@ -47,8 +55,8 @@ public @interface Constraint {
 	String problemAttributes() default "";
 	
 	/**
-	 * If the constraint is declarative, and it fails, this is the message that will
-	 * be used in the exception.
+	 * If the constraint is declarative, or its method returns a boolean, and it fails, 
+	 * this is the message that will be used in the exception.
 	 * The message will be formatted with all instances of {xxx} being replaced by the
 	 * toString value of the xxx attribute for the bean.
 	 */
@@ -16,7 +16,12 @@ public @interface Formula {
 
 	/**
 	 * Whether invocation of the formula should be delayed until its value
-	 * is actually read.
+	 * is actually read by another rule. This only applies to formulas that are not
+	 * persistent, and that are not used by the logic of another entity.
+	 * Applications should call LogicTransactionContext.computeLazyFormulas
+	 * before reading such a value from an object modified in the current transaction.
+	 * A value that is never read is never computed, unless the computeLazyFormulasAtCommit
+	 * configuration property is true.
 	 */
 	boolean lazy() default false;
 	
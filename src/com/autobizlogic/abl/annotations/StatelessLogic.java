@@ -0,0 +1,29 @@
+package com.autobizlogic.abl.annotations;
+
+import java.lang.annotation.*;
+
+/**
+ * Indicates that the logic class is stateless: a single instance of the class is used for all
+ * the objects, instead of a new instance for every object. The class must therefore not have
+ * any CurrentBean, OldBean or LogicContextObject variables. The logic methods can instead
+ * get the current bean, the old bean and the logic context from StatelessLogicState.
+ * <p/>
+ * Because the dependencies of a formula are found by looking for the use of the CurrentBean
+ * variable, formulas in a stateless logic class should be defined with an expression.
+ */
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE})
+public @interface StatelessLogic {
+	// Empty implementation
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
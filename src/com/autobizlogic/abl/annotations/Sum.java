@@ -31,10 +31,19 @@ public @interface Sum {
 	String value();
 
 	/**
-	 * Whether the initialization of the sum (for non-persistent attributes)
-	 * should be done in memory (as opposed to the standard SQL query).
+	 * Whether the value of the sum (for non-persistent attributes)
+	 * should be computed in memory (as opposed to the standard SQL query).
+	 * If true, the value is recomputed from the loaded collection every time a child is 
+	 * inserted, updated or deleted, which is efficient for small collections.
 	 */
 	boolean inMemory() default false;
+
+	/**
+	 * Whether the value should be recomputed with a single SQL query every time a child is
+	 * inserted, updated or deleted, rather than adjusted. This is typically useful for
+	 * non-persistent attributes over very large collections.
+	 */
+	boolean sql() default false;
 }
 
 /*
@@ -27,8 +27,49 @@ public class LogicConfiguration {
 	public enum PropertyName {
 		
 		AGGREGRATE_DEFAULT_OVERRIDE("aggregateDefaultOverride", null),
+		
+		/**
+		 * If true, logic events and transaction summaries are delivered to their listeners on a separate
+		 * thread. See AsyncEventDispatcher.
+		 */
+		ASYNC_EVENT_DELIVERY("asyncEventDelivery", "false"),
+		
+		/**
+		 * The maximum number of events waiting to be delivered asynchronously.
+		 */
+		ASYNC_EVENT_BUFFER_SIZE("asyncEventBufferSize", "1024"),
+		
+		/**
+		 * What to do when the asynchronous delivery buffer is full: block, drop or sample.
+		 */
+		ASYNC_EVENT_OVERFLOW_POLICY("asyncEventOverflowPolicy", "block"),
 		BUSINESS_LOGIC_FINDER("businessLogicFinder", "com.autobizlogic.abl.logic.SystemBusinessLogicFinder"),
 		BUSINESS_LOGIC_FACTORY("businessLogicFactory", "com.autobizlogic.abl.logic.BusinessLogicFactoryImpl"),
+		
+		/**
+		 * If set, a change to a parent attribute is cascaded to children that have not been loaded
+		 * by reading them in chunks of this size, and evicting them from the session once processed.
+		 * The session is flushed after each chunk whose children were modified. See CascadeParentReferences.
+		 */
+		CASCADE_BATCH_SIZE("cascadeBatchSize", null),
+		
+		/**
+		 * If true, sum and count adjustments are accumulated by parent, and each parent is adjusted
+		 * only once per iteration over the LogicRunners. See AggregateAdjustmentCoalescer.
+		 */
+		COALESCE_AGGREGATE_ADJUSTMENTS("coalesceAggregateAdjustments", "false"),
+
+		/**
+		 * If true, the expressions of formulas and constraints are compiled into Java classes when possible,
+		 * rather than interpreted by Jexl. This is off by default. See ExpressionCompiler.
+		 */
+		COMPILE_EXPRESSIONS("compileExpressions", "false"),
+		
+		/**
+		 * If true, the lazy formulas that are still out of date at the end of the logic phase are computed
+		 * then, before the commit actions and constraints. This is off by default. See LazyFormulaIndex.
+		 */
+		COMPUTE_LAZY_FORMULAS_AT_COMMIT("computeLazyFormulasAtCommit", "false"),
 		CONSOLE_SERVER_URL("consoleServerUrl", null),
 		CURRENT_SESSION_CONTEXT_CLASS("currentSessionContextClass", null),
 		
@@ -45,8 +86,20 @@ public class LogicConfiguration {
 		LOGIC_CLASS_MANAGER("logicClassManager", null),
 		LOGIC_CLASS_SUFFIX("logicClassSuffix", "Logic"),
 		LOGIC_PACKAGE_NAMES("logicPackageNames", null),
+		
+		/**
+		 * If true, min/max rules keep the values of the children of each parent they have had
+		 * to recompute, for the duration of the transaction. See MinMaxValueIndex.
+		 */
+		MIN_MAX_VALUE_INDEX("minMaxValueIndex", "false"),
 		PARALLEL_PACKAGE_NAME("parallelPackageName", "businesslogic"),
 		PERSISTENT_PACKAGE_NAMES("persistentPackageNames", null),
+		
+		/**
+		 * If true, the parents referenced by the LogicRunners about to be executed are loaded
+		 * with one query per parent entity, rather than one query per parent. See ParentPrefetcher.
+		 */
+		PREFETCH_PARENTS("prefetchParents", "false"),
 		SESSION_CONTEXT_CLASS("sessionContextClass", null),
 		WORK_MANAGER_NAME("workManagerName", null);
 				
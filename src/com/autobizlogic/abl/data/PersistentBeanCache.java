@@ -2,15 +2,19 @@ package com.autobizlogic.abl.data;
 
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 /**
- * A container for PersistentBean objects, stored by entity name and primary key.
+ * A container for PersistentBean objects, stored by entity name and primary key,
+ * and optionally by the identity of the entity (POJO or Map) that they represent.
  */
 public class PersistentBeanCache {
 	private Map<String, Map<Serializable, PersistentBean>> cache = 
 			new HashMap<String, Map<Serializable, PersistentBean>>();
 	
+	private Map<Object, PersistentBean> beansByEntity = new IdentityHashMap<Object, PersistentBean>();
+	
 	/**
 	 * Add the given bean to this cache.
 	 */
@@ -33,6 +37,29 @@ public class PersistentBeanCache {
 			return null;
 		return entityCache.get(pk);
 	}
+	
+	/**
+	 * Add the given bean to this cache, for the given entity. The entity is compared by identity.
+	 * @param entity The POJO or Map represented by the bean, or a proxy for it
+	 */
+	public void addBeanForEntity(Object entity, PersistentBean bean) {
+		beansByEntity.put(entity, bean);
+	}
+	
+	/**
+	 * Get the bean that was added for the given entity.
+	 * @return Null if there is no bean for this entity in this cache.
+	 */
+	public PersistentBean getBeanForEntity(Object entity) {
+		return beansByEntity.get(entity);
+	}
+	
+	/**
+	 * Remove the bean for the given entity, e.g. because the entity has been evicted from the session.
+	 */
+	public void removeBeanForEntity(Object entity) {
+		beansByEntity.remove(entity);
+	}
 }
 
 /*
@@ -1,6 +1,7 @@
 package com.autobizlogic.abl.data.hibernate;
 
 import java.io.Serializable;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -19,6 +20,7 @@ import com.autobizlogic.abl.metadata.MetaEntity;
 import com.autobizlogic.abl.metadata.MetaModelFactory;
 import com.autobizlogic.abl.metadata.MetaProperty;
 import com.autobizlogic.abl.metadata.MetaRole;
+import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
 import com.autobizlogic.abl.util.BeanMap;
 import com.autobizlogic.abl.util.NodalPathUtil;
 import com.autobizlogic.abl.util.ObjectUtil;
@@ -32,6 +34,12 @@ public class HibPersistentBean implements PersistentBean {
 	
 	protected BeanMap beanMap;
 	
+	/**
+	 * If the bean is a POJO, the generated accessor used to read and write its properties.
+	 * This is null if no accessor could be generated, in which case beanMap is used.
+	 */
+	protected PropertyAccessor accessor;
+	
 	protected Map<String, Object> map;
 	
 	protected Serializable pk;
@@ -40,6 +48,17 @@ public class HibPersistentBean implements PersistentBean {
 	
 	protected Session session;
 	
+	/**
+	 * The number of times a property has been given a different value through put.
+	 */
+	private int modificationCount = 0;
+	
+	/**
+	 * For each property ordinal (see HibMetaEntity.getPropertyIndex), the value of modificationCount
+	 * when the property was last given a different value through put. Null until that happens.
+	 */
+	private int[] propertyModifications;
+	
 	/**
 	 * Create from a persistent bean, either Pojo or Map.
 	 * @param bean A Hibernate persistent bean (can be a proxy)
@@ -67,6 +86,12 @@ public class HibPersistentBean implements PersistentBean {
 		this.metaEntity = MetaModelFactory.getHibernateMetaModel(persister.getFactory())
 				.getMetaEntity(persister.getEntityName());
 		this.session = session;
+		
+		if (this.bean != null && metaEntity instanceof HibMetaEntity) {
+			PropertyAccessor propAccessor = PropertyAccessorFactory.getAccessor((HibMetaEntity)metaEntity);
+			if (propAccessor != null && propAccessor.canAccess(this.bean))
+				accessor = propAccessor;
+		}
 	}
 	
 	/**
@@ -233,6 +258,11 @@ public class HibPersistentBean implements PersistentBean {
 
 	@Override
 	public Object get(Object key) {
+		if (accessor != null) {
+			int idx = ((HibMetaEntity)metaEntity).getPropertyIndex((String)key);
+			if (idx != -1)
+				return accessor.get(bean, idx);
+		}
 		if (beanMap != null)
 			return beanMap.get(key);
 		
@@ -257,10 +287,60 @@ public class HibPersistentBean implements PersistentBean {
 
 	@Override
 	public Object put(String key, Object value) {
-		if (beanMap != null)
-			return beanMap.put(key, value);
+		int idx = -1;
+		if (metaEntity instanceof HibMetaEntity)
+			idx = ((HibMetaEntity)metaEntity).getPropertyIndex(key);
+		
+		Object oldValue;
+		if (accessor != null && idx != -1) {
+			oldValue = accessor.get(bean, idx);
+			accessor.set(bean, idx, value);
+		}
+		else if (beanMap != null)
+			oldValue = beanMap.put(key, value);
+		else
+			oldValue = map.put(key, value);
 		
-		return map.put(key, value);
+		if (idx != -1 && ! ObjectUtil.objectsAreEqual(oldValue, value)) {
+			if (propertyModifications == null)
+				propertyModifications = new int[((HibMetaEntity)metaEntity).getPropertyNames().length];
+			modificationCount++;
+			propertyModifications[idx] = modificationCount;
+		}
+		return oldValue;
+	}
+	
+	/**
+	 * Get the number of times a property has been given a different value through put. 
+	 * This can be passed later to isModifiedSince and isAnyModifiedSince. Since instances are
+	 * shared for the duration of a transaction, this is how each user can tell which changes it has not seen.
+	 */
+	public int getModificationCount() {
+		return modificationCount;
+	}
+	
+	/**
+	 * Whether the given property has been given a different value through put since
+	 * getModificationCount returned the given count.
+	 * @param idx The ordinal of the property
+	 */
+	public boolean isModifiedSince(int idx, int count) {
+		return propertyModifications != null && propertyModifications[idx] > count;
+	}
+	
+	/**
+	 * Whether any of the given properties has been given a different value through put since
+	 * getModificationCount returned the given count.
+	 * @param ordinals The ordinals of the properties
+	 */
+	public boolean isAnyModifiedSince(BitSet ordinals, int count) {
+		if (propertyModifications == null || count >= modificationCount)
+			return false;
+		for (int idx = ordinals.nextSetBit(0); idx >= 0; idx = ordinals.nextSetBit(idx + 1)) {
+			if (propertyModifications[idx] > count)
+				return true;
+		}
+		return false;
 	}
 
 	@Override
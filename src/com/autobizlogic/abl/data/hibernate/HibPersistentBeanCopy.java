@@ -1,10 +1,11 @@
 package com.autobizlogic.abl.data.hibernate;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -24,6 +25,7 @@ import com.autobizlogic.abl.metadata.MetaEntity;
 import com.autobizlogic.abl.metadata.MetaModelFactory;
 import com.autobizlogic.abl.metadata.MetaProperty;
 import com.autobizlogic.abl.metadata.MetaRole;
+import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
 import com.autobizlogic.abl.util.BeanMap;
 
 /**
@@ -44,6 +46,11 @@ public class HibPersistentBeanCopy implements PersistentBean {
 	@SuppressWarnings("rawtypes")
 	private Map beanMap;
 	
+	/**
+	 * If the bean is a POJO, the generated accessor used to read its properties, if there is one.
+	 */
+	private PropertyAccessor accessor;
+	
 	/**
 	 * We keep the map around so that requests for collections can be forwarded to it.
 	 */
@@ -57,12 +64,25 @@ public class HibPersistentBeanCopy implements PersistentBean {
 	/**
 	 * The metadata for this object.
 	 */
-	private MetaEntity metaEntity;
+	private HibMetaEntity metaEntity;
 
-	/*
-	 * The copied values.
+	/**
+	 * The copied values, indexed by property ordinal (see HibMetaEntity.getPropertyIndex).
+	 * Only the slots for attributes and single-valued roles are meaningful.
+	 * When the copy is created from a Hibernate state array, this is that array, which does
+	 * not include the identifier properties if Hibernate does not list them.
+	 */
+	private Object[] values;
+	
+	/**
+	 * True if values is a state array we were given, and must therefore be copied before we change it.
+	 */
+	private boolean valuesShared;
+	
+	/**
+	 * True if this copy has no link to the entity: see createDetachedCopy.
 	 */
-	private Map<String, Object> values = new HashMap<String, Object>();
+	private boolean detached;
 
 
 	/**
@@ -75,7 +95,7 @@ public class HibPersistentBeanCopy implements PersistentBean {
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	protected HibPersistentBeanCopy(Object bean, Serializable pk, EntityPersister persister) {
 		this.pk = pk;
-		this.metaEntity = MetaModelFactory.getHibernateMetaModel(persister.getFactory())
+		this.metaEntity = (HibMetaEntity)MetaModelFactory.getHibernateMetaModel(persister.getFactory())
 				.getMetaEntity(persister.getEntityName());
 		if (metaEntity == null)
 			throw new RuntimeException("Could not find metadata from entity " + persister.getEntityName());
@@ -85,6 +105,7 @@ public class HibPersistentBeanCopy implements PersistentBean {
 			this.bean = pb.bean;
 			this.map = pb.map;
 			this.beanMap = pb.beanMap;
+			this.accessor = pb.accessor;
 		}
 		else if (bean instanceof HibPersistentBeanCopy) {
 			throw new RuntimeException("It makes no sense to make a copy of a HibPersistentBeanCopy");
@@ -97,27 +118,22 @@ public class HibPersistentBeanCopy implements PersistentBean {
 			beanMap = new BeanMap(bean);
 			this.bean = bean;
 			map = beanMap;
+			setAccessor();
 		}
 		
 		if (map == null)
 			throw new RuntimeException("No map defined for HibPersistentBeanCopy");
 		
-		// Copy all attributes
-		for (MetaAttribute metaAttrib : metaEntity.getMetaAttributes()) {
-			Object value = map.get(metaAttrib.getName());
-			values.put(metaAttrib.getName(), value);
-		}
-
-		// Copy single-valued relationships
-		for (MetaRole metaRole : metaEntity.getRolesFromChildToParents()) {
-			String roleName = metaRole.getRoleName();
-			Object value = map.get(roleName);
-			values.put(roleName, value);
-		}
+		// Copy all attributes and single-valued relationships
+		String[] propNames = metaEntity.getPropertyNames();
+		values = new Object[propNames.length];
+		for (int idx : metaEntity.getValuePropertyIndexes())
+			values[idx] = getFromEntity(propNames[idx], idx);
 	}
 		
 	/**
-	 * Create from a state array.
+	 * Create from a state array. The array is used as is, rather than copied, unless some of its values
+	 * have to be replaced, so it must not be modified after this.
 	 * @param The state (typically from a Hibernate event)
 	 * @param pk The primary key
 	 * @param persister The persister for the object
@@ -129,31 +145,28 @@ public class HibPersistentBeanCopy implements PersistentBean {
 		else {
 			bean = entity;
 			beanMap = new BeanMap(entity);
+			map = beanMap;
 		}
 		this.pk = pk;
-		this.metaEntity = MetaModelFactory.getHibernateMetaModel(persister.getFactory()).
+		this.metaEntity = (HibMetaEntity)MetaModelFactory.getHibernateMetaModel(persister.getFactory()).
 				getMetaEntity(persister.getEntityName());
+		if (bean != null)
+			setAccessor();
+		
+		// The state is indexed the same way as our values, so we use it directly
+		values = state;
+		valuesShared = true;
 		
 		ClassMetadata metadata = persister.getClassMetadata();
 		String[] propNames = metadata.getPropertyNames();
 		for (int i = 0; i < propNames.length; i++) {
 			String propName = propNames[i];
-			if (metaEntity.getMetaProperty(propName).isCollection())
-				continue;
-			
 			MetaRole metaRole = metaEntity.getMetaRole(propName);
-			if (metaRole == null) { // Not a relationship -- must be an attribute
-				if (state[i] != null)
-					values.put(propName, state[i]);
-			}
-			else if ( ! metaRole.isCollection()) {
+			if (metaRole != null && ! metaRole.isCollection()) {
 				// In the case of old values, when we are handed the state, it contains the pk for associations,
 				// and not (as you'd expect) the object itself. So we check whether the value is a real object,
 				// and if it's not, we grab it from the object.
-				if (state[i] == null || session.contains(state[i])) {
-					values.put(propName, state[i]);
-				}
-				else {
+				if (state[i] != null && ! session.contains(state[i])) {
 					// We have a pk instead of a proxy -- ask Hibernate to create a proxy for it.
 					String className = metadata.getPropertyType(propName).getReturnedClass().getName();
 					PersistenceContext persContext = HibernateSessionUtil.getPersistenceContextForSession(session);
@@ -168,12 +181,39 @@ public class HibPersistentBeanCopy implements PersistentBean {
 						persContext.getBatchFetchQueue().addBatchLoadableEntityKey(entityKey);
 						persContext.addProxy(entityKey, proxy);
 					}
-					values.put(propName, proxy);
+					setValue(i, proxy);
 				}				
 			}
 		}
 	}
 
+	/**
+	 * Create a detached copy of the given copy.
+	 */
+	private HibPersistentBeanCopy(HibPersistentBeanCopy source) {
+		this.pk = source.getPk();
+		this.metaEntity = source.metaEntity;
+		this.detached = true;
+		String[] propNames = metaEntity.getPropertyNames();
+		values = new Object[source.values.length];
+		for (int idx : metaEntity.getValuePropertyIndexes()) {
+			if (idx < values.length && metaEntity.getMetaRole(propNames[idx]) == null)
+				values[idx] = source.values[idx];
+		}
+	}
+	
+	/**
+	 * Create a copy of this object that has no reference to the entity, or to any other persistent object,
+	 * so that it can be used after the session is gone, e.g. from another thread. Only the attributes are
+	 * available: relationships, both single-valued and collections, have a null value, and the underlying
+	 * bean or map cannot be retrieved.
+	 */
+	/* package */ HibPersistentBeanCopy createDetachedCopy() {
+		if (detached)
+			return this;
+		return new HibPersistentBeanCopy(this);
+	}
+
 	/**
 	 * Get the meta entity for this entity.
 	 */
@@ -304,17 +344,22 @@ public class HibPersistentBeanCopy implements PersistentBean {
 
 	@Override
 	public boolean containsKey(Object key) {
-		return values.containsKey(key);
+		if ( ! (key instanceof String))
+			return false;
+		int idx = metaEntity.getPropertyIndex((String)key);
+		if (idx == -1 || idx >= values.length)
+			return false;
+		return Arrays.binarySearch(metaEntity.getValuePropertyIndexes(), idx) >= 0;
 	}
 
 	@Override
 	public boolean containsValue(Object value) {
-		return values.containsValue(value);
+		return getValueMap().containsValue(value);
 	}
 
 	@Override
 	public Set<Map.Entry<String, Object>> entrySet() {
-		return values.entrySet();
+		return getValueMap().entrySet();
 	}
 
 	/**
@@ -326,29 +371,34 @@ public class HibPersistentBeanCopy implements PersistentBean {
 		String name = (String)key;
 		MetaProperty metaProperty = metaEntity.getMetaProperty(name);
 		if (metaProperty == null)
-			return beanMap.get(name);
+			return detached ? null : beanMap.get(name);
 		
 		// Defer collections to the original object
 		if (metaProperty.isCollection()) {
+			if (detached)
+				return null;
 			if (metaEntity.isPojo())
-				return beanMap.get(name);
+				return getFromEntity(name, metaEntity.getPropertyIndex(name));
 			if (metaEntity.isMap())
 				return map.get(name);
 			throw new RuntimeException("This should never happen: HibPersistentBean is neither POJO nor Map?");
 		}
 		
 		// Otherwise return the value we hold
-		return values.get(key);
+		int idx = metaEntity.getPropertyIndex(name);
+		if (idx == -1 || idx >= values.length)
+			return null;
+		return values[idx];
 	}
 
 	@Override
 	public boolean isEmpty() {
-		return values.isEmpty();
+		return size() == 0;
 	}
 
 	@Override
 	public Set<String> keySet() {
-		return values.keySet();
+		return getValueMap().keySet();
 	}
 
 	@Override
@@ -368,22 +418,76 @@ public class HibPersistentBeanCopy implements PersistentBean {
 
 	@Override
 	public int size() {
-		return values.size();
+		return getValueMap().size();
 	}
 
 	@Override
 	public Collection<Object> values() {
-		return values.values();
+		return getValueMap().values();
 	}
 
 	///////////////////////////////////////////////////////////////////////////
 	// Internal methods
 	
+	/**
+	 * Use the generated accessor for the bean's class, if there is one.
+	 */
+	private void setAccessor() {
+		PropertyAccessor propAccessor = PropertyAccessorFactory.getAccessor(metaEntity);
+		if (propAccessor != null && propAccessor.canAccess(bean))
+			accessor = propAccessor;
+	}
+	
+	/**
+	 * Read the given property from the original object (bean or map).
+	 * @param name The name of the property
+	 * @param idx The ordinal of the property, or -1 if it does not have one
+	 */
+	private Object getFromEntity(String name, int idx) {
+		if (accessor != null && idx != -1)
+			return accessor.get(bean, idx);
+		return map.get(name);
+	}
+	
+	/**
+	 * Get the copied values as a map. This is only used for the less common Map methods,
+	 * so the map is not kept.
+	 */
+	private Map<String, Object> getValueMap() {
+		String[] propNames = metaEntity.getPropertyNames();
+		Map<String, Object> valueMap = new LinkedHashMap<String, Object>();
+		for (int idx : metaEntity.getValuePropertyIndexes()) {
+			if (idx < values.length)
+				valueMap.put(propNames[idx], values[idx]);
+		}
+		return valueMap;
+	}
+	
+	/**
+	 * Store the given value under the given ordinal, copying the values first if we do not own them.
+	 */
+	private void setValue(int idx, Object value) {
+		if (valuesShared) {
+			values = values.clone();
+			valuesShared = false;
+		}
+		values[idx] = value;
+	}
+	
 	/**
 	 * Store the given value under the given name, no questions asked.
 	 */
 	protected void setValue(String name, Object value) {
-		values.put(name, value);
+		int idx = metaEntity.getPropertyIndex(name);
+		if (idx == -1)
+			throw new RuntimeException("No such property: " + metaEntity.getEntityName() + "." + name);
+		if (idx >= values.length) {
+			Object[] newValues = new Object[metaEntity.getPropertyNames().length];
+			System.arraycopy(values, 0, newValues, 0, values.length);
+			values = newValues;
+			valuesShared = false;
+		}
+		setValue(idx, value);
 	}
 	
 	///////////////////////////////////////////////////////////////////////////
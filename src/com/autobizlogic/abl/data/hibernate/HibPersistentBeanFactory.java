@@ -10,6 +10,7 @@ import org.hibernate.impl.SessionFactoryImpl;
 import org.hibernate.persister.entity.EntityPersister;
 
 import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.data.PersistentBeanCache;
 import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
 import com.autobizlogic.abl.util.ClassNameUtil;
 
@@ -20,15 +21,47 @@ public class HibPersistentBeanFactory {
 
 	private Session session;
 	
-	private HibPersistentBeanFactory(Session session) {
+	/**
+	 * If not null, the PersistentBeans created by this factory, which are reused
+	 * whenever the same entity is requested again.
+	 */
+	private PersistentBeanCache beanCache;
+	
+	private HibPersistentBeanFactory(Session session, PersistentBeanCache beanCache) {
 		this.session = session;
+		this.beanCache = beanCache;
 	}
 	
 	/**
 	 * Get an instance for the given session.
 	 */
 	public static HibPersistentBeanFactory getInstance(Session session) {
-		return new HibPersistentBeanFactory(session);
+		return new HibPersistentBeanFactory(session, null);
+	}
+	
+	/**
+	 * Get an instance for the given session that returns the same PersistentBean every time it is asked 
+	 * for the same entity. Such an instance should only be used for the duration of a transaction,
+	 * see LogicTransactionContext.getPersistentBeanFactory.
+	 */
+	public static HibPersistentBeanFactory getCachingInstance(Session session) {
+		return new HibPersistentBeanFactory(session, new PersistentBeanCache());
+	}
+	
+	/**
+	 * Get the session for which this factory creates PersistentBeans.
+	 */
+	public Session getSession() {
+		return session;
+	}
+	
+	/**
+	 * Forget the PersistentBean for the given entity, if any, e.g. because the entity has been
+	 * evicted from the session.
+	 */
+	public void removeCachedBean(Object entity) {
+		if (beanCache != null)
+			beanCache.removeBeanForEntity(entity);
 	}
 	
 	/**
@@ -39,6 +72,11 @@ public class HibPersistentBeanFactory {
 			return null;
 		if (bean instanceof PersistentBean)
 			throw new RuntimeException("Cannot create a PersistentBean from a PersistentBean: " + bean);
+		if (beanCache != null) {
+			PersistentBean cachedBean = beanCache.getBeanForEntity(bean);
+			if (cachedBean != null && cachedBean.getEntityName().equals(ep.getEntityName()))
+				return cachedBean;
+		}
 		if ( ! (bean instanceof Map)) {
 			Class<?> epCls = ep.getMappedClass(EntityMode.POJO);
 			Class<?> beanCls = bean.getClass();
@@ -53,7 +91,10 @@ public class HibPersistentBeanFactory {
 		catch(Exception ex) {
 			throw new RuntimeException(ex);
 		}
-		return new HibPersistentBean(bean, pk, ep, session);
+		PersistentBean persBean = new HibPersistentBean(bean, pk, ep, session);
+		if (beanCache != null)
+			beanCache.addBeanForEntity(bean, persBean);
+		return persBean;
 	}
 	
 	/**
@@ -76,13 +117,17 @@ public class HibPersistentBeanFactory {
 	 * @return The newly minted PersistentBean
 	 */
 	public PersistentBean createPersistentBeanFromEntity(Object bean, String entityName) {
+		if (beanCache != null) {
+			PersistentBean cachedBean = beanCache.getBeanForEntity(bean);
+			if (cachedBean != null && (entityName == null || entityName.equals(cachedBean.getEntityName())))
+				return cachedBean;
+		}
 		if (bean instanceof Map && entityName == null)
 			throw new RuntimeException("Cannot create a PersistentBean from a Map without an entity name");
 		if ( !(bean instanceof Map) && entityName == null)
 			entityName = ClassNameUtil.getEntityNameForBean(bean);
 		EntityPersister ep = ((SessionFactoryImpl)session.getSessionFactory()).getEntityPersister(entityName);
-		return HibPersistentBeanFactory.getInstance(session).
-				createPersistentBeanFromObject(bean, ep);
+		return createPersistentBeanFromObject(bean, ep);
 	}
 	
 	/**
@@ -93,6 +138,11 @@ public class HibPersistentBeanFactory {
 	 * @return A new PersistentBean
 	 */
 	public PersistentBean createPersistentBeanFromEntity(Object entity) {
+		if (beanCache != null) {
+			PersistentBean cachedBean = beanCache.getBeanForEntity(entity);
+			if (cachedBean != null)
+				return cachedBean;
+		}
 		String entityName = session.getEntityName(entity);
 		return createPersistentBeanFromEntity(entity, entityName);
 	}
@@ -141,6 +191,15 @@ public class HibPersistentBeanFactory {
 		HibMetaEntity metaEntity = (HibMetaEntity)pbean.getMetaEntity();
 		return createPersistentBeanCopyFromEntity(pbean, metaEntity.getEntityPersister());
 	}
+	
+	/**
+	 * Make a copy of a PersistentBean that does not refer to the entity or to any other persistent object,
+	 * and can therefore be used once the session is gone. Only its attributes are available.
+	 */
+	public static PersistentBean detachPersistentBean(PersistentBean pbean) {
+		HibPersistentBeanCopy copy = (HibPersistentBeanCopy)copyPersistentBean(pbean);
+		return copy.createDetachedCopy();
+	}
 }
 
 /*
@@ -0,0 +1,57 @@
+package com.autobizlogic.abl.data.hibernate;
+
+/**
+ * Reads and writes the properties of the instances of one persistent class, by property ordinal
+ * (see HibMetaEntity.getPropertyIndex). The subclasses are generated by PropertyAccessorFactory,
+ * and call the getters and setters directly.
+ * <p/>
+ * This class must be public, since the generated classes are defined in their own class loader.
+ */
+public abstract class PropertyAccessor {
+
+	private Class<?> entityClass;
+
+	/**
+	 * Internal method, called by PropertyAccessorFactory once the instance has been created.
+	 */
+	protected void setEntityClass(Class<?> cls) {
+		this.entityClass = cls;
+	}
+
+	/**
+	 * Whether this accessor can be used for the given bean.
+	 */
+	public boolean canAccess(Object bean) {
+		return entityClass.isInstance(bean);
+	}
+
+	/**
+	 * Get the value of a property.
+	 * @param bean An instance of the persistent class
+	 * @param index The ordinal of the property
+	 */
+	public abstract Object get(Object bean, int index);
+
+	/**
+	 * Set the value of a property.
+	 * @param bean An instance of the persistent class
+	 * @param index The ordinal of the property
+	 * @param value The new value
+	 */
+	public abstract void set(Object bean, int index, Object value);
+
+	@Override
+	public String toString() {
+		return "Property accessor for " + entityClass.getName();
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -0,0 +1,220 @@
+package com.autobizlogic.abl.data.hibernate;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+
+import com.autobizlogic.abl.logic.analysis.ClassLoaderManager;
+import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
+import com.autobizlogic.abl.util.GeneratedClassLoader;
+import com.autobizlogic.abl.util.LogicLogger;
+import com.autobizlogic.abl.util.LogicLogger.LoggerName;
+
+/**
+ * Generates a PropertyAccessor for each POJO entity, so that HibPersistentBean and HibPersistentBeanCopy
+ * can read and write properties without going through BeanMap and BeanUtil.
+ * <p/>
+ * The generated class has a switch on the property ordinal, which calls the public getter or setter
+ * for that property. Properties without a public getter or setter (e.g. properties accessed through
+ * private fields) are handled by BeanUtil, as before.
+ */
+public class PropertyAccessorFactory {
+
+	/**
+	 * The accessors by entity. Entities for which no accessor can be generated have an entry
+	 * with a null accessor, so that we do not try again.
+	 */
+	private static final Map<HibMetaEntity, AccessorEntry> accessors = new ConcurrentHashMap<HibMetaEntity, AccessorEntry>();
+
+	private static int classCounter = 0;
+
+	private static final LogicLogger _logger = LogicLogger.getLogger(LoggerName.PERSISTENCE);
+
+	/**
+	 * Get the accessor for the given entity, generating it if necessary.
+	 * @return Null if the entity is not a POJO, or if no accessor can be generated for it.
+	 */
+	public static PropertyAccessor getAccessor(HibMetaEntity metaEntity) {
+		AccessorEntry entry = accessors.get(metaEntity);
+		if (entry == null) {
+			synchronized(accessors) {
+				entry = accessors.get(metaEntity);
+				if (entry == null) {
+					entry = new AccessorEntry(generateAccessor(metaEntity));
+					accessors.put(metaEntity, entry);
+				}
+			}
+		}
+		return entry.accessor;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The result of the generation of an accessor for an entity.
+	 */
+	private static class AccessorEntry {
+		
+		/**
+		 * Null if no accessor could be generated.
+		 */
+		private final PropertyAccessor accessor;
+		
+		private AccessorEntry(PropertyAccessor accessor) {
+			this.accessor = accessor;
+		}
+	}
+
+	private static PropertyAccessor generateAccessor(HibMetaEntity metaEntity) {
+		if ( ! metaEntity.isPojo())
+			return null;
+		Class<?> entityClass = metaEntity.getEntityClass();
+		if (entityClass == null || ! Modifier.isPublic(entityClass.getModifiers()))
+			return null;
+
+		String[] propNames = metaEntity.getPropertyNames();
+		StringBuffer getCode = new StringBuffer();
+		StringBuffer setCode = new StringBuffer();
+		getCode.append("public Object get(Object bean, int index) { ");
+		getCode.append(entityClass.getName() + " entity = (" + entityClass.getName() + ")bean; ");
+		getCode.append("switch (index) { ");
+		setCode.append("public void set(Object bean, int index, Object value) { ");
+		setCode.append(entityClass.getName() + " entity = (" + entityClass.getName() + ")bean; ");
+		setCode.append("switch (index) { ");
+		for (int i = 0; i < propNames.length; i++) {
+			String propName = propNames[i];
+			Method getter = findGetter(entityClass, propName);
+			getCode.append("case " + i + ": return ");
+			if (getter == null)
+				getCode.append("com.autobizlogic.abl.util.BeanUtil.getBeanProperty(bean, \"" + propName + "\"); ");
+			else
+				getCode.append(box("entity." + getter.getName() + "()", getter.getReturnType()) + "; ");
+
+			Method setter = null;
+			if (getter != null)
+				setter = findSetter(entityClass, propName, getter.getReturnType());
+			setCode.append("case " + i + ": ");
+			if (setter == null)
+				setCode.append("com.autobizlogic.abl.util.BeanUtil.setBeanProperty(bean, \"" + propName + "\", value); ");
+			else
+				setCode.append("entity." + setter.getName() + "(" + unbox("value", getter.getReturnType()) + "); ");
+			setCode.append("return; ");
+		}
+		getCode.append("} throw new IndexOutOfBoundsException(\"No property with index \" + index); }");
+		setCode.append("} throw new IndexOutOfBoundsException(\"No property with index \" + index); }");
+
+		try {
+			synchronized(PropertyAccessorFactory.class) {
+				classCounter++;
+				String className = "com.autobizlogic.abl.data.hibernate.generated.PropertyAccessor" + classCounter + "_" +
+						entityClass.getSimpleName();
+				ClassLoaderManager.getInstance().addClassLoader(entityClass.getClassLoader());
+				ClassPool classPool = ClassLoaderManager.getInstance().getClassPool();
+				CtClass ctClass = classPool.makeClass(className);
+				ctClass.setSuperclass(classPool.get(PropertyAccessor.class.getName()));
+				ctClass.addConstructor(CtNewConstructor.defaultConstructor(ctClass));
+				ctClass.addMethod(CtNewMethod.make(getCode.toString(), ctClass));
+				ctClass.addMethod(CtNewMethod.make(setCode.toString(), ctClass));
+				byte[] bytecode = ctClass.toBytecode();
+				ctClass.detach();
+
+				GeneratedClassLoader loader = new GeneratedClassLoader(entityClass.getClassLoader());
+				Class<?> cls = loader.defineGeneratedClass(className, bytecode);
+				PropertyAccessor accessor = (PropertyAccessor)cls.newInstance();
+				accessor.setEntityClass(entityClass);
+				if (_logger.isDebugEnabled())
+					_logger.debug("Generated property accessor for " + metaEntity.getEntityName());
+				return accessor;
+			}
+		}
+		catch(Exception ex) {
+			if (_logger.isWarnEnabled())
+				_logger.warn("Unable to generate property accessor for " + metaEntity.getEntityName() +
+						" -- properties will be accessed using reflection", ex);
+			return null;
+		}
+	}
+
+	/**
+	 * Find the public getter for the given property.
+	 * @return Null if there is no such getter, or if its type cannot be used in generated code.
+	 */
+	private static Method findGetter(Class<?> cls, String propName) {
+		String capName = Character.toUpperCase(propName.charAt(0)) + propName.substring(1);
+		for (String prefix : new String[]{"get", "is"}) {
+			try {
+				Method method = cls.getMethod(prefix + capName);
+				if (isUsable(method) && method.getReturnType() != Void.TYPE)
+					return method;
+			}
+			catch(NoSuchMethodException ex) {
+				// Try the next prefix
+			}
+		}
+		return null;
+	}
+
+	private static Method findSetter(Class<?> cls, String propName, Class<?> type) {
+		String setterName = "set" + Character.toUpperCase(propName.charAt(0)) + propName.substring(1);
+		try {
+			Method method = cls.getMethod(setterName, type);
+			if (isUsable(method))
+				return method;
+		}
+		catch(NoSuchMethodException ex) {
+			// No public setter
+		}
+		return null;
+	}
+
+	private static boolean isUsable(Method method) {
+		if ( ! Modifier.isPublic(method.getDeclaringClass().getModifiers()))
+			return false;
+		Class<?> type = method.getReturnType();
+		if (method.getParameterTypes().length == 1)
+			type = method.getParameterTypes()[0];
+		if (type.isArray())
+			return false;
+		return type.isPrimitive() || Modifier.isPublic(type.getModifiers());
+	}
+
+	private static String box(String code, Class<?> type) {
+		if ( ! type.isPrimitive())
+			return code;
+		return getWrapperClass(type).getName() + ".valueOf(" + code + ")";
+	}
+
+	private static String unbox(String code, Class<?> type) {
+		if ( ! type.isPrimitive())
+			return "(" + type.getName() + ")" + code;
+		return "((" + getWrapperClass(type).getName() + ")" + code + ")." + type.getName() + "Value()";
+	}
+
+	private static Class<?> getWrapperClass(Class<?> primitive) {
+		if (primitive == Integer.TYPE) return Integer.class;
+		if (primitive == Long.TYPE) return Long.class;
+		if (primitive == Double.TYPE) return Double.class;
+		if (primitive == Float.TYPE) return Float.class;
+		if (primitive == Short.TYPE) return Short.class;
+		if (primitive == Byte.TYPE) return Byte.class;
+		if (primitive == Boolean.TYPE) return Boolean.class;
+		if (primitive == Character.TYPE) return Character.class;
+		throw new RuntimeException("Unknown primitive type: " + primitive);
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
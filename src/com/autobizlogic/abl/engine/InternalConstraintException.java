@@ -31,6 +31,15 @@ public class InternalConstraintException extends RuntimeException {
 	public String[] getProblemAttributes() {
 		return problemAttributes;
 	}
+	
+	/**
+	 * This exception is only used to carry the failure back to ConstraintRule, which turns it
+	 * into a ConstraintFailure, so there is no point in paying for a stack trace.
+	 */
+	@Override
+	public synchronized Throwable fillInStackTrace() {
+		return this;
+	}
 
 	private static final long serialVersionUID = 1L;
 
@@ -1,10 +1,13 @@
 package com.autobizlogic.abl.engine;
 
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 
 import com.autobizlogic.abl.data.BeanComparison;
 import com.autobizlogic.abl.data.PersistentBean;
 import com.autobizlogic.abl.data.ProxyFactory;
+import com.autobizlogic.abl.data.hibernate.HibPersistentBean;
 import com.autobizlogic.abl.data.hibernate.HibPersistentBeanCopy;
 import com.autobizlogic.abl.engine.phase.Actions;
 import com.autobizlogic.abl.engine.phase.AdjustAllParents;
@@ -13,6 +16,7 @@ import com.autobizlogic.abl.engine.phase.Constraints;
 import com.autobizlogic.abl.engine.phase.DefaultsAndAlterability;
 import com.autobizlogic.abl.engine.phase.FormulasAndParentChecks;
 import com.autobizlogic.abl.event.GlobalLogicEventHandler;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
 import com.autobizlogic.abl.event.LogicRunnerEvent;
 import com.autobizlogic.abl.event.LogicRunnerEvent.LogicRunnerEventType;
 import com.autobizlogic.abl.hibernate.LogicEventListener.QueuedEventPhase;
@@ -23,6 +27,7 @@ import com.autobizlogic.abl.logic.LogicContext;
 import com.autobizlogic.abl.logic.LogicSource;
 import com.autobizlogic.abl.logic.Verb;
 import com.autobizlogic.abl.metadata.MetaRole;
+import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
 import com.autobizlogic.abl.rule.LogicGroup;
 import com.autobizlogic.abl.rule.RuleManager;
 import com.autobizlogic.abl.session.LogicTransactionContext;
@@ -82,6 +87,23 @@ public class LogicRunner {
 	private Verb verb;
 
 
+	/**
+	 * The ordinals (see HibMetaEntity.getPropertyIndex) of the properties whose value differs
+	 * between the prior and the current state. Computed on demand, see getChangedProperties.
+	 */
+	private BitSet changedProperties;
+	
+	/**
+	 * The modification count of the current state when changedProperties was computed. Changes made
+	 * through put after that are tracked by the current state, see HibPersistentBean.isModifiedSince.
+	 */
+	private int modificationMark;
+	
+	/**
+	 * The ordinals of the properties that Hibernate reported as dirty, if known.
+	 */
+	private int[] dirtyProperties;
+
 	private List <MetaRole> adjustedRolesDB;			// for debug
 	private List<MetaRole> cascadeRolesDB;
 
@@ -396,6 +418,87 @@ public class LogicRunner {
 	public void setPriorDomainObject(PersistentBean pbean) {
 		this.priorState = pbean;
 		logicContext.setOldState(pbean);
+		changedProperties = null;
+	}
+	
+	/**
+	 * Internal method. Tell this LogicRunner which properties Hibernate considers dirty, typically
+	 * from the update event. Those properties will be considered changed without comparing their values.
+	 * @param dirtyProps The indexes of the dirty properties in Hibernate's state array
+	 */
+	public void setDirtyProperties(int[] dirtyProps) {
+		this.dirtyProperties = dirtyProps;
+	}
+	
+	/**
+	 * Whether changes can be tracked using property ordinals for this LogicRunner, i.e. whether
+	 * isAnyPropertyChanged and isPropertyChanged can be used. This requires a prior state.
+	 */
+	public boolean canTrackPropertyChanges() {
+		return priorState != null && currentState instanceof HibPersistentBean && 
+				currentState.getMetaEntity() instanceof HibMetaEntity;
+	}
+	
+	/**
+	 * Whether any of the given properties has a different value in the prior and the current state.
+	 * This errs on the side of caution: a property may be reported as changed even though it was changed
+	 * back to its prior value. Only call this if canTrackPropertyChanges returns true.
+	 * @param ordinals The ordinals of the properties, see HibMetaEntity.getPropertyIndex
+	 */
+	public boolean isAnyPropertyChanged(BitSet ordinals) {
+		if (ordinals.intersects(getChangedProperties()))
+			return true;
+		return ((HibPersistentBean)currentState).isAnyModifiedSince(ordinals, modificationMark);
+	}
+	
+	/**
+	 * Whether the given property has a different value in the prior and the current state.
+	 * As with isAnyPropertyChanged, this errs on the side of caution. Only call this if 
+	 * canTrackPropertyChanges returns true.
+	 */
+	public boolean isPropertyChanged(String propName) {
+		HibMetaEntity metaEntity = (HibMetaEntity)currentState.getMetaEntity();
+		int idx = metaEntity.getPropertyIndex(propName);
+		if (idx == -1 || Arrays.binarySearch(metaEntity.getValuePropertyIndexes(), idx) < 0)
+			return ! ObjectUtil.objectsAreEqual(priorState.get(propName), currentState.get(propName));
+		if (getChangedProperties().get(idx))
+			return true;
+		return ((HibPersistentBean)currentState).isModifiedSince(idx, modificationMark);
+	}
+	
+	/**
+	 * Internal method. Forget which properties have changed, so that this gets recomputed the next
+	 * time it's needed. This must be called whenever the current state may have been modified
+	 * other than through put, e.g. by actions that call the bean's setters.
+	 */
+	public void forgetChangedProperties() {
+		changedProperties = null;
+	}
+	
+	/**
+	 * Compare the prior and the current state, once, for all the attributes and single-valued roles.
+	 * Changes made through put after this are tracked by the current state itself.
+	 */
+	private BitSet getChangedProperties() {
+		if (changedProperties != null)
+			return changedProperties;
+		
+		HibMetaEntity metaEntity = (HibMetaEntity)currentState.getMetaEntity();
+		String[] propNames = metaEntity.getPropertyNames();
+		modificationMark = ((HibPersistentBean)currentState).getModificationCount();
+		BitSet changed = new BitSet(propNames.length);
+		if (dirtyProperties != null) {
+			for (int idx : dirtyProperties)
+				changed.set(idx);
+		}
+		for (int idx : metaEntity.getValuePropertyIndexes()) {
+			if (changed.get(idx))
+				continue;
+			if (! ObjectUtil.objectsAreEqual(priorState.get(propNames[idx]), currentState.get(propNames[idx])))
+				changed.set(idx);
+		}
+		changedProperties = changed;
+		return changed;
 	}
 
 	/**
@@ -486,6 +589,8 @@ public class LogicRunner {
 	 * @param execTime The amount of time this event took, in nanosecs.
 	 */
 	public void raiseLogicRunnerEvent(LogicRunnerEventType aLogicRunnerEventType, long execTime) {
+		if ( ! GlobalLogicEventHandler.getGlobalLogicListenerHandler().hasLogicListeners(EventType.LOGIC_RUNNER))
+			return;
 		LogicRunnerEvent evt = new LogicRunnerEvent(this.getContext(), this.getLogicContext(), aLogicRunnerEventType);
 		evt.setExecutionTime(execTime);
 		GlobalLogicEventHandler.getGlobalLogicListenerHandler().fireEvent(evt);
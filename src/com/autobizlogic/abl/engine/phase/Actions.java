@@ -84,6 +84,9 @@ public class Actions extends LogicPhaseBase implements LogicPhase {
 		if (actions.size() == 0)
 			return;
 		
+		// Actions can read any attribute, so lazy formulas must be up to date
+		logicGroup.computeLazyFormulas(logicRunner);
+		
 		LogicTransactionContext context = logicRunner.getContext();
 		Map<Object, Set<ActionRule>> executedActions = context.getExecutedActions();
 		Serializable pk = logicRunner.getCurrentDomainObject().getPk();
@@ -119,6 +122,7 @@ public class Actions extends LogicPhaseBase implements LogicPhase {
 		Set<EarlyActionRule> earlyActions = logicGroup.getEarlyActions();
 		if (earlyActions.size() == 0)
 			return;
+		logicGroup.computeLazyFormulas(logicRunner);
 		LogicTransactionContext context = logicRunner.getContext();
 		Map<Object, Set<ActionRule>> executedActions = context.getExecutedActions();
 		Serializable pk = logicRunner.getCurrentDomainObject().getPk();
@@ -153,6 +157,8 @@ public class Actions extends LogicPhaseBase implements LogicPhase {
 			if (logicGroup == null)
 				continue;
 			Set<CommitActionRule> commitActions = logicGroup.getCommitActions();
+			if ( ! commitActions.isEmpty())
+				logicGroup.computeLazyFormulas(runner);
 			for (CommitActionRule action : commitActions) {
 				if ( ! action.verbIsRelevant(runner))
 					continue;
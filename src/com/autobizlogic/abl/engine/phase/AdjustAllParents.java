@@ -165,6 +165,15 @@ public class AdjustAllParents extends LogicPhaseBase implements LogicPhase {
 				if (parentLg == null)
 					continue;
 				Set <AbstractAggregateRule> aggregates = parentLg.findAggregatesForRole(roleToChild);
+				
+				// If adjustments are being coalesced, just record them -- the parent will be adjusted later
+				AggregateAdjustmentCoalescer coalescer = childLogicRunner.getContext().getAggregateAdjustmentCoalescer();
+				if (coalescer != null && AggregateAdjustmentCoalescer.canCoalesce(aggregates)) {
+					for (AbstractAggregateRule eachAggregate: aggregates)
+						eachAggregate.accumulateAdjustments(this, coalescer);
+					continue;
+				}
+				
 				adjustedParentDomainObject = null; // set in eachAggregate.adjustedParentDomainObject if appropriate
 				adjustedOldParentDomainObject = null;
 				adjustedPriorParentDomainObject = null;
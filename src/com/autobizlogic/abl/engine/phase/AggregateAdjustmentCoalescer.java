@@ -0,0 +1,231 @@
+package com.autobizlogic.abl.engine.phase;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.autobizlogic.abl.config.LogicConfiguration;
+import com.autobizlogic.abl.config.LogicConfiguration.PropertyName;
+import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.engine.LogicException;
+import com.autobizlogic.abl.engine.LogicRunner;
+import com.autobizlogic.abl.engine.LogicRunner.LogicProcessingState;
+import com.autobizlogic.abl.engine.LogicRunner.LogicRunnerPhase;
+import com.autobizlogic.abl.logic.BusinessLogicFactory;
+import com.autobizlogic.abl.logic.BusinessLogicFactoryManager;
+import com.autobizlogic.abl.logic.LogicSource;
+import com.autobizlogic.abl.logic.Verb;
+import com.autobizlogic.abl.metadata.MetaRole;
+import com.autobizlogic.abl.rule.AbstractAggregateRule;
+import com.autobizlogic.abl.session.LogicTransactionContext;
+import com.autobizlogic.abl.util.LogicLogger;
+import com.autobizlogic.abl.util.LogicLogger.LoggerName;
+
+/**
+ * Accumulates sum and count adjustments by parent, so that each parent gets adjusted (and its
+ * logic executed) only once, rather than once per child.
+ * <p/>
+ * This is turned on with the coalesceAggregateAdjustments configuration property. When it is,
+ * BeforeTransactionProcess creates an instance of this class for each iteration over the LogicRunners,
+ * and AdjustAllParents records into it the net change of each sum and count, for each parent,
+ * instead of adjusting the parent right away. At the end of the iteration, applyAdjustments
+ * adjusts each parent once, and runs its logic once. Parents whose net change is zero are left alone.
+ * <p/>
+ * Only sums and counts on persistent attributes, whose method has no code, can be coalesced. For a given
+ * role, if any aggregate cannot be coalesced, the adjustments are made as usual for all aggregates
+ * of that role.
+ * <p/>
+ * Note that, while the adjustments are accumulated, the parents' aggregates do not reflect the
+ * changes made to their children, and the parents' constraints are only checked against the net result.
+ */
+public class AggregateAdjustmentCoalescer {
+
+	/**
+	 * The parents waiting to be adjusted, by identity of the underlying entity (POJO or Map), since
+	 * the primary key of a new parent may not be known yet.
+	 */
+	private Map<Object, PendingParent> pendingParents = new IdentityHashMap<Object, PendingParent>();
+	
+	/**
+	 * The parents waiting to be adjusted, in the order in which they were first adjusted.
+	 */
+	private List<PendingParent> pendingOrder = new ArrayList<PendingParent>();
+
+	private static final LogicLogger _logger = LogicLogger.getLogger(LoggerName.RULES_ENGINE);
+
+	/**
+	 * Whether the coalescing of adjustments has been turned on in the configuration.
+	 */
+	public static boolean isEnabled() {
+		String prop = LogicConfiguration.getInstance().getProperty(PropertyName.COALESCE_AGGREGATE_ADJUSTMENTS);
+		return "true".equalsIgnoreCase(prop);
+	}
+
+	/**
+	 * Determine whether all the given aggregates can be coalesced.
+	 */
+	public static boolean canCoalesce(Set<AbstractAggregateRule> aggregates) {
+		if (aggregates == null || aggregates.isEmpty())
+			return false;
+		for (AbstractAggregateRule aggregate : aggregates) {
+			if ( ! aggregate.isCoalescable())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Record an adjustment for the given parent. If the parent is already scheduled for processing,
+	 * the adjustment is applied to it right away, since its logic will run anyway.
+	 * @param parentBean The parent to adjust
+	 * @param aggregate The aggregate to adjust
+	 * @param delta The amount by which to adjust the aggregate
+	 * @param childLogicRunner The LogicRunner of the child causing the adjustment
+	 * @param roleToChild The role from the parent to the child
+	 */
+	public void addAdjustment(PersistentBean parentBean, AbstractAggregateRule aggregate, BigDecimal delta,
+			LogicRunner childLogicRunner, MetaRole roleToChild) {
+
+		if (parentBean == null || delta.signum() == 0)
+			return;
+
+		LogicRunner aheadLogicRunner = findAheadLogicRunner(childLogicRunner.getContext(), parentBean);
+		if (aheadLogicRunner != null) {
+			aggregate.applyCoalescedAdjustment(aheadLogicRunner.getCurrentDomainObject(), delta, childLogicRunner);
+			return;
+		}
+
+		PendingParent pending = pendingParents.get(parentBean.getEntity());
+		if (pending == null) {
+			pending = new PendingParent(parentBean, childLogicRunner, roleToChild);
+			pendingParents.put(parentBean.getEntity(), pending);
+			pendingOrder.add(pending);
+		}
+		pending.addDelta(aggregate, delta);
+	}
+
+	/**
+	 * Whether there are any adjustments waiting to be applied.
+	 */
+	public boolean isEmpty() {
+		return pendingParents.isEmpty();
+	}
+
+	/**
+	 * Apply all pending adjustments, and run the logic of each adjusted parent. This may cause
+	 * adjustments to the parents' own parents, which are then applied in turn, until there
+	 * is nothing left to apply.
+	 */
+	public void applyAdjustments(LogicTransactionContext context) {
+		int numRounds = 0;
+		while ( ! pendingParents.isEmpty()) {
+			numRounds++;
+			if (numRounds > 10000)
+				throw new LogicException("Too many rounds while applying coalesced aggregate adjustments");
+
+			List<PendingParent> parents = pendingOrder;
+			pendingOrder = new ArrayList<PendingParent>();
+			pendingParents.clear();
+			for (PendingParent pending : parents)
+				pending.apply(context);
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Look for a LogicRunner already scheduled for the given parent. If there is one, the parent
+	 * should be adjusted directly, and its logic should not be invoked.
+	 */
+	private static LogicRunner findAheadLogicRunner(LogicTransactionContext context, PersistentBean parentBean) {
+		LogicRunner aheadLogicRunner = context.findLogicRunner(parentBean);
+		if (aheadLogicRunner == null || aheadLogicRunner.getLogicProcessingState() == LogicProcessingState.COMPLETED)
+			return null;
+		if (aheadLogicRunner.getExecutionState() == LogicRunnerPhase.ACTIONS)
+			return null;
+		return aheadLogicRunner;
+	}
+
+	/**
+	 * The net adjustments for one parent.
+	 */
+	private static class PendingParent {
+		private PersistentBean parentBean;
+		private LogicRunner callingLogicRunner;
+		private MetaRole roleToChild;
+		private Map<AbstractAggregateRule, BigDecimal> deltas = new LinkedHashMap<AbstractAggregateRule, BigDecimal>();
+
+		private PendingParent(PersistentBean parentBean, LogicRunner callingLogicRunner, MetaRole roleToChild) {
+			this.parentBean = parentBean;
+			this.callingLogicRunner = callingLogicRunner;
+			this.roleToChild = roleToChild;
+		}
+
+		private void addDelta(AbstractAggregateRule aggregate, BigDecimal delta) {
+			BigDecimal total = deltas.get(aggregate);
+			if (total == null)
+				total = delta;
+			else
+				total = total.add(delta);
+			deltas.put(aggregate, total);
+		}
+
+		private void apply(LogicTransactionContext context) {
+			if (context.objectIsDeleted(parentBean))
+				return;
+
+			boolean hasChanges = false;
+			for (BigDecimal delta : deltas.values()) {
+				if (delta.signum() != 0) {
+					hasChanges = true;
+					break;
+				}
+			}
+			if ( ! hasChanges) {
+				if (_logger.isDebugEnabled())
+					_logger.debug("Net adjustment is zero for parent " + parentBean.toShortString() + " -- no update required");
+				return;
+			}
+
+			// The parent may have been scheduled since the adjustments were recorded
+			LogicRunner aheadLogicRunner = findAheadLogicRunner(context, parentBean);
+			PersistentBean targetBean = parentBean;
+			if (aheadLogicRunner != null)
+				targetBean = aheadLogicRunner.getCurrentDomainObject();
+
+			PersistentBean oldParentBean = null;
+			if (aheadLogicRunner == null)
+				oldParentBean = targetBean.duplicate();
+
+			for (Map.Entry<AbstractAggregateRule, BigDecimal> delta : deltas.entrySet()) {
+				if (delta.getValue().signum() != 0)
+					delta.getKey().applyCoalescedAdjustment(targetBean, delta.getValue(), callingLogicRunner);
+			}
+
+			if (aheadLogicRunner != null)
+				return;
+
+			if (_logger.isDebugEnabled())
+				_logger.debug("Adjusting parent " + targetBean.toShortString() + " with coalesced adjustments from", callingLogicRunner);
+			BusinessLogicFactory businessLogicFactory = BusinessLogicFactoryManager.getBusinessLogicFactory();
+			LogicRunner parentLogicRunner = businessLogicFactory.getLogicRunner(context, targetBean, oldParentBean,
+					Verb.UPDATE, LogicSource.ADJUSTED, callingLogicRunner, roleToChild);
+			if (parentLogicRunner != null)
+				parentLogicRunner.update();
+		}
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -1,13 +1,25 @@
 package com.autobizlogic.abl.engine.phase;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.Session;
 import org.hibernate.collection.PersistentCollection;
+import org.hibernate.engine.CascadingAction;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.EntityKey;
 import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
 
+import com.autobizlogic.abl.config.LogicConfiguration;
+import com.autobizlogic.abl.config.LogicConfiguration.PropertyName;
 import com.autobizlogic.abl.logic.BusinessLogicFactoryManager;
 import com.autobizlogic.abl.logic.LogicSource;
 import com.autobizlogic.abl.logic.Verb;
@@ -20,6 +32,7 @@ import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.event.LogicRunnerEvent.LogicRunnerEventType;
 import com.autobizlogic.abl.hibernate.HibernateSessionUtil;
+import com.autobizlogic.abl.hibernate.LogicEventListener.QueuedEventPhase;
 import com.autobizlogic.abl.hibernate.HibernateUtil;
 import com.autobizlogic.abl.metadata.MetaEntity;
 import com.autobizlogic.abl.metadata.MetaModel;
@@ -39,7 +52,13 @@ import com.autobizlogic.abl.util.ObjectUtil;
  * </ol>
  * When triggering cascades, provide forwardChain info to child,<br>
  * used for role pruning.
- * 
+ * <p/>
+ * If the cascadeBatchSize configuration property is set, children collections that have not been
+ * loaded are not loaded for the cascade: the children are read in chunks of that size, and the children
+ * of each chunk are evicted from the session once processed, so that a parent with a very large number 
+ * of children does not require all of them to be in memory. If the cascade modified any of the children 
+ * of a chunk, the session is flushed first, so that they get saved. The transaction summary still
+ * records an event for each modified child.
  */
 public class CascadeParentReferences extends LogicPhaseBase implements LogicPhase {
 
@@ -81,6 +100,7 @@ public class CascadeParentReferences extends LogicPhaseBase implements LogicPhas
 		MetaModel metaModel = parentEntity.getMetaModel();
 		RuleManager ruleMgr = RuleManager.getInstance(metaModel);
 		Set<MetaRole> rolesToChildren = parentEntity.getRolesFromParentToChildren();
+		boolean trackChanges = logicRunner.canTrackPropertyChanges();
 		for (MetaRole roleToChild : rolesToChildren) {
 			LogicGroup childLg = ruleMgr.getLogicGroupForEntity(roleToChild.getOtherMetaEntity());
 			if (childLg == null) // If child has no logic, clearly it's not interested
@@ -96,9 +116,15 @@ public class CascadeParentReferences extends LogicPhaseBase implements LogicPhas
 				} else if (logicRunner.getVerb() == Verb.INSERT) {
 					throw new LogicException("System error - cascading for inserted parent");
 				} else if (logicRunner.getVerb() == Verb.UPDATE) {
-					Object oldVal = logicRunner.getPriorDomainObject().get(eachAttributeName);
-					Object newVal = logicRunner.getCurrentDomainObject().get(eachAttributeName);
-					if ( ! ObjectUtil.objectsAreEqual(oldVal, newVal) ) {
+					boolean changed;
+					if (trackChanges)
+						changed = logicRunner.isPropertyChanged(eachAttributeName);
+					else {
+						Object oldVal = logicRunner.getPriorDomainObject().get(eachAttributeName);
+						Object newVal = logicRunner.getCurrentDomainObject().get(eachAttributeName);
+						changed = ! ObjectUtil.objectsAreEqual(oldVal, newVal);
+					}
+					if (changed) {
 						anyReplicatedChange = eachAttributeName + " change (and possibly others in " + refdParentAttrNames + ") from";
 						break;
 					}
@@ -137,14 +163,20 @@ public class CascadeParentReferences extends LogicPhaseBase implements LogicPhas
 				throw new RuntimeException("Persistent collection is not in the current transaction");
 			
 			HibMetaEntity childMetaEntity = (HibMetaEntity)aChildRole.getOtherMetaEntity();
-			HibPersistentBeanFactory beanFactory = HibPersistentBeanFactory.getInstance(
-					aParentLogicRunner.getContext().getSession());
+			HibPersistentBeanFactory beanFactory = context.getPersistentBeanFactory();
 			
-			for (Object eachChild: theChildren) {
-				PersistentBean childBean = beanFactory.createPersistentBeanFromObject(eachChild, 
-						childMetaEntity.getEntityPersister());
-				cascadeToChildObject(aParentLogicRunner, childBean, aChildRole, raiseBeforeEvent);
-				raiseBeforeEvent = false;
+			int batchSize = getCascadeBatchSize();
+			if (canStreamChildren(aChildRole, (PersistentCollection)theChildren, batchSize, context)) {
+				int numChildren = streamToChildrenForRole(aChildRole, aParentLogicRunner, batchSize);
+				raiseBeforeEvent = numChildren == 0;
+			}
+			else {
+				for (Object eachChild: theChildren) {
+					PersistentBean childBean = beanFactory.createPersistentBeanFromObject(eachChild, 
+							childMetaEntity.getEntityPersister());
+					cascadeToChildObject(aParentLogicRunner, childBean, aChildRole, raiseBeforeEvent);
+					raiseBeforeEvent = false;
+				}
 			}
 		}
 		if (raiseBeforeEvent) {
@@ -153,6 +185,177 @@ public class CascadeParentReferences extends LogicPhaseBase implements LogicPhas
 		aParentLogicRunner.raiseLogicRunnerEvent(LogicRunnerEventType.ENDCASCADE, System.nanoTime() - aStartTime);
 	}
 
+	/**
+	 * Get the number of children to read at a time when streaming a cascade.
+	 * @return 0 if cascades should not be streamed
+	 */
+	private static int getCascadeBatchSize() {
+		String sizeStr = LogicConfiguration.getInstance().getProperty(PropertyName.CASCADE_BATCH_SIZE);
+		if (sizeStr == null)
+			return 0;
+		try {
+			return Integer.valueOf(sizeStr.trim());
+		}
+		catch(Exception ex) {
+			throw new RuntimeException("ABL configuration parameter " + 
+					PropertyName.CASCADE_BATCH_SIZE.getName() + " has an invalid value.");
+		}
+	}
+
+	/**
+	 * Determine whether the cascade to the given children can be streamed rather than going through
+	 * the collection. This is not the case if the collection is already loaded (there is then nothing to save),
+	 * if the children have commit-time logic (their LogicRunner, and therefore their state, is then kept
+	 * until the commit anyway), or if evicting a child would also evict its parent.
+	 */
+	private static boolean canStreamChildren(MetaRole aChildRole, PersistentCollection theChildren, 
+			int batchSize, LogicTransactionContext context) {
+		if (batchSize <= 0 || theChildren.wasInitialized())
+			return false;
+
+		HibMetaEntity childMetaEntity = (HibMetaEntity)aChildRole.getOtherMetaEntity();
+		EntityPersister persister = childMetaEntity.getEntityPersister();
+		if (persister.getIdentifierPropertyName() == null || persister.getIdentifierType().isComponentType())
+			return false;
+
+		int roleIndex = persister.getEntityMetamodel().getPropertyIndex(aChildRole.getOtherMetaRole().getRoleName());
+		if (persister.getPropertyCascadeStyles()[roleIndex].doCascade(CascadingAction.EVICT))
+			return false;
+
+		LogicGroup childLg = RuleManager.getInstance(context.getMetaModel()).getLogicGroupForEntity(childMetaEntity);
+		if ( ! childLg.getCommitActions().isEmpty() || ! childLg.getCommitConstraints().isEmpty())
+			return false;
+
+		return true;
+	}
+
+	/**
+	 * Cascade to the children of the given parent without loading its collection: the primary keys
+	 * of the children are read one page at a time, ordered by primary key, and each page is processed
+	 * before the next one is read. As when the collection is loaded, the queries that read the children
+	 * do not flush the session.
+	 * @return The number of children processed
+	 */
+	private static int streamToChildrenForRole(MetaRole aChildRole, LogicRunner aParentLogicRunner, int batchSize) {
+		
+		Session session = aParentLogicRunner.getContext().getSession();
+		HibMetaEntity childMetaEntity = (HibMetaEntity)aChildRole.getOtherMetaEntity();
+		String idName = childMetaEntity.getEntityPersister().getIdentifierPropertyName();
+		String queryStart = "select c." + idName + " from " + childMetaEntity.getEntityName() + 
+				" c where c." + aChildRole.getOtherMetaRole().getRoleName() + " = :parent";
+		String queryEnd = " order by c." + idName;
+
+		int numChildren = 0;
+		Serializable lastPk = null;
+		while (true) {
+			Query query;
+			if (lastPk == null)
+				query = session.createQuery(queryStart + queryEnd);
+			else {
+				query = session.createQuery(queryStart + " and c." + idName + " > :lastPk" + queryEnd);
+				query.setParameter("lastPk", lastPk);
+			}
+			query.setEntity("parent", aParentLogicRunner.getCurrentDomainObject().getEntity());
+			query.setFlushMode(FlushMode.MANUAL);
+			query.setMaxResults(batchSize);
+			@SuppressWarnings("unchecked")
+			List<Serializable> pks = query.list();
+			if (pks.isEmpty())
+				break;
+			numChildren += cascadeToChildrenChunk(aChildRole, aParentLogicRunner, pks, numChildren == 0);
+			if (pks.size() < batchSize)
+				break;
+			lastPk = pks.get(pks.size() - 1);
+		}
+		
+		if (_logger.isDebugEnabled())
+			_logger.debug("Streamed cascade to " + numChildren + " child(ren) through " + aChildRole.getRoleName(), 
+					aParentLogicRunner);
+		return numChildren;
+	}
+
+	/**
+	 * Cascade to the given children, then evict them from the session. Children that
+	 * were already in the session, that are queued for processing, or that have stale lazy formulas
+	 * are left in the session. If any of the children to evict was modified by the cascade, the session 
+	 * is flushed before they are evicted. This is only done during the logic phase, when the flush does not 
+	 * queue any LogicRunner: otherwise the modified children are left in the session for the next flush.
+	 * @return The number of children processed
+	 */
+	private static int cascadeToChildrenChunk(MetaRole aChildRole, LogicRunner aParentLogicRunner, 
+			List<Serializable> pks, boolean aRaiseBeforeEvent) {
+
+		LogicTransactionContext context = aParentLogicRunner.getContext();
+		Session session = context.getSession();
+		PersistenceContext persistenceContext = HibernateSessionUtil.getPersistenceContextForSession(session);
+		HibMetaEntity childMetaEntity = (HibMetaEntity)aChildRole.getOtherMetaEntity();
+		EntityPersister persister = childMetaEntity.getEntityPersister();
+
+		Set<Serializable> pksToEvict = new HashSet<Serializable>();
+		for (Serializable pk : pks) {
+			EntityKey key = new EntityKey(pk, persister, session.getEntityMode());
+			if (persistenceContext.getEntity(key) == null && persistenceContext.getProxy(key) == null)
+				pksToEvict.add(pk);
+		}
+
+		Query query = session.createQuery("from " + childMetaEntity.getEntityName() + 
+				" where " + persister.getIdentifierPropertyName() + " in (:pks)");
+		query.setParameterList("pks", pks);
+		query.setFlushMode(FlushMode.MANUAL);
+		List<?> children = query.list();
+
+		HibPersistentBeanFactory beanFactory = context.getPersistentBeanFactory();
+		boolean canFlush = context.getQueuedEventPhase() == QueuedEventPhase.LOGIC;
+		boolean needsFlush = false;
+		List<PersistentBean> childrenToEvict = new ArrayList<PersistentBean>();
+		List<LogicRunner> runnersToForget = new ArrayList<LogicRunner>();
+		boolean raiseBeforeEvent = aRaiseBeforeEvent;
+		for (Object eachChild : children) {
+			PersistentBean childBean = beanFactory.createPersistentBeanFromObject(eachChild, persister);
+			LogicRunner childLogicRunner = cascadeToChildObject(aParentLogicRunner, childBean, aChildRole, raiseBeforeEvent);
+			raiseBeforeEvent = false;
+			if ( ! pksToEvict.contains(childBean.getPk()))
+				continue;
+			if (context.findLogicRunner(childBean) != null)
+				continue;
+			if (context.getLazyFormulaIndex().getRunnerForEntity(childBean.getEntity()) != null)
+				continue;
+			if (isDirty(eachChild, persister, persistenceContext, session)) {
+				if ( ! canFlush)
+					continue;
+				needsFlush = true;
+			}
+			childrenToEvict.add(childBean);
+			if (childLogicRunner != null)
+				runnersToForget.add(childLogicRunner);
+		}
+
+		// Save the modified children of this chunk before they leave the session
+		if (needsFlush)
+			session.flush();
+		for (PersistentBean childBean : childrenToEvict) {
+			session.evict(childBean.getEntity());
+			beanFactory.removeCachedBean(childBean.getEntity());
+		}
+		for (LogicRunner runner : runnersToForget)
+			context.unregisterLogicRunner(runner);
+
+		return children.size();
+	}
+	
+	/**
+	 * Determine whether the given entity has been modified since it was loaded.
+	 */
+	private static boolean isDirty(Object entity, EntityPersister persister, PersistenceContext persistenceContext,
+			Session session) {
+		EntityEntry entry = persistenceContext.getEntry(entity);
+		if (entry == null || entry.getLoadedState() == null)
+			return true;
+		Object[] currentState = persister.getPropertyValues(entity, session.getEntityMode());
+		int[] dirtyProps = persister.findDirty(currentState, entry.getLoadedState(), entity, (SessionImplementor)session);
+		return dirtyProps != null && dirtyProps.length > 0;
+	}
+
 	/**
 	 * 	Process cascade for single child: build/run LogicRunner for logic (which may issue <code>Hibernate update</code>).
 	 * <br><br>
@@ -176,8 +379,9 @@ public class CascadeParentReferences extends LogicPhaseBase implements LogicPhas
 	 * @param aParentLogicRunner
 	 * @param aChildObjectState
 	 * @param aChildRole
+	 * @return The LogicRunner that was created for the child, if any
 	 */
-	private static void cascadeToChildObject(LogicRunner aParentLogicRunner, 
+	private static LogicRunner cascadeToChildObject(LogicRunner aParentLogicRunner, 
 			PersistentBean aChildObjectState, MetaRole aChildRole, boolean aRaiseBeforeEvent) {
 		
 		// Check that the child is in fact pointing to the parent. This can get out of synch
@@ -191,8 +395,7 @@ public class CascadeParentReferences extends LogicPhaseBase implements LogicPhas
 					" through role " + aChildRole.getRoleName() + 
 					". When setting a relationship, it must be set at both ends, otherwise the logic " +
 					"cannot execute properly.");
-		HibPersistentBeanFactory beanFactory = HibPersistentBeanFactory.getInstance(
-				aParentLogicRunner.getLogicContext().getSession());
+		HibPersistentBeanFactory beanFactory = aParentLogicRunner.getContext().getPersistentBeanFactory();
 		PersistentBean backParentBean = beanFactory.createPersistentBeanFromEntity(
 				backParent, roleToParent.getOtherMetaEntity().getEntityName());
 		if ( ! backParentBean.getPk().equals(aParentLogicRunner.getCurrentDomainObject().getPk()))
@@ -216,6 +419,7 @@ public class CascadeParentReferences extends LogicPhaseBase implements LogicPhas
 				childLogicRunner.setCallingRoleMeta(aChildRole);
 			} else
 				throw new LogicException("Unexpected state (delete?) in LogicTransactionContext.objectsToProcess");
+			return null;
 		} else {
 			PersistentBean oldChild = aChildObjectState.duplicate();
 			childLogicRunner = businessLogicFactory.getLogicRunner(
@@ -232,6 +436,7 @@ public class CascadeParentReferences extends LogicPhaseBase implements LogicPhas
 					throw new LogicException("Cascade Delete detected"); // TODO: thought we processed deletes as they came, not eagerly... cascade nullify tests?
 				}
 			}
+			return childLogicRunner;
 		}
 	}
 
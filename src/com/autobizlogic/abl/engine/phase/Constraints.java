@@ -17,6 +17,7 @@ import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.engine.TransactionFailureSynchronization;
 import com.autobizlogic.abl.engine.LogicRunner.LogicRunnerPhase;
 import com.autobizlogic.abl.event.GlobalLogicEventHandler;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
 import com.autobizlogic.abl.event.LogicAfterCommitEvent;
 import com.autobizlogic.abl.event.LogicAfterCommitEvent.CommitFailure;
 import com.autobizlogic.abl.text.LogicMessageFormatter;
@@ -82,8 +83,10 @@ public class Constraints extends LogicPhaseBase implements LogicPhase {
 
 		ConstraintException ex = new ConstraintException(msg, constraintFailures);
 		
-		LogicAfterCommitEvent evt = new LogicAfterCommitEvent(logicRunner.getContext(), CommitFailure.CONSTRAINTFAILURE);
-		GlobalLogicEventHandler.getGlobalLogicListenerHandler().fireEvent(evt);
+		if (GlobalLogicEventHandler.getGlobalLogicListenerHandler().hasLogicListeners(EventType.AFTER_COMMIT)) {
+			LogicAfterCommitEvent evt = new LogicAfterCommitEvent(logicRunner.getContext(), CommitFailure.CONSTRAINTFAILURE);
+			GlobalLogicEventHandler.getGlobalLogicListenerHandler().fireEvent(evt);
+		}
 		
 		//aLogicRunner.getContext().getSession().getTransaction().rollback();
 		
@@ -163,8 +166,10 @@ public class Constraints extends LogicPhaseBase implements LogicPhase {
 		// by applications, so we no longer roll back, but rather just throw an exception, and make sure that
 		// the transaction cannot be committed.
 		if (tx != null) {
-			LogicAfterCommitEvent evt = new LogicAfterCommitEvent(failedLogicRunner.getContext(), CommitFailure.CONSTRAINTFAILURE);
-			GlobalLogicEventHandler.getGlobalLogicListenerHandler().fireEvent(evt);
+			if (GlobalLogicEventHandler.getGlobalLogicListenerHandler().hasLogicListeners(EventType.AFTER_COMMIT)) {
+				LogicAfterCommitEvent evt = new LogicAfterCommitEvent(failedLogicRunner.getContext(), CommitFailure.CONSTRAINTFAILURE);
+				GlobalLogicEventHandler.getGlobalLogicListenerHandler().fireEvent(evt);
+			}
 
 			// We want to guarantee that this transaction will not get committed, even if the exception we're about
 			// to throw gets buried by some code somewhere. So we register a Synchronization with the transaction,
@@ -0,0 +1,165 @@
+package com.autobizlogic.abl.engine.phase;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hibernate.FlushMode;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.impl.SessionFactoryImpl;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.proxy.HibernateProxy;
+import org.hibernate.proxy.LazyInitializer;
+
+import com.autobizlogic.abl.config.LogicConfiguration;
+import com.autobizlogic.abl.config.LogicConfiguration.PropertyName;
+import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.engine.LogicRunner;
+import com.autobizlogic.abl.metadata.MetaEntity;
+import com.autobizlogic.abl.metadata.MetaRole;
+import com.autobizlogic.abl.rule.LogicGroup;
+import com.autobizlogic.abl.rule.RuleManager;
+import com.autobizlogic.abl.session.LogicTransactionContext;
+import com.autobizlogic.abl.session.LogicWorkQueue;
+import com.autobizlogic.abl.util.LogicLogger;
+import com.autobizlogic.abl.util.LogicLogger.LoggerName;
+
+/**
+ * Loads the parents of the objects about to be processed, before the LogicRunners are executed.
+ * <p/>
+ * When a child is adjusting its parents (see AdjustAllParents), or reading a parent attribute, it
+ * navigates to the parent, which, for a lazy relationship, means initializing a proxy and therefore
+ * executing a query. When many children are inserted or updated in the same transaction, this
+ * results in one query per parent. This class instead collects, for all the LogicRunners of an
+ * iteration, the uninitialized parents (current and prior) and loads them with one query per parent entity,
+ * so that the proxies can later be initialized from the session.
+ * <p/>
+ * Only the relationships that are used by the logic are considered: those for which the parent
+ * has a sum, count or min/max, and those through which the child's logic reads parent attributes.
+ * <p/>
+ * This is turned on with the prefetchParents configuration property.
+ */
+public class ParentPrefetcher {
+
+	/**
+	 * The maximum number of primary keys in one query.
+	 */
+	private static final int BATCH_SIZE = 500;
+
+	private static final LogicLogger _logger = LogicLogger.getLogger(LoggerName.PERSISTENCE);
+
+	/**
+	 * Whether the prefetching of parents has been turned on in the configuration.
+	 */
+	public static boolean isEnabled() {
+		String prop = LogicConfiguration.getInstance().getProperty(PropertyName.PREFETCH_PARENTS);
+		return "true".equalsIgnoreCase(prop);
+	}
+
+	/**
+	 * Load the parents of the first numRunners LogicRunners in the given queue.
+	 */
+	public static void prefetchParents(LogicTransactionContext context, LogicWorkQueue objectsToProcess, int numRunners) {
+		RuleManager ruleManager = RuleManager.getInstance(context.getMetaModel());
+		Map<MetaEntity, List<MetaRole>> rolesByEntity = new HashMap<MetaEntity, List<MetaRole>>();
+		Map<String, Set<Serializable>> pksByEntityName = new LinkedHashMap<String, Set<Serializable>>();
+
+		for (int i = 0; i < numRunners; i++) {
+			LogicRunner runner = objectsToProcess.get(i);
+			PersistentBean currentBean = runner.getCurrentDomainObject();
+			if (currentBean == null)
+				continue;
+			MetaEntity metaEntity = currentBean.getMetaEntity();
+			List<MetaRole> roles = rolesByEntity.get(metaEntity);
+			if (roles == null) {
+				roles = getRolesToPrefetch(metaEntity, ruleManager);
+				rolesByEntity.put(metaEntity, roles);
+			}
+			PersistentBean priorBean = runner.getPriorDomainObject();
+			for (MetaRole role : roles) {
+				addParent(currentBean.get(role.getRoleName()), pksByEntityName);
+				if (priorBean != null)
+					addParent(priorBean.get(role.getRoleName()), pksByEntityName);
+			}
+		}
+
+		Session session = context.getSession();
+		for (Map.Entry<String, Set<Serializable>> entry : pksByEntityName.entrySet())
+			loadEntities(session, entry.getKey(), entry.getValue());
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Get the roles from the given entity to its parents that the logic will navigate.
+	 */
+	private static List<MetaRole> getRolesToPrefetch(MetaEntity metaEntity, RuleManager ruleManager) {
+		List<MetaRole> roles = new ArrayList<MetaRole>();
+		LogicGroup childLogicGroup = ruleManager.getLogicGroupForEntity(metaEntity);
+		for (MetaRole role : metaEntity.getRolesFromChildToParents()) {
+			MetaRole roleToChildren = role.getOtherMetaRole();
+			LogicGroup parentLogicGroup = ruleManager.getLogicGroupForEntity(role.getOtherMetaEntity());
+			if (roleToChildren != null && parentLogicGroup != null &&
+					! parentLogicGroup.findAggregatesForRole(roleToChildren).isEmpty())
+				roles.add(role);
+			else if (childLogicGroup != null && ! childLogicGroup.getAttributesReferencedThroughRole(role).isEmpty())
+				roles.add(role);
+		}
+		return roles;
+	}
+
+	/**
+	 * If the given parent is an uninitialized proxy, record its primary key.
+	 */
+	private static void addParent(Object parent, Map<String, Set<Serializable>> pksByEntityName) {
+		if ( ! (parent instanceof HibernateProxy))
+			return;
+		LazyInitializer initializer = ((HibernateProxy)parent).getHibernateLazyInitializer();
+		if ( ! initializer.isUninitialized())
+			return;
+		Set<Serializable> pks = pksByEntityName.get(initializer.getEntityName());
+		if (pks == null) {
+			pks = new LinkedHashSet<Serializable>();
+			pksByEntityName.put(initializer.getEntityName(), pks);
+		}
+		pks.add(initializer.getIdentifier());
+	}
+
+	/**
+	 * Load the given instances into the session. The query must not cause a flush, since we are
+	 * in the middle of the logic processing.
+	 */
+	private static void loadEntities(Session session, String entityName, Set<Serializable> pks) {
+		EntityPersister persister = ((SessionFactoryImpl)session.getSessionFactory()).getEntityPersister(entityName);
+		String idName = persister.getIdentifierPropertyName();
+		if (idName == null || persister.getIdentifierType().isComponentType())
+			return;
+
+		List<Serializable> pkList = new ArrayList<Serializable>(pks);
+		for (int start = 0; start < pkList.size(); start += BATCH_SIZE) {
+			List<Serializable> batch = pkList.subList(start, Math.min(start + BATCH_SIZE, pkList.size()));
+			Query query = session.createQuery("from " + entityName + " where " + idName + " in (:pks)");
+			query.setParameterList("pks", batch);
+			query.setFlushMode(FlushMode.MANUAL);
+			query.list();
+		}
+		if (_logger.isDebugEnabled())
+			_logger.debug("Prefetched " + pkList.size() + " parent(s) of type " + entityName);
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
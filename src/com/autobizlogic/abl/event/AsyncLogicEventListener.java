@@ -1,40 +1,58 @@
 package com.autobizlogic.abl.event;
 
-import java.io.Serializable;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import org.hibernate.Transaction;
-
-import com.autobizlogic.abl.logic.LogicContext;
+import com.autobizlogic.abl.rule.AbstractAggregateRule;
+import com.autobizlogic.abl.rule.AbstractRule;
+import com.autobizlogic.abl.rule.ParentCopyRule;
 import com.autobizlogic.abl.util.LogicLogger;
 import com.autobizlogic.abl.util.LogicLogger.LoggerName;
 
 /**
- * Capture logic events in memory, in an easy-to-serialize format, up to a maximum number
- * of transactions. This is intended to be used by live transaction viewers. Transactions are kept in a queue,
- * with the oldest transactions dropping off once the queue is at capacity.
+ * Capture logic events in memory, up to a maximum number of transactions. This is intended to be used 
+ * by live transaction viewers. Transactions are kept in a ring, with the oldest transactions dropping off 
+ * once the ring is at capacity.
+ * <p/>
+ * Each transaction is captured by the thread that delivers its events, in a compact form (the names of 
+ * the rule, the entity name, the primary key and the timings of each event), without any locking. The capture
+ * of a transaction is limited to roughly MAX_TX_BYTES, estimated from a fixed size per event plus the size of
+ * the strings it owns: events beyond that are counted but not recorded.
+ * The tree of maps that is returned by getTransaction is only built when it is requested.
  */
 public class AsyncLogicEventListener implements LogicListener {
 	
 	private LogicLogger logger = LogicLogger.getLogger(LoggerName.EVENT_LISTENER);
 
 	/**
-	 * This is where we keep the currently running transactions.
+	 * The transactions currently being captured by each thread, by transaction ID.
 	 */
-	private Map<String, Map<String, Object>> transactions = Collections.synchronizedMap(new HashMap<String, Map<String, Object>>());
+	private final ThreadLocal<Map<String, TransactionCapture>> runningTransactions = 
+			new ThreadLocal<Map<String, TransactionCapture>>() {
+		@Override
+		protected Map<String, TransactionCapture> initialValue() {
+			return new HashMap<String, TransactionCapture>();
+		}
+	};
 	
 	/**
-	 * The committed transactions, with the oldest ones at the beginning.
+	 * The committed transactions. Transaction number n is in slot n % MAX_QUEUE_SIZE.
 	 */
-	private LinkedList<Map<String, Object>> committedTransactions = new LinkedList<Map<String, Object>>();
+	private final AtomicReferenceArray<TransactionCapture> committedTransactions = 
+			new AtomicReferenceArray<TransactionCapture>(MAX_QUEUE_SIZE);
+	
+	/**
+	 * The number of transactions committed so far.
+	 */
+	private final AtomicLong numCommitted = new AtomicLong();
 	
 	/**
 	 * The keys for data in the nodes
@@ -49,6 +67,7 @@ public class AsyncLogicEventListener implements LogicListener {
 	public final static String EXEC_TIME = "EXEC_TIME";
 	public final static String IDENT = "IDENT";
 	public final static String USE_CASE_NAME = "USE_CASE_NAME";
+	public final static String NUM_DROPPED_EVENTS = "NUM_DROPPED_EVENTS";
 	
 	public final static String ATTRIBUTE_NAME = "ATTRIBUTE_NAME";
 	public final static String LOGIC_METHOD_NAME = "LOGIC_METHOD_NAME";
@@ -61,6 +80,7 @@ public class AsyncLogicEventListener implements LogicListener {
 	
 	private final static int MAX_TX_AGE = 3000000; // Any transaction older than this will be considered stale and forgotten
 	private final static int MAX_QUEUE_SIZE = 100; // How many transactions we can remember
+	private final static int MAX_TX_BYTES = 256 * 1024; // Roughly how much memory can be used to capture one transaction
 	
 	/**
 	 * Get all committed transactions. The transactions
@@ -68,35 +88,32 @@ public class AsyncLogicEventListener implements LogicListener {
 	 * transaction last.
 	 */
 	public List<Map<String, Object>> getAllTransactions() {
-		cleanup();
 		LinkedList<Map<String, Object>> result = new LinkedList<Map<String, Object>>();
-		Iterator<Map<String, Object>> revIt = committedTransactions.descendingIterator();
-		while (revIt.hasNext()) {
-			Map<String, Object> tx = revIt.next();
-//		for (Map<String, Object> tx : committedTransactions) {
+		for (TransactionCapture tx : getCommittedTransactions()) {
 			Map<String, Object> entry = new HashMap<String, Object>();
-			entry.put(IDENT, tx.get(IDENT));
-			entry.put(START_TIME, tx.get(START_TIME));
-			entry.put(END_TIME, tx.get(END_TIME));
-			entry.put(EXEC_TIME, tx.get(EXEC_TIME));
-			entry.put(USE_CASE_NAME, tx.get(USE_CASE_NAME));
+			entry.put(IDENT, tx.ident);
+			entry.put(START_TIME, tx.startTime);
+			entry.put(END_TIME, tx.endTime);
+			entry.put(EXEC_TIME, tx.endTime - tx.startTime);
+			entry.put(USE_CASE_NAME, tx.useCaseName);
 			result.add(entry);
 		}
 		return result;
 	}
 	
+	/**
+	 * Get the tree of events for the given committed transaction.
+	 * @return Null if the transaction is not (or no longer) known
+	 */
 	public Map<String, Object> getTransaction(String txId) {
 		if (txId == null || txId.trim().length() == 0) {
 			logger.warn("Null txId passed for transaction");
 			return null;
 		}
 		
-		if (transactions.containsKey(txId))
-			return transactions.get(txId);
-		
-		for (Map<String, Object> tx : committedTransactions) {
-			if (txId.equals(tx.get(IDENT)))
-				return tx;
+		for (TransactionCapture tx : getCommittedTransactions()) {
+			if (txId.equals(tx.ident))
+				return tx.materialize();
 		}
 		
 		return null;
@@ -108,156 +125,278 @@ public class AsyncLogicEventListener implements LogicListener {
 	@Override
 	public void onLogicEvent(LogicEvent event) {
 		
-		Transaction tx = event.getContext().getSession().getTransaction();
-		String txKey = "" + tx.hashCode();
+		String txKey = event.getTransactionId();
+		Map<String, TransactionCapture> transactions = runningTransactions.get();
 		
 		// If this is a commit, wrap up the transaction
 		if (event.getEventType() == LogicEvent.EventType.BEFORE_COMMIT)
 			return;
 		if (event.getEventType() == LogicEvent.EventType.AFTER_COMMIT) {
-			Map<String, Object> txRoot = transactions.get(txKey);
-			if (txRoot == null) {
+			TransactionCapture tx = transactions.remove(txKey);
+			if (tx == null) {
 				logger.debug("Commit for unknown transaction was ignored");
 				return;
 			}
 			
-			txRoot.put(END_TIME, System.currentTimeMillis());
-			txRoot.put(IDENT, txKey);
-			transactions.remove(txKey);
-			queueTransaction(txRoot);
+			tx.endTime = System.currentTimeMillis();
+			queueTransaction(tx);
 			return;
 		}
 		
-		// First, do we already know about this transaction? If not, then create its root node
-		Map<String, Object> txRoot = transactions.get(txKey);
-		if (txRoot == null) {
-			txRoot = new HashMap<String, Object>();
-			txRoot.put(START_TIME, System.currentTimeMillis());
-			txRoot.put(EVENTS, new Vector<Map<String, Object>>());
-			String useCaseName = LogicContext.getCurrentUseCaseName(event.getContext().getSession(), tx);
-			if (useCaseName != null)
-				txRoot.put(USE_CASE_NAME, useCaseName);
-			transactions.put(txKey, txRoot);
+		// First, do we already know about this transaction? If not, then start capturing it
+		TransactionCapture tx = transactions.get(txKey);
+		if (tx == null) {
+			cleanup(transactions);
+			tx = new TransactionCapture(txKey, event.getUseCaseName());
+			transactions.put(txKey, tx);
 		}
 		
-		// Create the new node for the event
-		Map<String, Object> txNode = new HashMap<String, Object>();
-		txNode.put(END_TIME, System.currentTimeMillis());
-		txNode.put(EVENT_TYPE, event.getEventType().name());
-		txNode.put(TITLE, event.getTitle());
-		Serializable pk = event.getPersistentBean().getPk();
-		txNode.put(BEAN_PK, pk.toString());
-		txNode.put(BEAN_CLASS, event.getPersistentBean().getMetaEntity().getEntityName());
-		
-		txNode.put(EXEC_TIME, event.getExecutionTime());
-		txNode.put(EVENTS, new Vector<Map<String, Object>>());
-		if (event.getLogicContext() == null && (event.getEventType().equals(LogicEvent.EventType.BEFORE_COMMIT) || 
-				event.getEventType().equals(LogicEvent.EventType.AFTER_COMMIT)))
-			return;
-		if (event.getLogicContext() == null)
-			throw new RuntimeException("No LogicContext");
-		int nestLevel = event.getLogicContext().getLogicNestLevel();
-		
-		// Find where this new node should go
-		int lvl = 0;
-		Map<String, Object> node = txRoot;
-		while (lvl < nestLevel) {
-			@SuppressWarnings("unchecked")
-			Vector<Map<String, Object>> events = (Vector<Map<String, Object>>)node.get(EVENTS);
-			if (events.isEmpty())
-				throw new RuntimeException("Error in transaction levels");
-			
-			node = events.lastElement();
-			lvl++;
-		}
-		@SuppressWarnings("unchecked")
-		Vector<Map<String, Object>> events = (Vector<Map<String, Object>>)node.get(EVENTS);
-		events.add(txNode);		
-
-		// Event-specific details
-		switch(event.eventType) {
-			case AFTER_ACTION : {
-				LogicAfterActionEvent evt = (LogicAfterActionEvent)event;
-				txNode.put(ATTRIBUTE_NAME, evt.getActionRule().getBeanAttributeName());
-				txNode.put(LOGIC_METHOD_NAME, evt.getActionRule().getLogicMethodName());
-				break;
-			}
-			case AFTER_AGGREGATE : {
-				LogicAfterAggregateEvent evt = (LogicAfterAggregateEvent)event;
-				txNode.put(ATTRIBUTE_NAME, evt.getAggregateRule().getBeanAttributeName());
-				txNode.put(LOGIC_METHOD_NAME, evt.getAggregateRule().getLogicMethodName());
-				txNode.put(OLD_VALUE, evt.getOldValue());
-				txNode.put(QUALIFICATION, evt.getAggregateRule().getQualification());
-				break;
-			}
-			case AFTER_CONSTRAINT: {
-				LogicAfterConstraintEvent evt = (LogicAfterConstraintEvent)event;
-				txNode.put(ATTRIBUTE_NAME, evt.getConstraintRule().getBeanAttributeName());
-				txNode.put(LOGIC_METHOD_NAME, evt.getConstraintRule().getLogicMethodName());
-				break;
-			}
-			case AFTER_FORMULA: {
-				LogicAfterFormulaEvent evt = (LogicAfterFormulaEvent)event;
-				txNode.put(ATTRIBUTE_NAME, evt.getFormulaRule().getBeanAttributeName());
-				txNode.put(LOGIC_METHOD_NAME, evt.getFormulaRule().getLogicMethodName());
-				txNode.put(OLD_VALUE, evt.getOldValue());
-				break;
-			}
-			case AFTER_PARENT_COPY: {
-				LogicAfterParentCopyEvent evt = (LogicAfterParentCopyEvent)event;
-				txNode.put(ATTRIBUTE_NAME, evt.getParentCopyRule().getBeanAttributeName());
-				txNode.put(LOGIC_METHOD_NAME, evt.getParentCopyRule().getLogicMethodName());
-				txNode.put(CHILD_ATTRIBUTE_NAME, evt.getParentCopyRule().getChildAttributeName());
-				txNode.put(PARENT_ATTRIBUTE_NAME, evt.getParentCopyRule().getParentAttributeName());
-				txNode.put(ROLE_NAME, evt.getParentCopyRule().getRoleName());
-				break;
-			}
-			case BEFORE_ACTION: {
-				LogicBeforeActionEvent evt = (LogicBeforeActionEvent)event;
-				txNode.put(ATTRIBUTE_NAME, evt.getActionRule().getBeanAttributeName());
-				txNode.put(LOGIC_METHOD_NAME, evt.getActionRule().getLogicMethodName());
-				break;
-			}
-			case LOGIC_RUNNER : {
-				LogicRunnerEvent evt = (LogicRunnerEvent)event;
-				txNode.put(LOGIC_RUNNER_TYPE, evt.logicRunnerEventType.name());
-				break;
-			}
-			default :
-				throw new RuntimeException("Unknown event type : " + event.getEventType());
-		}
+		tx.add(event);
 	}
 
 	/**
-	 * Go over the currently running transactions and take out any that are too old.
+	 * Take out any transaction captured by the current thread that is too old.
 	 * This is to eliminate any stalled or rolled back transactions.
 	 */
-	private void cleanup() {
-		synchronized(transactions) {
-			Set<String> toRemove = new HashSet<String>();
-			for (String txKey : transactions.keySet()) {
-				Map<String, Object> txRoot = transactions.get(txKey);
-				long startTime = (Long)txRoot.get(START_TIME);
-				if (System.currentTimeMillis() - startTime > MAX_TX_AGE) {
-					logger.debug("Cleaning out stale transaction");
-					toRemove.add(txKey);
-				}
+	private void cleanup(Map<String, TransactionCapture> transactions) {
+		Iterator<TransactionCapture> it = transactions.values().iterator();
+		while (it.hasNext()) {
+			TransactionCapture tx = it.next();
+			if (System.currentTimeMillis() - tx.startTime > MAX_TX_AGE) {
+				logger.debug("Cleaning out stale transaction");
+				it.remove();
 			}
-			for (String txKey : toRemove)
-				transactions.remove(txKey);
 		}
 	}
 	
 	/**
-	 * Move a transaction record into the committedTransactions queue
+	 * Move a transaction record into the committedTransactions ring, replacing the oldest one if needed.
+	 */
+	private void queueTransaction(TransactionCapture tx) {
+		long txNum = numCommitted.getAndIncrement();
+		committedTransactions.set((int)(txNum % MAX_QUEUE_SIZE), tx);
+	}
+	
+	/**
+	 * Get the committed transactions, most recent first.
+	 */
+	private List<TransactionCapture> getCommittedTransactions() {
+		List<TransactionCapture> result = new ArrayList<TransactionCapture>();
+		long num = numCommitted.get();
+		for (long txNum = num - 1; txNum >= 0 && txNum >= num - MAX_QUEUE_SIZE; txNum--) {
+			TransactionCapture tx = committedTransactions.get((int)(txNum % MAX_QUEUE_SIZE));
+			if (tx != null && ! result.contains(tx))
+				result.add(tx);
+		}
+		return result;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * The events of one transaction. Each event is stored as one entry in each of the arrays.
+	 * An instance is only modified by the thread capturing the transaction, and is not modified
+	 * once the transaction has been queued.
+	 * <p/>
+	 * Only strings and small immutable values are kept, so that a captured transaction does not
+	 * keep the rules (and therefore their LogicGroup and logic class) alive after the logic is reloaded.
 	 */
-	private void queueTransaction(Map<String, Object> txRoot) {
-		synchronized(committedTransactions) {
-			// First clean up any old transactions if needed
-			while (committedTransactions.size() >= MAX_QUEUE_SIZE)
-				committedTransactions.removeFirst();
+	private static class TransactionCapture {
+		
+		/**
+		 * The approximate number of bytes used by one event, not counting the strings it owns.
+		 */
+		private static final int EVENT_BYTES = 96;
+		
+		private final String ident;
+		private final String useCaseName;
+		private final long startTime = System.currentTimeMillis();
+		private volatile long endTime;
+		
+		private int numEvents = 0;
+		private int numBytes = 0;
+		private int numDropped = 0;
+		
+		private byte[] eventTypes = new byte[16];
+		private String[] attributeNames = new String[16];
+		private String[] methodNames = new String[16];
+		
+		/**
+		 * The details specific to the type of event: the qualification for aggregates, the child attribute,
+		 * parent attribute and role names for parent copies, and the LogicRunnerEventType for LogicRunner events.
+		 */
+		private String[][] details = new String[16][];
+		private String[] titles = new String[16];
+		private String[] entityNames = new String[16];
+		private String[] pks = new String[16];
+		private Object[] oldValues = new Object[16];
+		private int[] nestLevels = new int[16];
+		private long[] endTimes = new long[16];
+		private long[] execTimes = new long[16];
+		
+		private TransactionCapture(String ident, String useCaseName) {
+			this.ident = ident;
+			this.useCaseName = useCaseName;
+		}
+		
+		/**
+		 * Record the given event, unless that would take the capture over MAX_TX_BYTES. The size of 
+		 * an event is estimated as EVENT_BYTES, plus the size of its title, primary key and old value.
+		 * The names of the entity, attribute and method belong to the metadata, and are not counted.
+		 */
+		private void add(LogicEvent event) {
+			String pk = String.valueOf(event.getPersistentBean().getPk());
+			String title = event.getTitle();
+			Object oldValue = null;
+			if (event.getEventType() == LogicEvent.EventType.AFTER_AGGREGATE)
+				oldValue = getCapturedValue(((LogicAfterAggregateEvent)event).getOldValue());
+			else if (event.getEventType() == LogicEvent.EventType.AFTER_FORMULA)
+				oldValue = getCapturedValue(((LogicAfterFormulaEvent)event).getOldValue());
+			
+			int eventBytes = EVENT_BYTES + 2 * pk.length();
+			if (title != null)
+				eventBytes += 2 * title.length();
+			if (oldValue instanceof String)
+				eventBytes += 2 * ((String)oldValue).length();
+			if (numBytes + eventBytes > MAX_TX_BYTES) {
+				numDropped++;
+				return;
+			}
+			if (numEvents == eventTypes.length)
+				grow();
+			
+			int i = numEvents;
+			eventTypes[i] = (byte)event.getEventType().ordinal();
+			titles[i] = title;
+			entityNames[i] = event.getPersistentBean().getMetaEntity().getEntityName();
+			pks[i] = pk;
+			oldValues[i] = oldValue;
+			nestLevels[i] = event.getLogicNestLevel();
+			endTimes[i] = System.currentTimeMillis();
+			execTimes[i] = event.getExecutionTime();
+			switch(event.getEventType()) {
+				case AFTER_ACTION : setRule(i, ((LogicAfterActionEvent)event).getActionRule()); break;
+				case BEFORE_ACTION : setRule(i, ((LogicBeforeActionEvent)event).getActionRule()); break;
+				case AFTER_CONSTRAINT : setRule(i, ((LogicAfterConstraintEvent)event).getConstraintRule()); break;
+				case AFTER_FORMULA : setRule(i, ((LogicAfterFormulaEvent)event).getFormulaRule()); break;
+				case AFTER_PARENT_COPY : {
+					ParentCopyRule rule = ((LogicAfterParentCopyEvent)event).getParentCopyRule();
+					setRule(i, rule);
+					details[i] = new String[]{rule.getChildAttributeName(), rule.getParentAttributeName(), rule.getRoleName()};
+					break;
+				}
+				case AFTER_AGGREGATE : {
+					AbstractAggregateRule rule = ((LogicAfterAggregateEvent)event).getAggregateRule();
+					setRule(i, rule);
+					details[i] = new String[]{rule.getQualification()};
+					break;
+				}
+				case LOGIC_RUNNER : 
+					details[i] = new String[]{((LogicRunnerEvent)event).logicRunnerEventType.name()}; 
+					break;
+				default :
+					throw new RuntimeException("Unknown event type : " + event.getEventType());
+			}
+			numEvents++;
+			numBytes += eventBytes;
+		}
+		
+		private void setRule(int i, AbstractRule rule) {
+			attributeNames[i] = rule.getBeanAttributeName();
+			methodNames[i] = rule.getLogicMethodName();
+		}
+		
+		/**
+		 * Numbers and booleans are kept as they are, anything else is kept as a string.
+		 */
+		private static Object getCapturedValue(Object value) {
+			if (value == null || value instanceof Number || value instanceof Boolean)
+				return value;
+			return String.valueOf(value);
+		}
+		
+		private void grow() {
+			int newSize = eventTypes.length * 2;
+			eventTypes = Arrays.copyOf(eventTypes, newSize);
+			attributeNames = Arrays.copyOf(attributeNames, newSize);
+			methodNames = Arrays.copyOf(methodNames, newSize);
+			details = Arrays.copyOf(details, newSize);
+			titles = Arrays.copyOf(titles, newSize);
+			entityNames = Arrays.copyOf(entityNames, newSize);
+			pks = Arrays.copyOf(pks, newSize);
+			oldValues = Arrays.copyOf(oldValues, newSize);
+			nestLevels = Arrays.copyOf(nestLevels, newSize);
+			endTimes = Arrays.copyOf(endTimes, newSize);
+			execTimes = Arrays.copyOf(execTimes, newSize);
+		}
+		
+		/**
+		 * Build the tree of nodes for this transaction. Each event is placed under the last event
+		 * of the level above its own nesting level.
+		 */
+		private Map<String, Object> materialize() {
+			Map<String, Object> txRoot = new HashMap<String, Object>();
+			txRoot.put(START_TIME, startTime);
+			txRoot.put(END_TIME, endTime);
+			txRoot.put(IDENT, ident);
+			txRoot.put(EVENTS, new Vector<Map<String, Object>>());
+			if (useCaseName != null)
+				txRoot.put(USE_CASE_NAME, useCaseName);
+			if (numDropped > 0)
+				txRoot.put(NUM_DROPPED_EVENTS, numDropped);
 			
-			committedTransactions.add(txRoot);
+			for (int i = 0; i < numEvents; i++) {
+				Map<String, Object> node = txRoot;
+				for (int lvl = 0; lvl < nestLevels[i]; lvl++) {
+					@SuppressWarnings("unchecked")
+					Vector<Map<String, Object>> events = (Vector<Map<String, Object>>)node.get(EVENTS);
+					if (events.isEmpty())
+						break;
+					node = events.lastElement();
+				}
+				@SuppressWarnings("unchecked")
+				Vector<Map<String, Object>> events = (Vector<Map<String, Object>>)node.get(EVENTS);
+				events.add(createNode(i));
+			}
+			return txRoot;
+		}
+		
+		private Map<String, Object> createNode(int i) {
+			LogicEvent.EventType eventType = LogicEvent.EventType.values()[eventTypes[i]];
+			Map<String, Object> txNode = new HashMap<String, Object>();
+			txNode.put(END_TIME, endTimes[i]);
+			txNode.put(EVENT_TYPE, eventType.name());
+			txNode.put(TITLE, titles[i]);
+			txNode.put(BEAN_PK, pks[i]);
+			txNode.put(BEAN_CLASS, entityNames[i]);
+			txNode.put(EXEC_TIME, execTimes[i]);
+			txNode.put(EVENTS, new Vector<Map<String, Object>>());
+
+			// Event-specific details
+			if (eventType != LogicEvent.EventType.LOGIC_RUNNER) {
+				txNode.put(ATTRIBUTE_NAME, attributeNames[i]);
+				txNode.put(LOGIC_METHOD_NAME, methodNames[i]);
+			}
+			switch(eventType) {
+				case AFTER_AGGREGATE :
+					txNode.put(OLD_VALUE, oldValues[i]);
+					txNode.put(QUALIFICATION, details[i][0]);
+					break;
+				case AFTER_FORMULA:
+					txNode.put(OLD_VALUE, oldValues[i]);
+					break;
+				case AFTER_PARENT_COPY:
+					txNode.put(CHILD_ATTRIBUTE_NAME, details[i][0]);
+					txNode.put(PARENT_ATTRIBUTE_NAME, details[i][1]);
+					txNode.put(ROLE_NAME, details[i][2]);
+					break;
+				case LOGIC_RUNNER :
+					txNode.put(LOGIC_RUNNER_TYPE, details[i][0]);
+					break;
+				default :
+					break;
+			}
+			return txNode;
 		}
 	}
 
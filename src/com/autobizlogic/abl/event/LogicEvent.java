@@ -1,6 +1,7 @@
 package com.autobizlogic.abl.event;
 
 import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.data.hibernate.HibPersistentBeanFactory;
 import com.autobizlogic.abl.logic.LogicContext;
 import com.autobizlogic.abl.session.LogicTransactionContext;
 
@@ -23,6 +24,9 @@ public class LogicEvent {
 	protected EventType eventType;
 	protected PersistentBean persistentBean;
 	protected String title;
+	protected String transactionId;
+	protected String useCaseName;
+	protected int logicNestLevel;
 	
 	/**
 	 * How long this event, and any children events, took to execute.
@@ -64,6 +68,51 @@ public class LogicEvent {
 	public void setExecutionTime(long executionTime) {
 		this.executionTime = executionTime;
 	}
+	
+	/**
+	 * Get a (relatively) unique ID for the transaction in which this event occurred.
+	 */
+	public String getTransactionId() {
+		if (transactionId == null && context != null)
+			return "" + context.getSession().getTransaction().hashCode();
+		return transactionId;
+	}
+	
+	/**
+	 * Get the use case name of the transaction in which this event occurred, if any.
+	 */
+	public String getUseCaseName() {
+		if (context != null)
+			return context.getUseCaseName();
+		return useCaseName;
+	}
+	
+	/**
+	 * Get the depth of the logic execution when this event occurred: 0 for an object modified by the
+	 * application, 1 for an object modified by its logic, and so on.
+	 */
+	public int getLogicNestLevel() {
+		if (logicContext != null)
+			return logicContext.getLogicNestLevel();
+		return logicNestLevel;
+	}
+	
+	/**
+	 * Internal method -- prepare this event to be handed to another thread, where the transaction
+	 * may be over by the time the event is delivered. The transaction ID, use case name and nest level
+	 * are recorded, the bean is replaced by a detached copy of its attributes (see 
+	 * HibPersistentBeanFactory.detachPersistentBean), and the references to the transaction context
+	 * and the logic context are dropped: getContext and getLogicContext then return null.
+	 */
+	public void detach() {
+		transactionId = getTransactionId();
+		useCaseName = getUseCaseName();
+		logicNestLevel = getLogicNestLevel();
+		if (persistentBean != null)
+			persistentBean = HibPersistentBeanFactory.detachPersistentBean(persistentBean);
+		context = null;
+		logicContext = null;
+	}
 
 	@Override
 	public String toString() {
@@ -2,6 +2,8 @@ package com.autobizlogic.abl.event;
 
 import java.util.List;
 
+import com.autobizlogic.abl.event.LogicEvent.EventType;
+
 /**
  * The public interface for the objects that handle logic event listeners.
  */
@@ -13,6 +15,12 @@ public interface LogicListenerHandler {
 	 */
 	public void addLogicListener(LogicListener listener);
 	
+	/**
+	 * Register a listener that will only be notified of the given types of events.
+	 * If no type is given, the listener is notified of all events.
+	 */
+	public void addLogicListener(LogicListener listener, EventType... eventTypes);
+	
 	/**
 	 * Get the current list of listeners. The returned list is read-only.
 	 * @return
@@ -36,6 +44,12 @@ public interface LogicListenerHandler {
 	 */
 	public boolean hasLogicListenerOfClass(Class<?> listenerClass);
 	
+	/**
+	 * Check whether at least one listener is interested in the given type of event. Events of a type
+	 * for which this returns false need not be created.
+	 */
+	public boolean hasLogicListeners(EventType eventType);
+	
 	/**
 	 * Internal method -- fire an event. Do not use.
 	 */
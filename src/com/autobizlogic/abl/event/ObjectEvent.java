@@ -65,6 +65,15 @@ public class ObjectEvent {
 		return currentValues;
 	}
 	
+	/**
+	 * Internal method -- replace the state of the entity by a detached copy, which can be used
+	 * once the session is gone.
+	 */
+	/* package */ void detach() {
+		if (currentValues != null)
+			currentValues = HibPersistentBeanFactory.detachPersistentBean(currentValues);
+	}
+	
 	///////////////////////////////////////////////////////////////////////////////////////
 
 	@Override
@@ -99,6 +99,15 @@ public class TransactionSummary {
 		objectEvents.add(objectEvent);
 	}
 	
+	/**
+	 * Internal method -- prepare this summary to be handed to another thread, by replacing the state
+	 * of all the objects by detached copies.
+	 */
+	public void detach() {
+		for (ObjectEvent objectEvent : objectEvents)
+			objectEvent.detach();
+	}
+	
 	@SuppressWarnings("unused")
 	private final static String SVN_ID = "$Id: Version 2.1.5 Build 0602 Date 2012-04-28-14-13  TransactionSummary.java 231 2011-12-29 08:34:50Z max@automatedbusinesslogic.com $";
 }
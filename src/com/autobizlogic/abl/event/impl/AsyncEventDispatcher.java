@@ -0,0 +1,305 @@
+package com.autobizlogic.abl.event.impl;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.autobizlogic.abl.config.LogicConfiguration;
+import com.autobizlogic.abl.config.LogicConfiguration.PropertyName;
+import com.autobizlogic.abl.util.LogicLogger;
+import com.autobizlogic.abl.util.LogicLogger.LoggerName;
+
+/**
+ * Delivers logic events and transaction summaries to their listeners on a separate thread, so that
+ * slow listeners do not make the transactions longer. This is turned on with the asyncEventDelivery
+ * configuration property.
+ * <p/>
+ * The deliveries are kept in a ring buffer, whose size is set by the asyncEventBufferSize property,
+ * and which is allocated once. When the buffer is full, the asyncEventOverflowPolicy property
+ * determines what happens:<ul>
+ * <li>block: the thread submitting the delivery waits until there is room (this is the default)</li>
+ * <li>drop: the delivery is discarded</li>
+ * <li>sample: once the buffer is half full, only one delivery out of SAMPLE_RATE is kept, the others
+ * are discarded</li>
+ * </ul>
+ * Payloads are handed to another thread, and must therefore not be modified once they have been submitted.
+ * <p/>
+ * The dispatcher's thread runs until shutdown is called, which happens automatically when the last
+ * session factory configured with HibernateConfiguration is closed. Applications that register their
+ * session factory otherwise should call shutdown themselves, e.g. when the web application is stopped,
+ * so that the thread (and therefore the class loader) is not left behind.
+ */
+public class AsyncEventDispatcher {
+
+	public enum OverflowPolicy {
+		BLOCK,
+		DROP,
+		SAMPLE
+	}
+	
+	/**
+	 * The object that delivers a payload to the listeners, on the dispatcher's thread.
+	 */
+	public interface Receiver {
+		public void receive(Object payload);
+	}
+
+	/**
+	 * With the sample policy, the proportion of deliveries that are kept once the buffer is half full.
+	 */
+	private static final int SAMPLE_RATE = 10;
+	
+	/**
+	 * How long stop waits for the delivery in progress, in milliseconds.
+	 */
+	private static final long STOP_TIMEOUT = 5000;
+
+	private static volatile AsyncEventDispatcher instance;
+
+	private final Receiver[] receivers;
+	private final Object[] payloads;
+	private final OverflowPolicy overflowPolicy;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	
+	/**
+	 * The index of the oldest delivery in the buffer, and the number of deliveries in the buffer.
+	 */
+	private int head = 0;
+	private int count = 0;
+	
+	private long numSubmitted = 0;
+	private long numDropped = 0;
+	
+	private boolean stopped = false;
+	
+	private final Thread consumerThread;
+
+	private static final LogicLogger _logger = LogicLogger.getLogger(LoggerName.EVENT_LISTENER);
+
+	/**
+	 * Whether asynchronous delivery has been turned on in the configuration.
+	 */
+	public static boolean isEnabled() {
+		String prop = LogicConfiguration.getInstance().getProperty(PropertyName.ASYNC_EVENT_DELIVERY);
+		return "true".equalsIgnoreCase(prop);
+	}
+
+	/**
+	 * Get the dispatcher, creating it (and starting its thread) if necessary.
+	 */
+	public static AsyncEventDispatcher getInstance() {
+		if (instance == null) {
+			synchronized(AsyncEventDispatcher.class) {
+				if (instance == null)
+					instance = new AsyncEventDispatcher(getBufferSize(), getOverflowPolicy());
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Stop the dispatcher, if it has been started. A new dispatcher will be started if getInstance
+	 * is called again.
+	 */
+	public static void shutdown() {
+		AsyncEventDispatcher dispatcher;
+		synchronized(AsyncEventDispatcher.class) {
+			dispatcher = instance;
+			instance = null;
+		}
+		if (dispatcher != null)
+			dispatcher.stop();
+	}
+
+	private AsyncEventDispatcher(int bufferSize, OverflowPolicy overflowPolicy) {
+		receivers = new Receiver[bufferSize];
+		payloads = new Object[bufferSize];
+		this.overflowPolicy = overflowPolicy;
+		consumerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, "ABL event delivery");
+		consumerThread.setDaemon(true);
+		consumerThread.start();
+	}
+
+	/**
+	 * Queue the given payload for delivery by the given receiver. If this is called from a listener,
+	 * i.e. on the dispatcher's thread, the payload is delivered immediately.
+	 */
+	public void submit(Receiver receiver, Object payload) {
+		if (Thread.currentThread() == consumerThread) {
+			receiver.receive(payload);
+			return;
+		}
+		
+		lock.lock();
+		try {
+			if (stopped) {
+				drop(payload);
+				return;
+			}
+			numSubmitted++;
+			if (overflowPolicy == OverflowPolicy.SAMPLE && count >= payloads.length / 2 && 
+					numSubmitted % SAMPLE_RATE != 0) {
+				drop(payload);
+				return;
+			}
+			while (count == payloads.length) {
+				if (overflowPolicy != OverflowPolicy.BLOCK || stopped) {
+					drop(payload);
+					return;
+				}
+				notFull.awaitUninterruptibly();
+			}
+			int tail = (head + count) % payloads.length;
+			receivers[tail] = receiver;
+			payloads[tail] = payload;
+			count++;
+			notEmpty.signal();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Stop the dispatcher's thread. The deliveries that have not been made yet are discarded,
+	 * as are the deliveries submitted after this, and threads waiting for room in the buffer are released.
+	 * This waits for the delivery in progress, if any, to finish.
+	 */
+	public void stop() {
+		lock.lock();
+		try {
+			if (stopped)
+				return;
+			stopped = true;
+			numDropped += count;
+			for (int i = 0; i < payloads.length; i++) {
+				receivers[i] = null;
+				payloads[i] = null;
+			}
+			count = 0;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+		
+		if (Thread.currentThread() == consumerThread)
+			return;
+		try {
+			consumerThread.join(STOP_TIMEOUT);
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		if (consumerThread.isAlive()) {
+			consumerThread.interrupt();
+			if (_logger.isWarnEnabled())
+				_logger.warn("Event delivery thread did not stop within " + STOP_TIMEOUT + "ms -- it has been interrupted");
+		}
+	}
+	
+	/**
+	 * Get the number of deliveries that have been discarded because the buffer was full,
+	 * or because the dispatcher was stopped.
+	 */
+	public long getNumDropped() {
+		lock.lock();
+		try {
+			return numDropped;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	private void drop(Object payload) {
+		numDropped++;
+		if (_logger.isDebugEnabled())
+			_logger.debug("Event delivery buffer is full or stopped -- dropped " + payload);
+	}
+
+	/**
+	 * The loop run by the dispatcher's thread, until the dispatcher is stopped.
+	 */
+	private void consume() {
+		while (true) {
+			Receiver receiver;
+			Object payload;
+			lock.lock();
+			try {
+				while (count == 0 && ! stopped) {
+					try {
+						notEmpty.await();
+					}
+					catch(InterruptedException ex) {
+						// Only stop interrupts this thread, so we check whether we should go on
+					}
+				}
+				if (stopped)
+					return;
+				receiver = receivers[head];
+				payload = payloads[head];
+				receivers[head] = null;
+				payloads[head] = null;
+				head = (head + 1) % payloads.length;
+				count--;
+				notFull.signal();
+			}
+			finally {
+				lock.unlock();
+			}
+			
+			try {
+				receiver.receive(payload);
+			}
+			catch(Exception ex) {
+				_logger.error("Exception while delivering " + payload + " to listeners", ex);
+			}
+		}
+	}
+
+	private static int getBufferSize() {
+		String sizeStr = LogicConfiguration.getInstance().getProperty(PropertyName.ASYNC_EVENT_BUFFER_SIZE);
+		try {
+			int size = Integer.valueOf(sizeStr.trim());
+			if (size < 1)
+				throw new RuntimeException("Buffer size must be at least 1");
+			return size;
+		}
+		catch(Exception ex) {
+			throw new RuntimeException("ABL configuration parameter " + 
+					PropertyName.ASYNC_EVENT_BUFFER_SIZE.getName() + " has an invalid value.");
+		}
+	}
+
+	private static OverflowPolicy getOverflowPolicy() {
+		String policyStr = LogicConfiguration.getInstance().getProperty(PropertyName.ASYNC_EVENT_OVERFLOW_POLICY);
+		try {
+			return OverflowPolicy.valueOf(policyStr.trim().toUpperCase());
+		}
+		catch(Exception ex) {
+			throw new RuntimeException("ABL configuration parameter " + 
+					PropertyName.ASYNC_EVENT_OVERFLOW_POLICY.getName() + " has an invalid value.");
+		}
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -1,8 +1,5 @@
 package com.autobizlogic.abl.event.impl;
 
-import org.hibernate.Transaction;
-
-import com.autobizlogic.abl.logic.LogicContext;
 import com.autobizlogic.abl.event.LogicEvent;
 import com.autobizlogic.abl.event.LogicListener;
 
@@ -15,10 +12,8 @@ public class ConsoleLogListener implements LogicListener {
 
 	@Override
 	public void onLogicEvent(LogicEvent event) {
-		Transaction tx = event.getContext().getSession().getTransaction();
-		System.out.print("Tx " + tx.hashCode() + " ");
-		LogicContext logicContext = event.getLogicContext();
-		int depth = logicContext.getLogicNestLevel();
+		System.out.print("Tx " + event.getTransactionId() + " ");
+		int depth = event.getLogicNestLevel();
 		for (int i = 0; i < depth; i++) {
 			System.out.print("--->");
 		}
@@ -1,61 +1,156 @@
 package com.autobizlogic.abl.event.impl;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Set;
-import java.util.Vector;
 
 import com.autobizlogic.abl.event.LogicEvent;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
 import com.autobizlogic.abl.event.LogicListener;
 import com.autobizlogic.abl.event.LogicListenerHandler;
 
 /**
- * Handles logic listeners. This class is instantiated by GlobalLogicEventHandler, and
- * should normally not be instantiated by anyone else.
+ * Keeps the registered listeners in an array that is replaced, never modified, whenever a listener
+ * is added or removed. Events are therefore dispatched without taking any lock. The number of listeners
+ * for each type of event is kept along with the array, so that the code raising an event can
+ * check hasLogicListeners before creating it.
  */
 public class LogicListenerHandlerImpl implements LogicListenerHandler {
 	
-	private final static List<LogicListener> listeners = Collections.synchronizedList(new Vector<LogicListener>());
+	private static volatile Listeners listeners = new Listeners(new Registration[0]);
 	
 	@Override
 	public void addLogicListener(LogicListener listener) {
-		listeners.add(listener);
+		addRegistration(new Registration(listener, EnumSet.allOf(EventType.class)));
+	}
+	
+	@Override
+	public void addLogicListener(LogicListener listener, EventType... eventTypes) {
+		if (eventTypes == null || eventTypes.length == 0) {
+			addLogicListener(listener);
+			return;
+		}
+		addRegistration(new Registration(listener, EnumSet.copyOf(Arrays.asList(eventTypes))));
 	}
 	
 	@Override
 	public List<LogicListener> getLogicListeners() {
-		return Collections.unmodifiableList(listeners);
+		Registration[] registrations = listeners.registrations;
+		List<LogicListener> result = new ArrayList<LogicListener>(registrations.length);
+		for (Registration registration : registrations)
+			result.add(registration.listener);
+		return Collections.unmodifiableList(result);
 	}
 	
 	@Override
 	public void removeLogicListener(LogicListener listener) {
-		listeners.remove(listener);
+		synchronized(LogicListenerHandlerImpl.class) {
+			List<Registration> registrations = new ArrayList<Registration>(Arrays.asList(listeners.registrations));
+			for (int i = 0; i < registrations.size(); i++) {
+				if (registrations.get(i).listener.equals(listener)) {
+					registrations.remove(i);
+					listeners = new Listeners(registrations.toArray(new Registration[registrations.size()]));
+					return;
+				}
+			}
+		}
 	}
 	
 	@Override
 	public void removeLogicListenersOfClass(Class<?> listenerClass) {
-		Set<LogicListener> toRemove = new HashSet<LogicListener>();
-		for (LogicListener listener : listeners) {
-			if (listenerClass.isAssignableFrom(listener.getClass()))
-				toRemove.add(listener);
+		synchronized(LogicListenerHandlerImpl.class) {
+			List<Registration> registrations = new ArrayList<Registration>();
+			for (Registration registration : listeners.registrations) {
+				if ( ! listenerClass.isAssignableFrom(registration.listener.getClass()))
+					registrations.add(registration);
+			}
+			listeners = new Listeners(registrations.toArray(new Registration[registrations.size()]));
 		}
-		listeners.removeAll(toRemove);
 	}
 	
 	@Override
 	public boolean hasLogicListenerOfClass(Class<?> listenerClass) {
-		for (LogicListener listener : listeners) {
-			if (listenerClass.isAssignableFrom(listener.getClass()))
+		for (Registration registration : listeners.registrations) {
+			if (listenerClass.isAssignableFrom(registration.listener.getClass()))
 				return true;
 		}
 		return false;
 	}
 	
+	@Override
+	public boolean hasLogicListeners(EventType eventType) {
+		return listeners.counts[eventType.ordinal()] > 0;
+	}
+	
+	/**
+	 * Notify the listeners of the given event. If asynchronous delivery is turned on, the event
+	 * is detached and handed to the AsyncEventDispatcher.
+	 */
 	@Override
 	public void fireEvent(LogicEvent evt) {
-		for (LogicListener listener : listeners) {
-			listener.onLogicEvent(evt);
+		if (AsyncEventDispatcher.isEnabled()) {
+			evt.detach();
+			AsyncEventDispatcher.getInstance().submit(eventReceiver, evt);
+			return;
+		}
+		deliverEvent(evt);
+	}
+	
+	///////////////////////////////////////////////////////////////////////////////////////
+	
+	private static final AsyncEventDispatcher.Receiver eventReceiver = new AsyncEventDispatcher.Receiver() {
+		@Override
+		public void receive(Object payload) {
+			deliverEvent((LogicEvent)payload);
+		}
+	};
+
+	private static void deliverEvent(LogicEvent evt) {
+		EventType eventType = evt.getEventType();
+		for (Registration registration : listeners.registrations) {
+			if (eventType == null || registration.eventTypes.contains(eventType))
+				registration.listener.onLogicEvent(evt);
+		}
+	}
+
+	private static void addRegistration(Registration registration) {
+		synchronized(LogicListenerHandlerImpl.class) {
+			Registration[] oldRegistrations = listeners.registrations;
+			Registration[] registrations = Arrays.copyOf(oldRegistrations, oldRegistrations.length + 1);
+			registrations[oldRegistrations.length] = registration;
+			listeners = new Listeners(registrations);
+		}
+	}
+	
+	/**
+	 * A listener, and the types of events it wants to receive.
+	 */
+	private static class Registration {
+		private final LogicListener listener;
+		private final Set<EventType> eventTypes;
+		
+		private Registration(LogicListener listener, Set<EventType> eventTypes) {
+			this.listener = listener;
+			this.eventTypes = eventTypes;
+		}
+	}
+	
+	/**
+	 * An immutable snapshot of the registrations, with the number of listeners for each event type.
+	 */
+	private static class Listeners {
+		private final Registration[] registrations;
+		private final int[] counts = new int[EventType.values().length];
+		
+		private Listeners(Registration[] registrations) {
+			this.registrations = registrations;
+			for (Registration registration : registrations) {
+				for (EventType eventType : registration.eventTypes)
+					counts[eventType.ordinal()]++;
+			}
 		}
 	}
 
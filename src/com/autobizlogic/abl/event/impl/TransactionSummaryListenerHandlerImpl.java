@@ -68,14 +68,35 @@ public class TransactionSummaryListenerHandlerImpl implements TransactionSummary
 	
 	/**
 	 * Internal method -- publish a transaction summary. Do not use.
+	 * If asynchronous delivery is turned on, the summary is detached and handed to the AsyncEventDispatcher.
 	 */
 	@Override
 	public void publishSummary(TransactionSummary summary) {
 		if (listeners.size() == 0)
 			return;
 		
-		for (TransactionSummaryListener listener : listeners) {
-			listener.transactionCommitted(summary);
+		if (AsyncEventDispatcher.isEnabled()) {
+			summary.detach();
+			AsyncEventDispatcher.getInstance().submit(summaryReceiver, summary);
+			return;
+		}
+		deliverSummary(summary);
+	}
+	
+	///////////////////////////////////////////////////////////////////////////////////////
+	
+	private final AsyncEventDispatcher.Receiver summaryReceiver = new AsyncEventDispatcher.Receiver() {
+		@Override
+		public void receive(Object payload) {
+			deliverSummary((TransactionSummary)payload);
+		}
+	};
+	
+	private void deliverSummary(TransactionSummary summary) {
+		synchronized(listeners) {
+			for (TransactionSummaryListener listener : listeners) {
+				listener.transactionCommitted(summary);
+			}
 		}
 	}
 
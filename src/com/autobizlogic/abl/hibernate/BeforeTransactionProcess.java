@@ -1,8 +1,6 @@
 package com.autobizlogic.abl.hibernate;
 
 import java.sql.Timestamp;
-import java.util.HashSet;
-import java.util.List;
 import java.util.Set;
 
 import org.hibernate.Session;
@@ -17,12 +15,18 @@ import com.autobizlogic.abl.hibernate.LogicEventListener.QueuedEventPhase;
 import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.engine.phase.Actions;
+import com.autobizlogic.abl.engine.phase.AggregateAdjustmentCoalescer;
 import com.autobizlogic.abl.engine.phase.Constraints;
+import com.autobizlogic.abl.engine.phase.ParentPrefetcher;
 import com.autobizlogic.abl.event.GlobalLogicEventHandler;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
 import com.autobizlogic.abl.event.LogicAfterCommitEvent;
 import com.autobizlogic.abl.event.LogicBeforeCommitEvent;
+import com.autobizlogic.abl.event.LogicListenerHandler;
+import com.autobizlogic.abl.rule.LazyFormulaIndex;
 import com.autobizlogic.abl.session.LogicTransactionContext;
 import com.autobizlogic.abl.session.LogicTransactionManager;
+import com.autobizlogic.abl.session.LogicWorkQueue;
 import com.autobizlogic.abl.util.LogicLogger;
 import com.autobizlogic.abl.util.LogicLogger.LoggerName;
 
@@ -67,10 +71,11 @@ public class BeforeTransactionProcess implements BeforeTransactionCompletionProc
 		// If we're using dynamic logic, this is the time to refresh anything that needs to be
 		ClassLoaderManager.getInstance().checkForClassUpdate();
 
-		List<LogicRunner> objectsToProcess = context.getObjectsToProcess();
+		LogicWorkQueue objectsToProcess = context.getObjectsToProcess();
 		
 		// Now iterate over all the LogicRunners accumulated during the transaction until they're
-		// all gone.
+		// all gone. Each iteration processes the LogicRunners that were queued when it started:
+		// LogicRunners queued by these LogicRunners, or by the flush, are processed in the next iteration.
 		int numIterations = 0;
 		
 		while (! objectsToProcess.isEmpty()) {
@@ -78,29 +83,54 @@ public class BeforeTransactionProcess implements BeforeTransactionCompletionProc
 			if (numIterations > 10000)
 				throw new RuntimeException("Too many iterations in logic execution loop");
 			
-			Set<LogicRunner> processedObjects = new HashSet<LogicRunner>();
-			for (LogicRunner eachRunner : objectsToProcess) {  // invoke rules
-				
-				if (eachRunner.getVerb() == Verb.UPDATE)
-					eachRunner.update();
-				else if (eachRunner.getVerb() == Verb.INSERT) 
-					eachRunner.insert();
-				else if (eachRunner.getVerb() == Verb.DELETE)
-					eachRunner.delete();
-				else {
-					throw new LogicException("Unexpected Verb from LogicRunner: " + eachRunner.toString());
+			int generationSize = objectsToProcess.startGeneration();
+			try {
+				if (ParentPrefetcher.isEnabled())
+					ParentPrefetcher.prefetchParents(context, objectsToProcess, generationSize);
+				AggregateAdjustmentCoalescer coalescer = null;
+				if (AggregateAdjustmentCoalescer.isEnabled()) {
+					coalescer = new AggregateAdjustmentCoalescer();
+					context.setAggregateAdjustmentCoalescer(coalescer);
+				}
+				for (int i = 0; i < generationSize; i++) {  // invoke rules
+					LogicRunner eachRunner = objectsToProcess.get(i);
+					
+					if (eachRunner.getVerb() == Verb.UPDATE)
+						eachRunner.update();
+					else if (eachRunner.getVerb() == Verb.INSERT) 
+						eachRunner.insert();
+					else if (eachRunner.getVerb() == Verb.DELETE)
+						eachRunner.delete();
+					else {
+						throw new LogicException("Unexpected Verb from LogicRunner: " + eachRunner.toString());
+					}
 				}
-				processedObjects.add(eachRunner);
+				
+				// Adjust the parents whose sums and counts were accumulated during this iteration
+				if (coalescer != null)
+					coalescer.applyAdjustments(context);
+	
+				objectsToProcess.endGeneration();
+			}
+			finally {
+				// If a LogicRunner failed, do not leave the context in the middle of a generation
+				context.setAggregateAdjustmentCoalescer(null);
+				objectsToProcess.cancelGeneration();
 			}
-
-			objectsToProcess.removeAll(processedObjects);
 			
 			session.flush();  // can re-fill objectsToProcess, maybe loop
 			_logger.info("********** Flush Phase completed (Hibernate doBeforeTransactionCompletion)");
 		}
 		
-		LogicBeforeCommitEvent beforeCommitEvent = new LogicBeforeCommitEvent(context);
-		GlobalLogicEventHandler.getGlobalLogicListenerHandler().fireEvent(beforeCommitEvent);
+		// If so configured, lazy formulas that nobody has read are brought up to date before the commit rules see them
+		if (LazyFormulaIndex.isComputeAtCommitEnabled())
+			context.computeAllLazyFormulas();
+		
+		LogicListenerHandler listenerHandler = GlobalLogicEventHandler.getGlobalLogicListenerHandler();
+		if (listenerHandler.hasLogicListeners(EventType.BEFORE_COMMIT)) {
+			LogicBeforeCommitEvent beforeCommitEvent = new LogicBeforeCommitEvent(context);
+			listenerHandler.fireEvent(beforeCommitEvent);
+		}
 		
 		Set<LogicRunner> allRunners = context.getAllLogicRunners();
 		
@@ -108,9 +138,11 @@ public class BeforeTransactionProcess implements BeforeTransactionCompletionProc
 		Actions.executeAllCommitActions(allRunners);
 		Constraints.executeAllCommitConstraints(allRunners);
 		
-		LogicAfterCommitEvent evt = new LogicAfterCommitEvent(context);
-		evt.setExecutionTime(System.nanoTime() - startTime);
-		GlobalLogicEventHandler.getGlobalLogicListenerHandler().fireEvent(evt);
+		if (listenerHandler.hasLogicListeners(EventType.AFTER_COMMIT)) {
+			LogicAfterCommitEvent evt = new LogicAfterCommitEvent(context);
+			evt.setExecutionTime(System.nanoTime() - startTime);
+			listenerHandler.fireEvent(evt);
+		}
 		
 		// Now finalize the transaction summary
 		context.getTransactionSummary().setCommitTimestamp(new Timestamp(System.currentTimeMillis()));
@@ -12,6 +12,7 @@ import java.util.Set;
 import java.util.WeakHashMap;
 
 import org.hibernate.SessionFactory;
+import org.hibernate.SessionFactoryObserver;
 import org.hibernate.cfg.Configuration;
 import org.hibernate.cfg.SettingsFactory;
 import org.hibernate.event.DeleteEventListener;
@@ -22,6 +23,7 @@ import org.hibernate.impl.SessionFactoryImpl;
 
 
 import com.autobizlogic.abl.VersionPrinter;
+import com.autobizlogic.abl.event.impl.AsyncEventDispatcher;
 import com.autobizlogic.abl.util.LogicLogger;
 import com.autobizlogic.abl.util.LogicLogger.LoggerName;
 
@@ -42,10 +44,11 @@ public class HibernateConfiguration extends Configuration {
 
 	/**
 	 * This is the only method intercepted by this class. It registers all the listeners before returning the
-	 * session factory.
+	 * session factory, and arranges for ABL to be shut down when the session factory is closed.
 	 */
 	@Override
 	public SessionFactory buildSessionFactory() {
+		setSessionFactoryObserver(new ShutdownObserver(getSessionFactoryObserver()));
 		SessionFactory sessionFactory = super.buildSessionFactory();
 
 		registerSessionFactory(sessionFactory);
@@ -166,6 +169,15 @@ public class HibernateConfiguration extends Configuration {
 		return Collections.unmodifiableSet(result);
 	}
 
+	/**
+	 * Release the resources that are not tied to a session factory, e.g. the thread used for the 
+	 * asynchronous delivery of events. This gets called when the last session factory built
+	 * by this class is closed.
+	 */
+	public static void shutdown() {
+		AsyncEventDispatcher.shutdown();
+	}
+
 	private static boolean sessionFactoryIsRegistered(SessionFactory fact) {
 		synchronized(registeredSessionFactories) {
 			for (WeakReference<SessionFactory> ref : registeredSessionFactories) {
@@ -240,6 +252,38 @@ public class HibernateConfiguration extends Configuration {
 		}
 	}
 
+	/**
+	 * Calls shutdown when the last open session factory is closed, after passing the notification
+	 * on to the observer that was already set, if any.
+	 */
+	private static class ShutdownObserver implements SessionFactoryObserver {
+		
+		private SessionFactoryObserver previousObserver;
+		
+		private ShutdownObserver(SessionFactoryObserver previousObserver) {
+			this.previousObserver = previousObserver;
+		}
+
+		@Override
+		public void sessionFactoryCreated(SessionFactory factory) {
+			if (previousObserver != null)
+				previousObserver.sessionFactoryCreated(factory);
+		}
+
+		@Override
+		public void sessionFactoryClosed(SessionFactory factory) {
+			if (previousObserver != null)
+				previousObserver.sessionFactoryClosed(factory);
+			for (SessionFactory openFactory : getRegisteredSessionFactories()) {
+				if (openFactory != factory)
+					return;
+			}
+			shutdown();
+		}
+
+		private static final long serialVersionUID = 1L;
+	}
+
 	private static final long serialVersionUID = 1L;
 
 	@SuppressWarnings("unused")
@@ -1,6 +1,5 @@
 package com.autobizlogic.abl.hibernate;
 
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -164,6 +163,7 @@ public class LogicEventListener implements PostInsertEventListener, PostUpdateEv
 			
 			LogicRunner logicRunner = businessLogicFactory.createLogicRunner(context, persBean, 
 					oldBean, Verb.UPDATE, LogicSource.USER, null, null);
+			logicRunner.setDirtyProperties(anEvent.getDirtyProperties());
 			addToObjectsToProcess(logicRunner);
 			context.registerLogicRunner(logicRunner);
 		}
@@ -265,10 +265,9 @@ public class LogicEventListener implements PostInsertEventListener, PostUpdateEv
 	private static void addToObjectsToProcess(LogicRunner aLogicRunner) {
 		LogicTransactionContext context = aLogicRunner.getContext();
 
-		List<LogicRunner> objectsToProcess = context.getObjectsToProcess();
-		if (objectsToProcess.contains(aLogicRunner))
+		if (context.containsObjectToProcess(aLogicRunner))
 			log.debug("Caution - logic runner already seen");
-		objectsToProcess.add(aLogicRunner);
+		context.addObjectToProcess(aLogicRunner);
 	}
 
 	/**
@@ -50,6 +50,8 @@ public class BusinessLogicFactoryImpl implements BusinessLogicFactory {
 	 * <li>Implement this factory to choose between the latter two, based on <code>aDomainObject.attribute</code>
 	 * </ol>
 	 * 
+	 * If the logic class is declared as StatelessLogic, the same instance is returned every time.
+	 * 
 	 * @param aDomainObject Hibernate POJO instance (e.g, a PurchaseOrder bean)
 	 * @return instance of logic class (e.g., PurchaseOrderLogic) for aDomainObject (or null)
 	 */
@@ -60,6 +62,10 @@ public class BusinessLogicFactoryImpl implements BusinessLogicFactory {
 		LogicGroup logicGroup = ruleManager.getLogicGroupForEntity(objectState.getMetaEntity());
 		if (logicGroup == null)
 			return null;
+		
+		// Stateless logic classes have only one instance
+		if (logicGroup.isStateless())
+			return logicGroup.getStatelessLogicObject();
 
 		String logicClassName = logicGroup.getLogicClassName();
 		
@@ -0,0 +1,137 @@
+package com.autobizlogic.abl.logic;
+
+import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.data.ProxyFactory;
+
+/**
+ * Gives the logic methods of a stateless logic class (see the StatelessLogic annotation) access to
+ * the current bean, the old bean and the logic context. These are set by the logic engine for
+ * the duration of each call to a logic method, and are confined to the current thread.
+ * <p/>
+ * For instance:
+ * <pre>
+ * Customer customer = (Customer)StatelessLogicState.getCurrentBean();
+ * </pre>
+ */
+public class StatelessLogicState {
+
+	private static final ThreadLocal<StatelessLogicState> threadState = new ThreadLocal<StatelessLogicState>() {
+		@Override
+		protected StatelessLogicState initialValue() {
+			return new StatelessLogicState();
+		}
+	};
+
+	/**
+	 * The state for each nested call, as a stack. Logic methods can cause other logic methods to
+	 * be called, so the state must be restored when a call returns.
+	 */
+	private PersistentBean[] currentStates = new PersistentBean[8];
+	private PersistentBean[] priorStates = new PersistentBean[8];
+	private LogicContext[] logicContexts = new LogicContext[8];
+	private Object[] oldBeanProxies = new Object[8];
+	private int depth = 0;
+
+	private StatelessLogicState() {
+		// Instances are per thread
+	}
+
+	/**
+	 * Get the current bean, i.e. the persistent bean for which the logic is executing.
+	 * If the entity is a POJO, this is the bean itself, otherwise it's a Map.
+	 */
+	public static Object getCurrentBean() {
+		StatelessLogicState state = getState();
+		PersistentBean current = state.currentStates[state.depth - 1];
+		if (current == null)
+			return null;
+		if (current.isPojo())
+			return current.getBean();
+		return current;
+	}
+
+	/**
+	 * Get the old bean, i.e. the state of the persistent bean before the current transaction.
+	 * If the entity is a POJO, this is a read-only proxy, otherwise it's a Map.
+	 * @return Null if there is no old bean, e.g. for an insert.
+	 */
+	public static Object getOldBean() {
+		StatelessLogicState state = getState();
+		int idx = state.depth - 1;
+		PersistentBean prior = state.priorStates[idx];
+		if (prior == null)
+			return null;
+		if ( ! prior.isPojo())
+			return prior;
+		if (state.oldBeanProxies[idx] == null)
+			state.oldBeanProxies[idx] = ProxyFactory.getProxyForEntity(prior);
+		return state.oldBeanProxies[idx];
+	}
+
+	/**
+	 * Get the logic context for the current call.
+	 * @return Null if the logic method is called outside of the normal logic execution, e.g. for
+	 * recomputes.
+	 */
+	public static LogicContext getLogicContext() {
+		StatelessLogicState state = getState();
+		return state.logicContexts[state.depth - 1];
+	}
+
+	/**
+	 * Internal method. Set the state for a call to a logic method. Every call to this
+	 * must be matched by a call to exit, typically in a finally clause.
+	 */
+	public static void enter(PersistentBean current, PersistentBean prior, LogicContext logicContext) {
+		StatelessLogicState state = threadState.get();
+		if (state.depth == state.currentStates.length) {
+			int newSize = state.depth * 2;
+			state.currentStates = copyOf(state.currentStates, new PersistentBean[newSize]);
+			state.priorStates = copyOf(state.priorStates, new PersistentBean[newSize]);
+			state.logicContexts = copyOf(state.logicContexts, new LogicContext[newSize]);
+			state.oldBeanProxies = copyOf(state.oldBeanProxies, new Object[newSize]);
+		}
+		state.currentStates[state.depth] = current;
+		state.priorStates[state.depth] = prior;
+		state.logicContexts[state.depth] = logicContext;
+		state.oldBeanProxies[state.depth] = null;
+		state.depth++;
+	}
+
+	/**
+	 * Internal method. Restore the state to what it was before the matching call to enter.
+	 */
+	public static void exit() {
+		StatelessLogicState state = threadState.get();
+		state.depth--;
+		state.currentStates[state.depth] = null;
+		state.priorStates[state.depth] = null;
+		state.logicContexts[state.depth] = null;
+		state.oldBeanProxies[state.depth] = null;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	private static StatelessLogicState getState() {
+		StatelessLogicState state = threadState.get();
+		if (state.depth == 0)
+			throw new RuntimeException("StatelessLogicState can only be used from a logic method called " +
+					"by the logic engine, in a logic class declared as @StatelessLogic");
+		return state;
+	}
+
+	private static <T> T[] copyOf(T[] from, T[] to) {
+		System.arraycopy(from, 0, to, 0, from.length);
+		return to;
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
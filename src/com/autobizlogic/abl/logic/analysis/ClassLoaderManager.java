@@ -254,6 +254,14 @@ public class ClassLoaderManager {
 		classPool.appendClassPath(cpath);
 	}
 	
+	/**
+	 * Internal method. Get the shared ClassPool, which knows about all the class loaders
+	 * we have encountered. This is used to generate classes, see ExpressionCompiler.
+	 */
+	public ClassPool getClassPool() {
+		return classPool;
+	}
+
 	/**
 	 * Internal method. Get the CtClass for this class.
 	 * @return The CtClass for this class.
@@ -1,5 +1,6 @@
 package com.autobizlogic.abl.metadata.hibernate;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,6 +41,28 @@ public class HibMetaEntity implements MetaEntity {
 	 */
 	private Map<String, MetaRole> metaRoles;
 
+	/**
+	 * The names of all the properties. The position of a property in this array is its ordinal.
+	 * The Hibernate properties come first, in the same order as in Hibernate's state arrays,
+	 * followed by the identifier properties if Hibernate does not list them.
+	 */
+	private String[] propertyNames;
+
+	/**
+	 * The ordinal of each property, by name.
+	 */
+	private Map<String, Integer> propertyIndexes;
+
+	/**
+	 * The number of Hibernate properties, i.e. the length of Hibernate's state arrays for this entity.
+	 */
+	private int numHibernateProperties;
+
+	/**
+	 * The ordinals of the attributes and single-valued roles, in ascending order.
+	 */
+	private int[] valuePropertyIndexes;
+
 	/**
 	 * This gets set to true if we know that all meta properties have been figured out.
 	 * It allows us to take shortcuts.
@@ -182,6 +205,47 @@ public class HibMetaEntity implements MetaEntity {
 		return result;
 	}
 	
+	/**
+	 * Get the names of all the properties of this entity. The position of a property in this array
+	 * is its ordinal, as returned by getPropertyIndex. For the properties known to Hibernate, the ordinal
+	 * is the same as the index in Hibernate's state arrays (see getNumHibernateProperties).
+	 */
+	public String[] getPropertyNames() {
+		loadAllProperties();
+		return propertyNames.clone();
+	}
+
+	/**
+	 * Get the ordinal of the given property.
+	 * @return The ordinal, or -1 if this entity has no such property.
+	 */
+	public int getPropertyIndex(String name) {
+		loadAllProperties();
+		Integer idx = propertyIndexes.get(name);
+		if (idx == null)
+			return -1;
+		return idx.intValue();
+	}
+
+	/**
+	 * Get the number of properties known to Hibernate, which is the length of the state arrays
+	 * Hibernate uses for this entity. The ordinals of the remaining properties are higher than that.
+	 */
+	public int getNumHibernateProperties() {
+		loadAllProperties();
+		return numHibernateProperties;
+	}
+
+	/**
+	 * Get the ordinals of the properties that hold a value, namely the attributes and the
+	 * single-valued roles (i.e. everything except collections and components).
+	 * The returned array must not be modified.
+	 */
+	public int[] getValuePropertyIndexes() {
+		loadAllProperties();
+		return valuePropertyIndexes;
+	}
+
 	/**
 	 * Read all the properties from Hibernate metadata
 	 */
@@ -241,6 +305,29 @@ public class HibMetaEntity implements MetaEntity {
 					metaAttributes.put(pkName, ma);
 				}
 				
+				// Hibernate properties first, so that ordinals match Hibernate's state arrays
+				Set<String> otherNames = new TreeSet<String>(metaAttributes.keySet());
+				otherNames.addAll(metaRoles.keySet());
+				otherNames.removeAll(Arrays.asList(propNames));
+				numHibernateProperties = propNames.length;
+				propertyNames = new String[propNames.length + otherNames.size()];
+				System.arraycopy(propNames, 0, propertyNames, 0, propNames.length);
+				int idx = propNames.length;
+				for (String name : otherNames)
+					propertyNames[idx++] = name;
+				
+				propertyIndexes = new HashMap<String, Integer>();
+				int numValueProps = 0;
+				int[] valueIdxs = new int[propertyNames.length];
+				for (int i = 0; i < propertyNames.length; i++) {
+					propertyIndexes.put(propertyNames[i], Integer.valueOf(i));
+					MetaRole role = metaRoles.get(propertyNames[i]);
+					if (metaAttributes.containsKey(propertyNames[i]) || (role != null && ! role.isCollection()))
+						valueIdxs[numValueProps++] = i;
+				}
+				valuePropertyIndexes = new int[numValueProps];
+				System.arraycopy(valueIdxs, 0, valuePropertyIndexes, 0, numValueProps);
+				
 				allPropsRetrieved = true;					
 			}
 		}
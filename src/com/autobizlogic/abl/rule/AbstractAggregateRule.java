@@ -1,20 +1,43 @@
 package com.autobizlogic.abl.rule;
 
+import java.io.Serializable;
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import org.apache.commons.jexl2.Expression;
 import org.apache.commons.jexl2.JexlContext;
 import org.apache.commons.jexl2.JexlEngine;
+import org.hibernate.Query;
+import org.hibernate.collection.PersistentCollection;
+import org.hibernate.engine.EntityEntry;
+import org.hibernate.engine.PersistenceContext;
+import org.hibernate.engine.Status;
+import org.hibernate.impl.SessionImpl;
+import org.hibernate.persister.entity.EntityPersister;
 
 import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.data.hibernate.HibPersistentBeanFactory;
 import com.autobizlogic.abl.engine.phase.AdjustAllParents;
+import com.autobizlogic.abl.engine.phase.AggregateAdjustmentCoalescer;
 import com.autobizlogic.abl.engine.LogicRunner;
+import com.autobizlogic.abl.engine.LogicRunner.LogicProcessingState;
+import com.autobizlogic.abl.engine.LogicRunner.LogicRunnerPhase;
 import com.autobizlogic.abl.perf.PerformanceMonitor;
 import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.event.LogicAfterAggregateEvent;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
+import com.autobizlogic.abl.hibernate.HibernateSessionUtil;
+import com.autobizlogic.abl.logic.Verb;
+import com.autobizlogic.abl.metadata.MetaAttribute;
 import com.autobizlogic.abl.metadata.MetaRole;
+import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
 import com.autobizlogic.abl.session.LogicTransactionContext;
+import com.autobizlogic.abl.util.BeanUtil;
 import com.autobizlogic.abl.util.NumberUtil;
+import com.autobizlogic.abl.util.ProxyUtil;
 
 /**
  * The superclass for SumRule, CountRule and MinMaxRule.
@@ -23,6 +46,12 @@ public abstract class AbstractAggregateRule extends AbstractRule {
 
 	protected String roleName;
 	protected String qualification;
+
+	/**
+	 * The parsed qualification, or null if there is no qualification.
+	 */
+	private Expression qualificationExpression;
+
 	protected static final JexlEngine jexlEngine = new JexlEngine();
 	static {
 		jexlEngine.setCache(512);
@@ -49,8 +78,7 @@ public abstract class AbstractAggregateRule extends AbstractRule {
 		SQL				// used for large collections, or recompute
 	}
 	
-	@SuppressWarnings("unused")
-	private AggregateAlgorithm aggregateAlgorithm;
+	private AggregateAlgorithm aggregateAlgorithm = AggregateAlgorithm.ADJUST;
 
 	/**
 	 * computed based on aggregate's annotation, and recompute:
@@ -76,6 +104,7 @@ public abstract class AbstractAggregateRule extends AbstractRule {
 		fixQualification();
 
 		this.setBeanAttributeName(beanAttributeName);
+		parseQualification();
 	}
 
 	/**
@@ -88,6 +117,122 @@ public abstract class AbstractAggregateRule extends AbstractRule {
 	 */
 	public abstract void adjustedParentDomainObject(AdjustAllParents aParentAdjustments);
 
+	/**
+	 * Whether the adjustments made by this aggregate can be accumulated by an AggregateAdjustmentCoalescer
+	 * rather than applied right away. Subclasses that support this must also implement getChildContribution.
+	 */
+	public boolean isCoalescable() {
+		return false;
+	}
+
+	/**
+	 * Get the amount that the given (qualified) child contributes to this aggregate.
+	 * Only called if isCoalescable returns true.
+	 */
+	protected BigDecimal getChildContribution(PersistentBean child) {
+		throw new LogicException("Aggregate cannot be coalesced: " + this);
+	}
+
+	/**
+	 * Instead of adjusting the parent(s) right away, record in the coalescer the net change
+	 * that the child causes to this aggregate. This covers the same cases as adjustedParentDomainObject:
+	 * the child may have been inserted or deleted, may have changed parent, and its qualification or
+	 * contribution may have changed.
+	 */
+	public void accumulateAdjustments(AdjustAllParents aParentAdjustments, AggregateAdjustmentCoalescer coalescer) {
+		LogicRunner childLogicRunner = aParentAdjustments.getChildLogicRunner();
+		LogicTransactionContext context = childLogicRunner.getContext();
+		MetaRole roleToChild = getRole();
+		String roleToParentName = roleToChild.getOtherMetaRole().getRoleName();
+		PersistentBean currentChild = childLogicRunner.getCurrentDomainObject();
+
+		if (childLogicRunner.getVerb() == Verb.INSERT || childLogicRunner.getVerb() == Verb.DELETE) {
+			if ( ! runQualificationForBean(currentChild))
+				return;
+			PersistentBean parentBean = getParentBean(currentChild.get(roleToParentName), context);
+			BigDecimal contribution = getChildContribution(currentChild);
+			if (childLogicRunner.getVerb() == Verb.DELETE)
+				contribution = contribution.negate();
+			coalescer.addAdjustment(parentBean, this, contribution, childLogicRunner, roleToChild);
+			return;
+		}
+		if (childLogicRunner.getVerb() != Verb.UPDATE)
+			throw new LogicException("Unexpected Verb: " + childLogicRunner.getVerb());
+
+		PersistentBean priorChild = childLogicRunner.getPriorDomainObject();
+		Object priorParent = priorChild.get(roleToParentName);
+		Object currentParent = currentChild.get(roleToParentName);
+		if (priorParent == null && currentParent == null)
+			return;
+
+		boolean priorQual = runQualificationForBean(priorChild);
+		boolean currQual = runQualificationForBean(currentChild);
+		if ( ! priorQual && ! currQual)
+			return;
+
+		BigDecimal priorContribution = priorQual ? getChildContribution(priorChild) : BigDecimal.ZERO;
+		BigDecimal currContribution = currQual ? getChildContribution(currentChild) : BigDecimal.ZERO;
+
+		PersistentBean priorParentBean = getParentBean(priorParent, context);
+		PersistentBean currentParentBean = getParentBean(currentParent, context);
+		if (BeanUtil.beansAreEqual(role.getMetaEntity(), priorParent, currentParent)) {
+			coalescer.addAdjustment(currentParentBean, this, currContribution.subtract(priorContribution),
+					childLogicRunner, roleToChild);
+		}
+		else {
+			coalescer.addAdjustment(priorParentBean, this, priorContribution.negate(), childLogicRunner, roleToChild);
+			coalescer.addAdjustment(currentParentBean, this, currContribution, childLogicRunner, roleToChild);
+		}
+	}
+
+	/**
+	 * Apply an accumulated adjustment to the given parent, and fire the corresponding event.
+	 * @param parentBean The parent to adjust
+	 * @param delta The net amount by which the aggregate changes
+	 * @param aLogicRunner The LogicRunner on whose behalf the adjustment is made
+	 */
+	public void applyCoalescedAdjustment(PersistentBean parentBean, BigDecimal delta, LogicRunner aLogicRunner) {
+		long startTime = System.nanoTime();
+		BigDecimal oldValue = getObjectPropertyAsBigDecimal(parentBean, getBeanAttributeName());
+		BigDecimal newValue = oldValue.add(delta);
+		checkAdjustedValue(parentBean, newValue);
+		MetaAttribute metaAttribute = parentBean.getMetaEntity().getMetaAttribute(getBeanAttributeName());
+		parentBean.put(getBeanAttributeName(), NumberUtil.convertNumberToType(newValue, metaAttribute.getType()));
+		if (log.isDebugEnabled())
+			log.debug("Adjusting " + parentBean.getEntityName() + "." + getBeanAttributeName() + 
+					"+=" + delta + " from coalesced adjustments", aLogicRunner);
+
+		firePostEvent(aLogicRunner.getLogicObject(), aLogicRunner, parentBean, oldValue, System.nanoTime() - startTime);
+	}
+
+	/**
+	 * Give subclasses a chance to verify the value of an aggregate after a coalesced adjustment.
+	 */
+	protected void checkAdjustedValue(PersistentBean parentBean, BigDecimal newValue) {
+		// Nothing by default
+	}
+
+	/**
+	 * Get the PersistentBean for a parent object, as retrieved from a child.
+	 * @return Null if the parent is null
+	 */
+	protected PersistentBean getParentBean(Object parent, LogicTransactionContext context) {
+		if (parent == null)
+			return null;
+		if (parent instanceof PersistentBean)
+			return (PersistentBean)parent;
+
+		EntityPersister ep = ((HibMetaEntity)role.getMetaEntity()).getEntityPersister();
+		Object theParent = parent;
+		if ( ! (parent instanceof Map)) {
+			theParent = ProxyUtil.getNonProxyObject(parent);
+			SessionImpl sessionImpl = (SessionImpl)context.getSession();
+			if (sessionImpl.contains(theParent))
+				ep = sessionImpl.getEntityPersister(sessionImpl.getEntityName(theParent), theParent);
+		}
+		return context.getPersistentBeanFactory().createPersistentBeanFromObject(theParent, ep);
+	}
+
 	/**
 	 * Get the child role through which this dependency runs.
 	 */
@@ -107,6 +252,17 @@ public abstract class AbstractAggregateRule extends AbstractRule {
 		this.role = role;
 	}
 
+	/**
+	 * Get the algorithm used to maintain this aggregate when its children change.
+	 */
+	public AggregateAlgorithm getAggregateAlgorithm() {
+		return aggregateAlgorithm;
+	}
+
+	protected void setAggregateAlgorithm(AggregateAlgorithm algorithm) {
+		aggregateAlgorithm = algorithm;
+	}
+
 	public boolean getInMemory() {
 		return inMemory;
 	}
@@ -181,20 +337,13 @@ public abstract class AbstractAggregateRule extends AbstractRule {
 
 		if (bean == null)
 			throw new LogicException("Internal error: cannot evaluate expression on null object state on: " + this);
-		// TODO - Optimization opportunity: clearly the expression could be parsed
-		// and stored as part of the rule object, thus avoiding the creation
-		// of the Expression object for every execution.
-		if (qualification == null || "".equals(qualification.trim()))
+		if (qualificationExpression == null)
 			return Boolean.TRUE;
 		
-		// Replace all single = with ==
-		qualification = qualification.replaceAll("([^=!<>])=([^=])", "$1==$2");
-		
 		JexlContext context = new BeanMapContext(bean, null, false);
-		Expression expr = jexlEngine.createExpression(qualification);
 		Object res = null;
 		try {
-			res = expr.evaluate(context);
+			res = qualificationExpression.evaluate(context);
 		} catch(Exception ex) {
 			ex.printStackTrace();
 			throw new LogicException("Error while evaluating expression : " + qualification, ex);
@@ -205,6 +354,271 @@ public abstract class AbstractAggregateRule extends AbstractRule {
 		
 	}
 
+	/**
+	 * Get the aggregate expression used in the select clause of computeAggregateFromDatabase,
+	 * e.g. sum(amount). Subclasses that compute their value from the database must override this.
+	 */
+	protected String getAggregateSelectExpression() {
+		throw new LogicException("Aggregate cannot be computed from the database: " + this);
+	}
+
+	/**
+	 * Get the query that computes the value of this aggregate for all parents at once. Each row
+	 * contains the primary key of a parent and the value of the aggregate for that parent.
+	 * Parents without any qualifying children are not returned.
+	 * @param withPkRange If true, the query is restricted to the parents whose primary key is between
+	 * the parameters lowPk and highPk (inclusive).
+	 */
+	public String getGroupedAggregateQuery(boolean withPkRange) {
+		if (withPkRange)
+			return getGroupedAggregateQuery(getParentIdPath() + " between :lowPk and :highPk");
+		return getGroupedAggregateQuery(getRole().getOtherMetaRole().getRoleName() + " is not null");
+	}
+
+	/**
+	 * Get the query that computes the value of this aggregate for the parents whose primary key
+	 * is in the parameter list pks. Each row contains the primary key of a parent and the value of the 
+	 * aggregate for that parent. Parents without any qualifying children are not returned.
+	 */
+	public String getGroupedAggregateQueryForParents() {
+		return getGroupedAggregateQuery(getParentIdPath() + " in (:pks)");
+	}
+
+	/**
+	 * Get the path from the child entity to the primary key of the parent, e.g. customer.name
+	 */
+	private String getParentIdPath() {
+		return getRole().getOtherMetaRole().getRoleName() + "." + getLogicGroup().getMetaEntity().getIdentifierName();
+	}
+
+	private String getGroupedAggregateQuery(String parentRestriction) {
+		String parentId = getParentIdPath();
+		String sql = "select " + parentId + ", " + getAggregateSelectExpression() + 
+			" from " + getRole().getOtherMetaEntity().getEntityName() + 
+			" where " + parentRestriction;
+		String qualificationSQL = getQualificationSQL();
+		if (qualificationSQL != null && qualificationSQL.trim().length() > 0)
+			sql += " and (" + qualificationSQL + ")";
+		sql += " group by " + parentId;
+		return sql;
+	}
+
+	/**
+	 * Compute the value of this aggregate for the given parent, using a single query.
+	 * @param parent The parent object
+	 * @param context The current context
+	 * @return The raw result of the query, which is null if there are no qualifying children
+	 * (except for counts).
+	 */
+	public Number computeAggregateFromDatabase(PersistentBean parent, LogicTransactionContext context) {
+		String sql = "select " + getAggregateSelectExpression() + " from " + 
+			getRole().getOtherMetaEntity().getEntityName() + " where " + 
+			getRole().getOtherMetaRole().getRoleName() + " = :parent";
+		String qualificationSQL = getQualificationSQL();
+		if (qualificationSQL != null && qualificationSQL.trim().length() > 0)
+			sql += " and (" + qualificationSQL + ")";
+		Query query = context.getSession().createQuery(sql);
+		query.setEntity("parent", parent.getEntity());
+		return (Number)query.uniqueResult();
+	}
+
+	/**
+	 * Compute the value of this aggregate for the given parent by going over the parent's collection
+	 * in memory. This reflects the current state of the transaction: children that have been deleted
+	 * are ignored, as are children that now belong to a different parent, and inserted and updated
+	 * children are taken with their current values.
+	 * <p/>
+	 * Children inserted in this transaction, or moved to this parent, may not have been added to the
+	 * collection if only their reference to the parent was set. Those that have a LogicRunner in
+	 * this transaction are found through the context, and are included as well.
+	 * <p/>
+	 * If the collection has not been loaded, the value is computed from the database instead, since
+	 * loading the whole collection just for this would be more expensive.
+	 * @param parent The parent object
+	 * @param context The current context
+	 * @return The value of the aggregate, never null.
+	 */
+	public BigDecimal computeAggregateInMemory(PersistentBean parent, LogicTransactionContext context) {
+		Collection<?> theChildren = (Collection<?>)parent.get(roleName);
+		if (theChildren == null)
+			return BigDecimal.ZERO;
+
+		PersistenceContext persistenceContext = HibernateSessionUtil.getPersistenceContextForSession(context.getSession());
+		if (theChildren instanceof PersistentCollection) {
+			PersistentCollection persistentChildren = (PersistentCollection)theChildren;
+			if ( ! persistentChildren.wasInitialized()) {
+				if (log.isDebugEnabled())
+					log.debug("Collection " + roleName + " of " + parent.toShortString() + 
+							" is not loaded, computing " + getBeanAttributeName() + " from database");
+				Number result = computeAggregateFromDatabase(parent, context);
+				if (result == null)
+					return BigDecimal.ZERO;
+				return (BigDecimal)NumberUtil.convertNumberToType(result, BigDecimal.class);
+			}
+			if ( ! persistenceContext.containsCollection(persistentChildren)) {
+				String errMsg = "Persistent collection " + roleName + " of object " + parent + " is not in the current transaction. This usually means " +
+				"that you are trying to use a transient sum or count in a commit action or commit constraint, and the object in question is being deleted. " +
+				"You should change your constraint or action (in this case, " + getLogicGroup().getLogicClassName() + "." + getLogicMethodName() +
+				") so that it does not fire when the object is being deleted (e.g. logicContext.verb != Verb.DELETE).";
+				throw new LogicException(errMsg);
+			}
+		}
+
+		BigDecimal result = BigDecimal.ZERO;
+		Map<Object, Boolean> countedChildren = new IdentityHashMap<Object, Boolean>();
+		for (Object eachChild : theChildren) {
+			if (eachChild == null) // Lists can have null elements
+				continue;
+			Object child = eachChild;
+			if ( ! (child instanceof Map))
+				child = ProxyUtil.getNonProxyObject(child);
+			if (countedChildren.put(child, Boolean.TRUE) != null)
+				continue;
+			result = result.add(getChildContributionInMemory(child, parent, persistenceContext, context));
+		}
+		
+		// Children inserted or moved to this parent that are not (yet) in the collection
+		for (LogicRunner childRunner : context.getLogicRunnersForEntity(role.getOtherMetaEntity().getEntityName())) {
+			if (childRunner.getVerb() == Verb.DELETE)
+				continue;
+			Object child = childRunner.getCurrentDomainObject().getEntity();
+			if (countedChildren.put(child, Boolean.TRUE) != null)
+				continue;
+			result = result.add(getChildContributionInMemory(child, parent, persistenceContext, context));
+		}
+
+		if (log.isDebugEnabled())
+			log.debug("InMem[" + getBeanAttributeName() + "]==" + result + " in parent " + parent.toShortString());
+		return result;
+	}
+
+	/**
+	 * Get the contribution of the given child to this aggregate in the given parent, as computed in memory:
+	 * zero if the child has been deleted, if it belongs to another parent, or if it does not qualify.
+	 */
+	private BigDecimal getChildContributionInMemory(Object child, PersistentBean parent, 
+			PersistenceContext persistenceContext, LogicTransactionContext context) {
+		// Children deleted in this transaction may still be in the collection
+		EntityEntry entry = persistenceContext.getEntry(child);
+		if (entry != null && (entry.getStatus() == Status.DELETED || entry.getStatus() == Status.GONE))
+			return BigDecimal.ZERO;
+
+		HibPersistentBeanFactory beanFactory = context.getPersistentBeanFactory();
+		EntityPersister childPersister = ((HibMetaEntity)role.getOtherMetaEntity()).getEntityPersister();
+		PersistentBean childBean = beanFactory.createPersistentBeanFromObject(child, childPersister);
+
+		// Children moved to another parent may not have been removed from this collection yet
+		Object childParent = childBean.get(role.getOtherMetaRole().getRoleName());
+		if (childParent == null)
+			return BigDecimal.ZERO;
+		if (childParent != parent.getEntity()) {
+			Serializable parentPk = parent.getPk();
+			PersistentBean childParentBean = getParentBean(childParent, context);
+			if (parentPk == null || ! parentPk.equals(childParentBean.getPk()))
+				return BigDecimal.ZERO;
+		}
+
+		if ( ! runQualificationForBean(childBean))
+			return BigDecimal.ZERO;
+		return getChildContribution(childBean);
+	}
+
+	/**
+	 * Used by sums and counts whose algorithm is SQL or MEMORY: rather than adjusting the parent(s), 
+	 * determine whether the child's change affects this aggregate, and if so recompute it in the 
+	 * affected parent(s).
+	 */
+	protected void recomputeParents(AdjustAllParents aParentAdjustments) {
+		LogicRunner childLogicRunner = aParentAdjustments.getChildLogicRunner();
+		LogicTransactionContext context = childLogicRunner.getContext();
+		String roleToParentName = getRole().getOtherMetaRole().getRoleName();
+		PersistentBean currentChild = childLogicRunner.getCurrentDomainObject();
+		Object currentParent = currentChild.get(roleToParentName);
+
+		if (childLogicRunner.getVerb() == Verb.INSERT || childLogicRunner.getVerb() == Verb.DELETE) {
+			if (currentParent == null || ! runQualificationForBean(currentChild))
+				return;
+			recomputeParent(getParentBean(currentParent, context), aParentAdjustments, false);
+			return;
+		}
+
+		PersistentBean priorChild = childLogicRunner.getPriorDomainObject();
+		Object priorParent = priorChild.get(roleToParentName);
+		if (priorParent == null && currentParent == null)
+			return;
+		boolean priorQual = runQualificationForBean(priorChild);
+		boolean currQual = runQualificationForBean(currentChild);
+		if ( ! priorQual && ! currQual)
+			return;
+
+		boolean sameParent = BeanUtil.beansAreEqual(role.getMetaEntity(), priorParent, currentParent);
+		if (sameParent && priorQual && currQual && 
+				getChildContribution(priorChild).compareTo(getChildContribution(currentChild)) == 0)
+			return;
+
+		if (priorParent != null && ! sameParent && priorQual)
+			recomputeParent(getParentBean(priorParent, context), aParentAdjustments, true);
+		if (currentParent != null && (currQual || sameParent))
+			recomputeParent(getParentBean(currentParent, context), aParentAdjustments, false);
+	}
+
+	/**
+	 * Recompute this aggregate in the given parent. If the parent is already scheduled for processing,
+	 * its current bean is recomputed and the cascade is deferred, as with the other algorithms.
+	 * @param isPriorParent True if this is the parent the child was removed from
+	 */
+	private void recomputeParent(PersistentBean parentBean, AdjustAllParents aParentAdjustments, 
+			boolean isPriorParent) {
+		long startTime = System.nanoTime();
+		LogicRunner childLogicRunner = aParentAdjustments.getChildLogicRunner();
+		LogicTransactionContext context = childLogicRunner.getContext();
+
+		boolean cascadeDeferred = false;
+		LogicRunner aheadLogicRunner = context.findLogicRunner(parentBean);
+		if (aheadLogicRunner != null && aheadLogicRunner.getLogicProcessingState() != LogicProcessingState.COMPLETED) {
+			if (aheadLogicRunner.getExecutionState() != LogicRunnerPhase.ACTIONS) {
+				parentBean = aheadLogicRunner.getCurrentDomainObject();
+				cascadeDeferred = true;
+				if (log.isDebugEnabled())
+					log.debug("Parent logic chaining deferred, since is already scheduled for processing", childLogicRunner);
+			}
+		}
+		if ( ! cascadeDeferred) {
+			if (isPriorParent)
+				aParentAdjustments.setPriorOldAdjustedParentDomainObject(parentBean);
+			else
+				aParentAdjustments.setOldAdjustedParentDomainObject(parentBean);
+		}
+
+		BigDecimal oldValue = getObjectPropertyAsBigDecimal(parentBean, getBeanAttributeName());
+		Number result;
+		if (getAggregateAlgorithm() == AggregateAlgorithm.MEMORY)
+			result = computeAggregateInMemory(parentBean, context);
+		else {
+			result = computeAggregateFromDatabase(parentBean, context);
+			if (result == null)
+				result = BigDecimal.ZERO;
+		}
+		Class<?> attType = parentBean.getMetaEntity().getMetaAttribute(getBeanAttributeName()).getType();
+		parentBean.put(getBeanAttributeName(), NumberUtil.convertNumberToType(result, attType));
+		if (log.isDebugEnabled())
+			log.debug("Recomputing " + parentBean.getEntityName() + "." + getBeanAttributeName() + 
+					"=" + result + " using algorithm " + getAggregateAlgorithm(), childLogicRunner);
+
+		if ( ! noCode)
+			invokeLogicMethod(parentBean, null, childLogicRunner);
+
+		firePostEvent(childLogicRunner.getLogicObject(), childLogicRunner, parentBean, oldValue, 
+				System.nanoTime() - startTime);
+
+		if ( ! cascadeDeferred) {
+			if (isPriorParent)
+				aParentAdjustments.setPriorAdjustedParentDomainObject(parentBean);
+			else
+				aParentAdjustments.setAdjustedParentDomainObject(parentBean);
+		}
+	}
+
 	/**
 	 * Translate the expression into a valid SQL where clause
 	 */
@@ -227,23 +641,42 @@ public abstract class AbstractAggregateRule extends AbstractRule {
 	/**
 	 * When a new instance is created, we check the qualification for some common mistakes
 	 */
-	//private static final Pattern equalsPattern = Pattern.compile("", Pattern.CASE_INSENSITIVE);
+	private static final Pattern equalsPattern = Pattern.compile("([^=<>!])=([^=])");
 	private void fixQualification() {
 		if (qualification == null)
 			return;
 
 		// Replace any = with ==
-		qualification = qualification.replaceAll("([^=<>!])=([^=])", "$1==$2");
+		qualification = equalsPattern.matcher(qualification).replaceAll("$1==$2");
+	}
+
+	/**
+	 * Parse the qualification once, so that it can be evaluated for any number of beans.
+	 * Jexl expressions are thread-safe, so the same expression is used by all transactions.
+	 */
+	private void parseQualification() {
+		if (qualification == null || "".equals(qualification.trim()))
+			return;
+
+		try {
+			qualificationExpression = jexlEngine.createExpression(qualification);
+		}
+		catch(Exception ex) {
+			throw new LogicException("Error while parsing qualification for " + logicGroup.getMetaEntity().getEntityName() + 
+					"." + getBeanAttributeName() + " : " + qualification, ex);
+		}
 	}
 
 	/**
 	 * Fire the post event for this aggregate.
 	 */
 	protected void firePostEvent(Object aLogicObject, LogicRunner aLogicRunner, PersistentBean bean, Number oldValue, long executionTime) {
-		LogicAfterAggregateEvent evt = new LogicAfterAggregateEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(), 
-				this, bean, oldValue);
-		evt.setExecutionTime(executionTime);
-		LogicTransactionContext.fireEvent(evt);
+		if (LogicTransactionContext.hasEventListeners(EventType.AFTER_AGGREGATE)) {
+			LogicAfterAggregateEvent evt = new LogicAfterAggregateEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(), 
+					this, bean, oldValue);
+			evt.setExecutionTime(executionTime);
+			LogicTransactionContext.fireEvent(evt);
+		}
 		PerformanceMonitor.addRuleExecution(this, executionTime);
 	}
 	
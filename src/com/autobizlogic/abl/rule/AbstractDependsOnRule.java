@@ -1,11 +1,18 @@
 package com.autobizlogic.abl.rule;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
 import com.autobizlogic.abl.logic.Verb;
 import com.autobizlogic.abl.data.PersistentBean;
 import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.logic.LogicSvcs;
 import com.autobizlogic.abl.metadata.MetaEntity;
 import com.autobizlogic.abl.metadata.MetaRole;
+import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
+import com.autobizlogic.abl.session.LogicTransactionContext;
 import com.autobizlogic.abl.util.NodalPathUtil;
 import com.autobizlogic.abl.util.ObjectUtil;
 
@@ -13,6 +20,29 @@ public abstract class AbstractDependsOnRule extends AbstractRule {
 	
 	
 	static boolean isFormulaPruningEnabled = true; // set to false to short-circuit
+	
+	/**
+	 * The ordinals of the local attributes and of the roles to parents that this rule depends on.
+	 * This is computed the first time it's needed, once all the dependencies are known.
+	 */
+	private volatile BitSet dependencyMask;
+	
+	/**
+	 * The dependencies that cannot be represented in dependencyMask, e.g. non-persistent attributes.
+	 */
+	private String[] unmaskedAttributeNames;
+	
+	/**
+	 * The roles from the parents back to this entity, for the dependencies on parent attributes.
+	 */
+	private MetaRole[] dependencyRolesToChildren;
+	
+	/**
+	 * The lazy formulas of the same bean that this rule depends on. Computed when first needed.
+	 */
+	private volatile FormulaRule[] lazyDependencies;
+	
+	private static final FormulaRule[] NO_FORMULAS = new FormulaRule[0];
 
 	/**
 	 * <strong>Formula Pruning</strong> - avoid costly parent access in child expression evaluation
@@ -48,6 +78,22 @@ public abstract class AbstractDependsOnRule extends AbstractRule {
 		
 		PersistentBean currentBean = aChildRunner.getCurrentDomainObject();
 		MetaEntity currentEntity = currentBean.getMetaEntity();
+		
+		// Normally we can simply check the dependencies against the properties changed in the LogicRunner
+		if (currentEntity == getLogicGroup().getMetaEntity() && aChildRunner.canTrackPropertyChanges()) {
+			BitSet mask = getDependencyMask();
+			for (MetaRole roleToChildren : dependencyRolesToChildren) {
+				if (LogicSvcs.isParentCascadingChangedRefdAttrs(roleToChildren, aChildRunner))
+					return false;
+			}
+			if (aChildRunner.isAnyPropertyChanged(mask))
+				return false;
+			for (String attName : unmaskedAttributeNames) {
+				if (LogicSvcs.isAttributeChanged(aChildRunner, attName))
+					return false;
+			}
+			return true;
+		}
 
 		for (RuleDependency eachDepend: this.getDependencies()) {
 			String roleToParent = eachDepend.getBeanRoleName();  // eg, purchaseorder
@@ -72,6 +118,101 @@ public abstract class AbstractDependsOnRule extends AbstractRule {
 	}
 
 
+	/**
+	 * Compute the lazy formulas that this rule depends on, if they are out of date for the
+	 * LogicRunner's bean. This must be called before this rule reads the bean.
+	 * @return True if any of these formulas was computed
+	 */
+	protected boolean computeLazyDependencies(LogicRunner aLogicRunner) {
+		FormulaRule[] formulas = getLazyDependencies();
+		boolean computed = false;
+		for (FormulaRule formula : formulas) {
+			if (formula.computeIfStale(aLogicRunner))
+				computed = true;
+		}
+		return computed;
+	}
+	
+	/**
+	 * Whether any of the lazy formulas that this rule depends on is out of date for the LogicRunner's bean.
+	 */
+	protected boolean hasStaleLazyDependencies(LogicRunner aLogicRunner) {
+		FormulaRule[] formulas = getLazyDependencies();
+		if (formulas.length == 0)
+			return false;
+		LogicTransactionContext context = aLogicRunner.getContext();
+		for (FormulaRule formula : formulas) {
+			if (context.getLazyFormulaIndex().isStale(formula, aLogicRunner.getCurrentDomainObject()))
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Get the lazy formulas that compute the local attributes this rule depends on.
+	 */
+	private FormulaRule[] getLazyDependencies() {
+		if (lazyDependencies != null)
+			return lazyDependencies;
+		
+		List<FormulaRule> formulas = new ArrayList<FormulaRule>();
+		for (RuleDependency eachDepend: this.getDependencies()) {
+			String roleToParent = eachDepend.getBeanRoleName();
+			if (roleToParent != null && ! "".equals(roleToParent))
+				continue;
+			AbstractRule derivation = getLogicGroup().getDerivationForAttribute(eachDepend.getBeanAttributeName());
+			if (derivation == this || ! (derivation instanceof FormulaRule))
+				continue;
+			FormulaRule formula = (FormulaRule)derivation;
+			if (formula.isDeferred() && ! formulas.contains(formula))
+				formulas.add(formula);
+		}
+		if (formulas.isEmpty())
+			lazyDependencies = NO_FORMULAS;
+		else
+			lazyDependencies = formulas.toArray(new FormulaRule[formulas.size()]);
+		return lazyDependencies;
+	}
+
+	/**
+	 * Get the ordinals of the local attributes and the roles to parents that this rule depends on,
+	 * computing them (and unmaskedAttributeNames and dependencyRolesToChildren) if necessary.
+	 */
+	private BitSet getDependencyMask() {
+		if (dependencyMask != null)
+			return dependencyMask;
+		
+		synchronized(this) {
+			if (dependencyMask != null)
+				return dependencyMask;
+			
+			HibMetaEntity metaEntity = (HibMetaEntity)getLogicGroup().getMetaEntity();
+			int[] valueIdxs = metaEntity.getValuePropertyIndexes();
+			BitSet mask = new BitSet();
+			List<String> unmasked = new ArrayList<String>();
+			List<MetaRole> rolesToChildren = new ArrayList<MetaRole>();
+			for (RuleDependency eachDepend: this.getDependencies()) {
+				String roleToParent = eachDepend.getBeanRoleName();
+				String propName = eachDepend.getBeanAttributeName();
+				if (roleToParent != null && ! "".equals(roleToParent)) {
+					propName = roleToParent;
+					MetaRole roleToChildren = metaEntity.getMetaRole(roleToParent).getOtherMetaRole();
+					if ( ! rolesToChildren.contains(roleToChildren))
+						rolesToChildren.add(roleToChildren);
+				}
+				int idx = metaEntity.getPropertyIndex(propName);
+				if (idx != -1 && Arrays.binarySearch(valueIdxs, idx) >= 0)
+					mask.set(idx);
+				else
+					unmasked.add(propName);
+			}
+			unmaskedAttributeNames = unmasked.toArray(new String[unmasked.size()]);
+			dependencyRolesToChildren = rolesToChildren.toArray(new MetaRole[rolesToChildren.size()]);
+			dependencyMask = mask;
+		}
+		return dependencyMask;
+	}
+
 	private boolean isFormulaPruningDisabled() {
 		String noPruning = " "; //" EmployeeLogic DepartmentLogic PaymentLogic ProductLogic PurchaseorderLogic PaymentPurchaseorderAllocationLogic ProductBillofmaterialsLogic";
 		/*
@@ -1,6 +1,6 @@
 package com.autobizlogic.abl.rule;
 
-import java.lang.reflect.Method;
+import java.lang.reflect.InvocationTargetException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -12,6 +12,7 @@ import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.logic.BusinessLogicFactory;
 import com.autobizlogic.abl.logic.BusinessLogicFactoryManager;
 import com.autobizlogic.abl.logic.LogicContext;
+import com.autobizlogic.abl.logic.StatelessLogicState;
 import com.autobizlogic.abl.logic.analysis.ClassDependency;
 import com.autobizlogic.abl.logic.analysis.PropertyDependency;
 import com.autobizlogic.abl.metadata.MetaEntity;
@@ -124,10 +125,11 @@ public abstract class AbstractRule {
 		
 		// Create and set the LogicContext
 		String contextFieldName = theLogicGroup.getContextFieldName();
-		if (contextFieldName != null) {
+		LogicContext logicContext = null;
+		if (contextFieldName != null || theLogicGroup.isStateless()) {
 			
 			LogicContext childLogicContext = childLogicRunner.getLogicContext();
-			LogicContext logicContext = businessLogicFactory.createLogicContext();
+			logicContext = businessLogicFactory.createLogicContext();
 			logicContext.setSession(childLogicRunner.getContext().getSession());
 	
 			logicContext.setLogicNestLevel(childLogicContext.getLogicNestLevel());
@@ -136,12 +138,12 @@ public abstract class AbstractRule {
 			logicContext.setCurrentState(currentParentState);
 			logicContext.setOldState(priorParentState);
 			
-			BeanUtil.setBeanProperty(logicObject, contextFieldName, logicContext);
+			if (contextFieldName != null)
+				BeanUtil.setBeanProperty(logicObject, contextFieldName, logicContext);
 		}
 		
 		try {
-			Method countMethod = logicObject.getClass().getMethod(logicMethodName, (Class[])null);
-			countMethod.invoke(logicObject, (Object[])null);
+			callLogicMethod(theLogicGroup, logicObject, currentParentState, priorParentState, logicContext);
 		}
 		catch(Exception ex) {
 			throw new RuntimeException("Exception thrown while executing logic method " + 
@@ -149,6 +151,49 @@ public abstract class AbstractRule {
 		}
 	}
 	
+	/**
+	 * Call the method that defines this rule on the LogicRunner's logic object.
+	 * @return The value returned by the method, if any
+	 * @throws InvocationTargetException If the method threw an exception
+	 */
+	protected Object callLogicMethod(LogicRunner logicRunner) throws InvocationTargetException {
+		return callLogicMethod(logicGroup, logicRunner.getLogicObject(), logicRunner.getCurrentDomainObject(), 
+				logicRunner.getPriorDomainObject(), logicRunner.getLogicContext());
+	}
+	
+	/**
+	 * Call the method that defines this rule on the given logic object.
+	 * @param logicObject The logic object
+	 * @param currentState The bean for which the logic object was created
+	 * @param priorState The old version of the bean, if any
+	 * @param logicContext The current LogicContext, if any
+	 * @return The value returned by the method, if any
+	 * @throws InvocationTargetException If the method threw an exception
+	 */
+	protected Object callLogicMethod(Object logicObject, PersistentBean currentState, PersistentBean priorState, 
+			LogicContext logicContext) throws InvocationTargetException {
+		return callLogicMethod(logicGroup, logicObject, currentState, priorState, logicContext);
+	}
+	
+	/**
+	 * Call the method that defines this rule. If the logic class is stateless, the given states and
+	 * context are made available through StatelessLogicState for the duration of the call.
+	 */
+	private Object callLogicMethod(LogicGroup theLogicGroup, Object logicObject, PersistentBean currentState, 
+			PersistentBean priorState, LogicContext logicContext) throws InvocationTargetException {
+		LogicMethodInvoker invoker = theLogicGroup.getMethodInvoker(logicObject.getClass());
+		if ( ! theLogicGroup.isStateless())
+			return invoker.invoke(logicObject, logicMethodName);
+		
+		StatelessLogicState.enter(currentState, priorState, logicContext);
+		try {
+			return invoker.invoke(logicObject, logicMethodName);
+		}
+		finally {
+			StatelessLogicState.exit();
+		}
+	}
+	
 	/**
 	 * Register that this rule has a dependency on the given property.
 	 */
@@ -1,7 +1,6 @@
 package com.autobizlogic.abl.rule;
 
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 
 import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.perf.PerformanceMonitor;
@@ -9,6 +8,7 @@ import com.autobizlogic.abl.session.LogicTransactionContext;
 import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.event.LogicAfterActionEvent;
 import com.autobizlogic.abl.event.LogicBeforeActionEvent;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
 
 /**
  * Represent and execute an action rule.
@@ -31,9 +31,10 @@ public class ActionRule extends AbstractDependsOnWithVerbsRule {
 			String theLogicMethodName = getLogicMethodName();
 			if (sysLog.isDebugEnabled())
 				sysLog.debug ("Invoking Action Rule: " + theLogicMethodName, aLogicRunner);
-			Class<?> logicClass = aLogicRunner.getLogicObject().getClass();
-			Method actionMethod = logicClass.getMethod(theLogicMethodName, (Class<?>[])null); 
-			actionMethod.invoke(aLogicRunner.getLogicObject(), (Object[])null); 
+			callLogicMethod(aLogicRunner);
+			
+			// The action may have called the bean's setters, so changes must be recomputed
+			aLogicRunner.forgetChangedProperties();
 		}
 		catch(InvocationTargetException ex) {
 			throw new LogicException("Exception while executing action: " + logicMethodName + " on: " + aLogicRunner.getLogicObject(), ex.getCause());
@@ -48,10 +49,12 @@ public class ActionRule extends AbstractDependsOnWithVerbsRule {
 	 * Fire the post event for this formula.
 	 */
 	protected void firePostEvent(LogicRunner aLogicRunner, long executionTime) {
-		LogicAfterActionEvent evt = new LogicAfterActionEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(),
-				this, aLogicRunner.getCurrentDomainObject());
-		evt.setExecutionTime(executionTime);
-		LogicTransactionContext.fireEvent(evt);
+		if (LogicTransactionContext.hasEventListeners(EventType.AFTER_ACTION)) {
+			LogicAfterActionEvent evt = new LogicAfterActionEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(),
+					this, aLogicRunner.getCurrentDomainObject());
+			evt.setExecutionTime(executionTime);
+			LogicTransactionContext.fireEvent(evt);
+		}
 		PerformanceMonitor.addRuleExecution(this, executionTime);
 	}
 	
@@ -59,6 +62,8 @@ public class ActionRule extends AbstractDependsOnWithVerbsRule {
 	 * Fire the post event for this formula.
 	 */
 	protected void firePreEvent(LogicRunner aLogicRunner) {
+		if ( ! LogicTransactionContext.hasEventListeners(EventType.BEFORE_ACTION))
+			return;
 		LogicBeforeActionEvent evt = new LogicBeforeActionEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(),
 				this, aLogicRunner.getCurrentDomainObject());
 		LogicTransactionContext.fireEvent(evt);
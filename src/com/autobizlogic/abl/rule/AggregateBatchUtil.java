@@ -0,0 +1,77 @@
+package com.autobizlogic.abl.rule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.autobizlogic.abl.engine.LogicException;
+import com.autobizlogic.abl.metadata.MetaAttribute;
+import com.autobizlogic.abl.metadata.MetaEntity;
+import com.autobizlogic.abl.metadata.MetaModel;
+
+/**
+ * Code shared by the tools that process the persistent aggregates of a whole database,
+ * namely AggregateRebuilder and AggregateVerifier.
+ */
+/* package */ class AggregateBatchUtil {
+
+	/**
+	 * Get the aggregates of the given entity that are stored in the database.
+	 */
+	/* package */ static List<AbstractAggregateRule> getPersistentAggregates(MetaModel metaModel, MetaEntity entity) {
+		List<AbstractAggregateRule> result = new ArrayList<AbstractAggregateRule>();
+		LogicGroup logicGroup = RuleManager.getInstance(metaModel).getLogicGroupForEntity(entity);
+		if (logicGroup == null)
+			return result;
+		for (AbstractAggregateRule aggregate : logicGroup.getAggregates()) {
+			MetaAttribute metaAttribute = entity.getMetaAttribute(aggregate.getBeanAttributeName());
+			if (metaAttribute != null && ! metaAttribute.isTransient())
+				result.add(aggregate);
+		}
+		return result;
+	}
+
+	/**
+	 * Run the given tasks, at most numThreads at a time, and wait for all of them to complete.
+	 * @param activity What the tasks do, e.g. "rebuilding aggregates", for the error messages
+	 * @return The results of the tasks, in the same order as the tasks
+	 */
+	/* package */ static <T> List<T> runInParallel(List<Callable<T>> tasks, int numThreads, String activity) {
+		List<T> results = new ArrayList<T>();
+		ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>();
+			for (Callable<T> task : tasks)
+				futures.add(executor.submit(task));
+			for (Future<T> future : futures)
+				results.add(future.get());
+		}
+		catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new LogicException("Interrupted while " + activity, ex);
+		}
+		catch(ExecutionException ex) {
+			if (ex.getCause() instanceof RuntimeException)
+				throw (RuntimeException)ex.getCause();
+			throw new LogicException("Exception while " + activity, ex.getCause());
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		return results;
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
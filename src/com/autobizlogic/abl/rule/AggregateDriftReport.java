@@ -0,0 +1,137 @@
+package com.autobizlogic.abl.rule;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The result of verifying one aggregate with AggregateVerifier: how many parents were checked,
+ * and which ones have a stored value that differs from the value computed from their children.
+ */
+public class AggregateDriftReport {
+
+	private AbstractAggregateRule aggregate;
+
+	private long numParentsChecked = 0;
+
+	private long numDrifts = 0;
+
+	private int maxDriftsKept;
+
+	private List<Drift> drifts = new ArrayList<Drift>();
+
+	protected AggregateDriftReport(AbstractAggregateRule aggregate, int maxDriftsKept) {
+		this.aggregate = aggregate;
+		this.maxDriftsKept = maxDriftsKept;
+	}
+
+	/**
+	 * Get the aggregate that was verified.
+	 */
+	public AbstractAggregateRule getAggregate() {
+		return aggregate;
+	}
+
+	/**
+	 * Get the number of parents whose value was verified.
+	 */
+	public long getNumParentsChecked() {
+		return numParentsChecked;
+	}
+
+	/**
+	 * Get the number of parents whose stored value is not correct.
+	 */
+	public long getNumDrifts() {
+		return numDrifts;
+	}
+
+	/**
+	 * Whether all the parents checked have the correct value.
+	 */
+	public boolean isClean() {
+		return numDrifts == 0;
+	}
+
+	/**
+	 * Get the parents whose stored value is not correct. Only the first few are kept
+	 * (see AggregateVerifier.setMaxDriftsReported), so this may contain fewer than getNumDrifts().
+	 */
+	public List<Drift> getDrifts() {
+		return Collections.unmodifiableList(drifts);
+	}
+
+	protected void addParentChecked() {
+		numParentsChecked++;
+	}
+
+	protected void addDrift(Serializable parentPk, Number storedValue, Number computedValue) {
+		numDrifts++;
+		if (drifts.size() < maxDriftsKept)
+			drifts.add(new Drift(parentPk, storedValue, computedValue));
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("Aggregate ");
+		sb.append(aggregate.getLogicGroup().getMetaEntity().getEntityName());
+		sb.append(".");
+		sb.append(aggregate.getBeanAttributeName());
+		sb.append(": ");
+		sb.append(numParentsChecked);
+		sb.append(" parent(s) checked, ");
+		sb.append(numDrifts);
+		sb.append(" incorrect");
+		for (Drift drift : drifts) {
+			sb.append("\n    ");
+			sb.append(drift);
+		}
+		if (numDrifts > drifts.size())
+			sb.append("\n    ...");
+		return sb.toString();
+	}
+
+	/**
+	 * A parent whose stored value is not correct.
+	 */
+	public static class Drift {
+		private Serializable parentPk;
+		private Number storedValue;
+		private Number computedValue;
+
+		private Drift(Serializable parentPk, Number storedValue, Number computedValue) {
+			this.parentPk = parentPk;
+			this.storedValue = storedValue;
+			this.computedValue = computedValue;
+		}
+
+		public Serializable getParentPk() {
+			return parentPk;
+		}
+
+		public Number getStoredValue() {
+			return storedValue;
+		}
+
+		public Number getComputedValue() {
+			return computedValue;
+		}
+
+		@Override
+		public String toString() {
+			return "Parent " + parentPk + ": stored value is " + storedValue + ", should be " + computedValue;
+		}
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
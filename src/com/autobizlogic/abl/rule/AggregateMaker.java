@@ -7,7 +7,9 @@ import com.autobizlogic.abl.logic.analysis.AnnotationEntry;
 import com.autobizlogic.abl.logic.analysis.LogicClassAnalysis;
 import com.autobizlogic.abl.logic.analysis.LogicMethodAnalysis;
 import com.autobizlogic.abl.logic.analysis.PropertyDependency;
+import com.autobizlogic.abl.metadata.MetaAttribute;
 import com.autobizlogic.abl.metadata.MetaRole;
+import com.autobizlogic.abl.rule.AbstractAggregateRule.AggregateAlgorithm;
 import com.autobizlogic.abl.rule.MinMaxRule.MinMaxType;
 import com.autobizlogic.abl.util.StringUtil;
 
@@ -117,6 +119,11 @@ import com.autobizlogic.abl.util.StringUtil;
 		Boolean persistent = (Boolean)sumAnnotation.parameters.get("persistent");
 		if (persistent != null )
 			sum.setPersistent(persistent);
+		Boolean sql = (Boolean)sumAnnotation.parameters.get("sql");
+		if (sql != null && sql)
+			sum.setAggregateAlgorithm(AggregateAlgorithm.SQL);
+		else if (sum.getInMemory() && isTransientAttribute(beanAttributeName))
+			sum.setAggregateAlgorithm(AggregateAlgorithm.MEMORY);
 
 		// Add it to the lookup table
 		RuleManager.getInstance(logicGroup.metaModel).addDerivationRuleForAttribute(
@@ -189,6 +196,11 @@ import com.autobizlogic.abl.util.StringUtil;
 		Boolean persistent = (Boolean)countAnnotation.parameters.get("persistent");
 		if (persistent != null && !persistent)
 			cnt.setPersistent(false);
+		Boolean sql = (Boolean)countAnnotation.parameters.get("sql");
+		if (sql != null && sql)
+			cnt.setAggregateAlgorithm(AggregateAlgorithm.SQL);
+		else if (cnt.getInMemory() && isTransientAttribute(beanAttributeName))
+			cnt.setAggregateAlgorithm(AggregateAlgorithm.MEMORY);
 
 		// Verify that the role exists
 		MetaRole metaRole = logicGroup.metaEntity.getMetaRole(roleName);
@@ -315,6 +327,14 @@ import com.autobizlogic.abl.util.StringUtil;
 
 		return minMaxRule;
 	}
+	
+	/**
+	 * Determine whether the given attribute of the entity is transient, i.e. not stored in the database.
+	 */
+	private boolean isTransientAttribute(String beanAttributeName) {
+		MetaAttribute metaAttribute = logicGroup.metaEntity.getMetaAttribute(beanAttributeName);
+		return metaAttribute != null && metaAttribute.isTransient();
+	}
 }
 
 /*
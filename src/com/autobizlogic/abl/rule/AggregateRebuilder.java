@@ -0,0 +1,308 @@
+package com.autobizlogic.abl.rule;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.engine.SessionImplementor;
+import org.hibernate.jdbc.Work;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+
+import com.autobizlogic.abl.engine.LogicException;
+import com.autobizlogic.abl.metadata.MetaEntity;
+import com.autobizlogic.abl.metadata.MetaModel;
+import com.autobizlogic.abl.metadata.MetaModelFactory;
+import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
+import com.autobizlogic.abl.util.LogicLogger;
+import com.autobizlogic.abl.util.LogicLogger.LoggerName;
+import com.autobizlogic.abl.util.NumberUtil;
+
+/**
+ * Recompute the value of all the persistent aggregates (sums, counts, minimums and maximums) in the
+ * database, outside of any business logic transaction. This is meant to be used offline, e.g.
+ * after a bulk load, or to repair aggregates that have drifted because the database was
+ * updated without going through the business logic.
+ * <p/>
+ * The parents are processed one page at a time, by primary key: each aggregate is recomputed for the
+ * parents of a page with a single group by query over the child table, and the results are written back 
+ * using a JDBC batch: no objects are loaded, and no business logic is executed.
+ * Parents without any qualifying children are set to zero (sums and counts) or null (min/max).
+ * <p/>
+ * Entities are processed in dependency order: the aggregates of an entity are recomputed only after
+ * the aggregates of all the child entities they depend on. Entities that do not depend on each other
+ * are processed in parallel, each one in its own session and transaction.
+ * <p/>
+ * Note that formulas are not recomputed: if an aggregate depends on a formula, the formula
+ * is assumed to be correct in the database. Aggregates over a role from an entity to itself
+ * (e.g. a tree of accounts) cannot be recomputed this way.
+ */
+public class AggregateRebuilder {
+
+	private SessionFactory sessionFactory;
+
+	private MetaModel metaModel;
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private int batchSize = 500;
+
+	private static final LogicLogger _logger = LogicLogger.getLogger(LoggerName.RULES_ENGINE);
+
+	public AggregateRebuilder(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+		this.metaModel = MetaModelFactory.getHibernateMetaModel(sessionFactory);
+	}
+
+	/**
+	 * Set the maximum number of entities to process in parallel. The default is the number of processors.
+	 */
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new LogicException("Number of threads must be at least 1");
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Set the number of parents processed at a time, which is also the number of updates sent 
+	 * to the database in each JDBC batch. The default is 500.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1)
+			throw new LogicException("Batch size must be at least 1");
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Recompute all the persistent aggregates of all entities.
+	 */
+	public void rebuildAll() {
+		Map<MetaEntity, List<AbstractAggregateRule>> aggregates = getAllAggregates();
+		List<List<MetaEntity>> levels = getLevels(aggregates);
+
+		for (List<MetaEntity> level : levels) {
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (final MetaEntity entity : level) {
+				final List<AbstractAggregateRule> entityAggregates = aggregates.get(entity);
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() {
+						rebuildEntity(entity, entityAggregates);
+						return null;
+					}
+				});
+			}
+			AggregateBatchUtil.runInParallel(tasks, numThreads, "rebuilding aggregates");
+		}
+	}
+
+	/**
+	 * Recompute the persistent aggregates of the given entity only, in the current thread.
+	 * The aggregates of the child entities are assumed to be correct.
+	 */
+	public void rebuildEntity(String entityName) {
+		MetaEntity entity = metaModel.getMetaEntity(entityName);
+		if (entity == null)
+			throw new LogicException("No such entity: " + entityName);
+		List<AbstractAggregateRule> entityAggregates = getAggregates(entity);
+		if ( ! entityAggregates.isEmpty())
+			rebuildEntity(entity, entityAggregates);
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Get the persistent aggregates of all entities that have any.
+	 */
+	private Map<MetaEntity, List<AbstractAggregateRule>> getAllAggregates() {
+		Map<MetaEntity, List<AbstractAggregateRule>> result = new LinkedHashMap<MetaEntity, List<AbstractAggregateRule>>();
+		for (MetaEntity entity : metaModel.getAllMetaEntities()) {
+			List<AbstractAggregateRule> entityAggregates = getAggregates(entity);
+			if ( ! entityAggregates.isEmpty())
+				result.put(entity, entityAggregates);
+		}
+		return result;
+	}
+
+	/**
+	 * Get the aggregates of the given entity that are stored in the database.
+	 */
+	private List<AbstractAggregateRule> getAggregates(MetaEntity entity) {
+		List<AbstractAggregateRule> result = AggregateBatchUtil.getPersistentAggregates(metaModel, entity);
+		for (AbstractAggregateRule aggregate : result) {
+			if (aggregate.getRole().getOtherMetaEntity() == entity)
+				throw new LogicException("Aggregate " + aggregate + " is over a role from entity " + entity.getEntityName() +
+						" to itself, and cannot be rebuilt");
+		}
+		return result;
+	}
+
+	/**
+	 * Sort the entities in levels: the entities in a given level only depend on entities
+	 * of previous levels, and can therefore be processed in parallel.
+	 */
+	private static List<List<MetaEntity>> getLevels(Map<MetaEntity, List<AbstractAggregateRule>> aggregates) {
+		List<List<MetaEntity>> levels = new ArrayList<List<MetaEntity>>();
+		Set<MetaEntity> done = new HashSet<MetaEntity>();
+		Set<MetaEntity> remaining = new HashSet<MetaEntity>(aggregates.keySet());
+		while ( ! remaining.isEmpty()) {
+			List<MetaEntity> level = new ArrayList<MetaEntity>();
+			for (MetaEntity entity : aggregates.keySet()) {
+				if ( ! remaining.contains(entity))
+					continue;
+				boolean ready = true;
+				for (AbstractAggregateRule aggregate : aggregates.get(entity)) {
+					MetaEntity childEntity = aggregate.getRole().getOtherMetaEntity();
+					if (aggregates.containsKey(childEntity) && ! done.contains(childEntity)) {
+						ready = false;
+						break;
+					}
+				}
+				if (ready)
+					level.add(entity);
+			}
+			if (level.isEmpty())
+				throw new LogicException("Aggregates cannot be rebuilt because of a cycle between entities " + remaining);
+			remaining.removeAll(level);
+			done.addAll(level);
+			levels.add(level);
+		}
+		return levels;
+	}
+
+	/**
+	 * Recompute the given aggregates of one entity, in a new session and transaction.
+	 */
+	private void rebuildEntity(MetaEntity entity, List<AbstractAggregateRule> aggregates) {
+		long startTime = System.currentTimeMillis();
+		Session session = sessionFactory.openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			for (AbstractAggregateRule aggregate : aggregates)
+				rebuildAggregate(session, (HibMetaEntity)entity, aggregate);
+			tx.commit();
+		}
+		catch(RuntimeException ex) {
+			if (tx != null)
+				tx.rollback();
+			throw ex;
+		}
+		finally {
+			session.close();
+		}
+		if (_logger.isInfoEnabled())
+			_logger.info("Rebuilt " + aggregates.size() + " aggregate(s) for entity " + entity.getEntityName() +
+					" in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+
+	/**
+	 * Recompute one aggregate for all parents. The primary keys of the parents are read one page at a time,
+	 * ordered by primary key, and the aggregate is computed for the parents of each page with a single
+	 * group by query. Every parent of the page is then updated, by primary key, so that rows of the table
+	 * that are not instances of the entity (e.g. with single table inheritance) are never touched.
+	 */
+	private void rebuildAggregate(Session session, HibMetaEntity entity, final AbstractAggregateRule aggregate) {
+		AbstractEntityPersister persister = (AbstractEntityPersister)entity.getEntityPersister();
+		if (persister.getIdentifierType().isComponentType())
+			throw new LogicException("Aggregate " + aggregate + " cannot be rebuilt because entity " +
+					entity.getEntityName() + " has a composite key");
+
+		String attributeName = aggregate.getBeanAttributeName();
+		final Type attributeType = persister.getPropertyType(attributeName);
+		final Type idType = persister.getIdentifierType();
+		final Class<?> attributeClass = attributeType.getReturnedClass();
+		final SessionImplementor sessionImpl = (SessionImplementor)session;
+		String tableName = persister.getPropertyTableName(attributeName);
+		String columnName = persister.getPropertyColumnNames(attributeName)[0];
+		final String updateSQL = "update " + tableName + " set " + columnName + " = ? where " + 
+				persister.getIdentifierColumnNames()[0] + " = ?";
+
+		final Object resetValue;
+		if (aggregate instanceof MinMaxRule)
+			resetValue = null;
+		else
+			resetValue = NumberUtil.convertNumberToType(Integer.valueOf(0), attributeClass);
+
+		String idName = entity.getIdentifierName();
+		String pageStart = "select " + idName + " from " + entity.getEntityName();
+		String pageEnd = " order by " + idName;
+		Serializable lastPk = null;
+		while (true) {
+			Query pageQuery;
+			if (lastPk == null)
+				pageQuery = session.createQuery(pageStart + pageEnd);
+			else {
+				pageQuery = session.createQuery(pageStart + " where " + idName + " > :lastPk" + pageEnd);
+				pageQuery.setParameter("lastPk", lastPk);
+			}
+			pageQuery.setReadOnly(true);
+			pageQuery.setMaxResults(batchSize);
+			@SuppressWarnings("unchecked")
+			final List<Serializable> pks = pageQuery.list();
+			if (pks.isEmpty())
+				break;
+
+			Query valueQuery = session.createQuery(aggregate.getGroupedAggregateQueryForParents());
+			valueQuery.setParameterList("pks", pks);
+			valueQuery.setReadOnly(true);
+			@SuppressWarnings("unchecked")
+			List<Object[]> rows = valueQuery.list();
+			final Map<Serializable, Number> values = new HashMap<Serializable, Number>();
+			for (Object[] row : rows)
+				values.put((Serializable)row[0], (Number)row[1]);
+
+			session.doWork(new Work() {
+				@Override
+				public void execute(Connection connection) throws SQLException {
+					PreparedStatement updateStmt = connection.prepareStatement(updateSQL);
+					try {
+						for (Serializable parentPk : pks) {
+							Number value = values.get(parentPk);
+							Object newValue = resetValue;
+							if (value != null)
+								newValue = NumberUtil.convertNumberToType(value, attributeClass);
+							attributeType.nullSafeSet(updateStmt, newValue, 1, sessionImpl);
+							idType.nullSafeSet(updateStmt, parentPk, 2, sessionImpl);
+							updateStmt.addBatch();
+						}
+						updateStmt.executeBatch();
+					}
+					finally {
+						updateStmt.close();
+					}
+				}
+			});
+
+			if (pks.size() < batchSize)
+				break;
+			lastPk = pks.get(pks.size() - 1);
+		}
+
+		if (_logger.isDebugEnabled())
+			_logger.debug("Rebuilt aggregate " + aggregate);
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -0,0 +1,359 @@
+package com.autobizlogic.abl.rule;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import org.hibernate.Query;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+
+import com.autobizlogic.abl.engine.LogicException;
+import com.autobizlogic.abl.metadata.MetaEntity;
+import com.autobizlogic.abl.metadata.MetaModel;
+import com.autobizlogic.abl.metadata.MetaModelFactory;
+import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
+import com.autobizlogic.abl.util.LogicLogger;
+import com.autobizlogic.abl.util.LogicLogger.LoggerName;
+import com.autobizlogic.abl.util.NumberUtil;
+
+/**
+ * Verify that the values of the persistent aggregates (sums, counts, minimums and maximums) in the
+ * database are consistent with the children they are computed from. This is read-only: nothing is
+ * updated, no objects are loaded into the session, and no locks are requested, so it can be run
+ * against a live database. Use AggregateRebuilder to fix any problem found.
+ * <p/>
+ * Parents are verified by ranges of primary keys, each starting at an existing primary key, so that
+ * sparse primary keys do not produce empty ranges. For each range, the aggregate is computed for
+ * all parents in the range with a single group by query, and the stored values are then read with
+ * a scrollable query and compared. Only the computed values for one range are kept in memory.
+ * <p/>
+ * Entities whose primary key is not numeric cannot be divided in ranges: their parents are instead
+ * read by pages of PAGE_SIZE primary keys, in primary key order, and verified one page at a time.
+ * <p/>
+ * For large tables, a random sample of the ranges (or pages) can be verified instead of the whole table
+ * (see setSampleRate).
+ * <p/>
+ * Entities are verified in parallel, each one in its own session. Since the verification is not done
+ * in one transaction, parents modified while the verification is in progress may be reported incorrectly.
+ */
+public class AggregateVerifier {
+
+	private SessionFactory sessionFactory;
+
+	private MetaModel metaModel;
+
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+
+	private double sampleRate = 1.0;
+
+	private long rangeSize = 10000;
+
+	private long seed = System.currentTimeMillis();
+
+	private int maxDriftsReported = 100;
+
+	private int fetchSize = 1000;
+
+	/**
+	 * The number of parents verified at a time for entities whose primary key is not numeric.
+	 * This is also the number of values in the in clause of the queries.
+	 */
+	private static final int PAGE_SIZE = 1000;
+
+	private static final LogicLogger _logger = LogicLogger.getLogger(LoggerName.RULES_ENGINE);
+
+	public AggregateVerifier(SessionFactory sessionFactory) {
+		this.sessionFactory = sessionFactory;
+		this.metaModel = MetaModelFactory.getHibernateMetaModel(sessionFactory);
+	}
+
+	/**
+	 * Set the maximum number of entities to verify in parallel. The default is the number of processors.
+	 */
+	public void setNumThreads(int numThreads) {
+		if (numThreads < 1)
+			throw new LogicException("Number of threads must be at least 1");
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * Set the fraction of primary key ranges to verify, between 0 (exclusive) and 1 (inclusive).
+	 * The default is 1, i.e. all parents are verified.
+	 */
+	public void setSampleRate(double sampleRate) {
+		if (sampleRate <= 0 || sampleRate > 1)
+			throw new LogicException("Sample rate must be greater than 0 and at most 1");
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Set the number of primary key values in each range. The default is 10000.
+	 */
+	public void setRangeSize(long rangeSize) {
+		if (rangeSize < 1)
+			throw new LogicException("Range size must be at least 1");
+		this.rangeSize = rangeSize;
+	}
+
+	/**
+	 * Set the seed used to pick the ranges to verify when sampling, so that a verification
+	 * can be repeated on the same ranges.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Set the maximum number of incorrect parents kept in each report. The default is 100.
+	 */
+	public void setMaxDriftsReported(int maxDriftsReported) {
+		this.maxDriftsReported = maxDriftsReported;
+	}
+
+	/**
+	 * Verify all the persistent aggregates of all entities.
+	 * @return One report per aggregate
+	 */
+	public List<AggregateDriftReport> verifyAll() {
+		List<Callable<List<AggregateDriftReport>>> tasks = new ArrayList<Callable<List<AggregateDriftReport>>>();
+		for (final MetaEntity entity : metaModel.getAllMetaEntities()) {
+			final List<AbstractAggregateRule> aggregates = AggregateBatchUtil.getPersistentAggregates(metaModel, entity);
+			if (aggregates.isEmpty())
+				continue;
+			tasks.add(new Callable<List<AggregateDriftReport>>() {
+				@Override
+				public List<AggregateDriftReport> call() {
+					return verifyEntity(entity, aggregates);
+				}
+			});
+		}
+		
+		List<AggregateDriftReport> reports = new ArrayList<AggregateDriftReport>();
+		for (List<AggregateDriftReport> entityReports : 
+				AggregateBatchUtil.runInParallel(tasks, numThreads, "verifying aggregates"))
+			reports.addAll(entityReports);
+		return reports;
+	}
+
+	/**
+	 * Verify the persistent aggregates of the given entity, in the current thread.
+	 * @return One report per aggregate
+	 */
+	public List<AggregateDriftReport> verifyEntity(String entityName) {
+		MetaEntity entity = metaModel.getMetaEntity(entityName);
+		if (entity == null)
+			throw new LogicException("No such entity: " + entityName);
+		return verifyEntity(entity, AggregateBatchUtil.getPersistentAggregates(metaModel, entity));
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	private List<AggregateDriftReport> verifyEntity(MetaEntity entity, List<AbstractAggregateRule> aggregates) {
+		long startTime = System.currentTimeMillis();
+		List<AggregateDriftReport> reports = new ArrayList<AggregateDriftReport>();
+		for (AbstractAggregateRule aggregate : aggregates)
+			reports.add(new AggregateDriftReport(aggregate, maxDriftsReported));
+
+		Session session = sessionFactory.openSession();
+		Transaction tx = null;
+		try {
+			tx = session.beginTransaction();
+			Class<?> pkType = ((HibMetaEntity)entity).getEntityPersister().getIdentifierType().getReturnedClass();
+			if (NumberUtil.isIntegralType(pkType)) {
+				verifyRanges(session, entity, pkType, reports);
+			}
+			else {
+				verifyPages(session, entity, reports);
+			}
+		}
+		finally {
+			if (tx != null)
+				tx.rollback();
+			session.close();
+		}
+
+		if (_logger.isInfoEnabled())
+			_logger.info("Verified " + aggregates.size() + " aggregate(s) for entity " + entity.getEntityName() +
+					" in " + (System.currentTimeMillis() - startTime) + "ms");
+		return reports;
+	}
+
+	/**
+	 * Verify the aggregates for a random sample of primary key ranges. Each range starts at an existing
+	 * primary key, so that gaps in the primary keys do not cost any query.
+	 */
+	private void verifyRanges(Session session, MetaEntity entity, Class<?> pkType, List<AggregateDriftReport> reports) {
+		String idName = entity.getIdentifierName();
+		Object[] bounds = (Object[])session.createQuery("select min(" + idName + "), max(" + idName + ") from " +
+				entity.getEntityName()).uniqueResult();
+		if (bounds == null || bounds[0] == null)
+			return;
+		long highestPk = ((Number)bounds[1]).longValue();
+
+		Query nextQuery = session.createQuery("select min(" + idName + ") from " + entity.getEntityName() +
+				" where " + idName + " > :pk");
+		nextQuery.setReadOnly(true);
+		Random random = new Random(seed + entity.getEntityName().hashCode());
+		Number low = (Number)bounds[0];
+		while (low != null) {
+			long high = low.longValue() + (rangeSize - 1);
+			if (high < low.longValue() || high > highestPk) // high < low if the addition overflowed
+				high = highestPk;
+			Number highPk = NumberUtil.convertNumberToType(Long.valueOf(high), pkType);
+			if (sampleRate >= 1 || random.nextDouble() < sampleRate) {
+				for (AggregateDriftReport report : reports)
+					verifyRange(session, entity, report, low, highPk);
+				session.clear();
+			}
+			if (high >= highestPk)
+				break;
+			nextQuery.setParameter("pk", highPk);
+			low = (Number)nextQuery.uniqueResult();
+		}
+	}
+
+	/**
+	 * Verify one aggregate for the parents in the given range of primary keys.
+	 */
+	private void verifyRange(Session session, MetaEntity entity, AggregateDriftReport report, Number lowPk, Number highPk) {
+		AbstractAggregateRule aggregate = report.getAggregate();
+
+		Map<Serializable, Number> computedValues = new HashMap<Serializable, Number>();
+		Query childQuery = session.createQuery(aggregate.getGroupedAggregateQuery(true));
+		ScrollableResults results = scroll(childQuery, lowPk, highPk);
+		try {
+			while (results.next())
+				computedValues.put((Serializable)results.get(0), (Number)results.get(1));
+		}
+		finally {
+			results.close();
+		}
+
+		String idName = entity.getIdentifierName();
+		Query parentQuery = session.createQuery("select " + idName + ", " + aggregate.getBeanAttributeName() + 
+				" from " + entity.getEntityName() + " where " + idName + " between :lowPk and :highPk");
+		results = scroll(parentQuery, lowPk, highPk);
+		try {
+			while (results.next())
+				compare(report, (Serializable)results.get(0), (Number)results.get(1), computedValues);
+		}
+		finally {
+			results.close();
+		}
+	}
+
+	private ScrollableResults scroll(Query query, Number lowPk, Number highPk) {
+		query.setReadOnly(true);
+		query.setFetchSize(fetchSize);
+		query.setParameter("lowPk", lowPk);
+		query.setParameter("highPk", highPk);
+		return query.scroll(ScrollMode.FORWARD_ONLY);
+	}
+
+	/**
+	 * Verify the aggregates of an entity whose primary key is not numeric. The primary keys are read
+	 * one page at a time, ordered by primary key, and when sampling, a random sample of the pages is verified.
+	 */
+	private void verifyPages(Session session, MetaEntity entity, List<AggregateDriftReport> reports) {
+		String idName = entity.getIdentifierName();
+		String pageStart = "select " + idName + " from " + entity.getEntityName();
+		String pageEnd = " order by " + idName;
+		Random random = new Random(seed + entity.getEntityName().hashCode());
+		Serializable lastPk = null;
+		while (true) {
+			Query pageQuery;
+			if (lastPk == null)
+				pageQuery = session.createQuery(pageStart + pageEnd);
+			else {
+				pageQuery = session.createQuery(pageStart + " where " + idName + " > :lastPk" + pageEnd);
+				pageQuery.setParameter("lastPk", lastPk);
+			}
+			pageQuery.setReadOnly(true);
+			pageQuery.setMaxResults(PAGE_SIZE);
+			@SuppressWarnings("unchecked")
+			List<Serializable> pks = pageQuery.list();
+			if (pks.isEmpty())
+				break;
+			
+			if (sampleRate >= 1 || random.nextDouble() < sampleRate) {
+				for (AggregateDriftReport report : reports)
+					verifyPage(session, entity, report, pks);
+				session.clear();
+			}
+			
+			if (pks.size() < PAGE_SIZE)
+				break;
+			lastPk = pks.get(pks.size() - 1);
+		}
+	}
+
+	/**
+	 * Verify one aggregate for the parents with the given primary keys.
+	 */
+	@SuppressWarnings("unchecked")
+	private static void verifyPage(Session session, MetaEntity entity, AggregateDriftReport report, List<Serializable> pks) {
+		AbstractAggregateRule aggregate = report.getAggregate();
+
+		Map<Serializable, Number> computedValues = new HashMap<Serializable, Number>();
+		Query childQuery = session.createQuery(aggregate.getGroupedAggregateQueryForParents());
+		childQuery.setReadOnly(true);
+		childQuery.setParameterList("pks", pks);
+		for (Object[] row : (List<Object[]>)childQuery.list())
+			computedValues.put((Serializable)row[0], (Number)row[1]);
+
+		String idName = entity.getIdentifierName();
+		Query parentQuery = session.createQuery("select " + idName + ", " + aggregate.getBeanAttributeName() + 
+				" from " + entity.getEntityName() + " where " + idName + " in (:pks)");
+		parentQuery.setReadOnly(true);
+		parentQuery.setParameterList("pks", pks);
+		for (Object[] row : (List<Object[]>)parentQuery.list())
+			compare(report, (Serializable)row[0], (Number)row[1], computedValues);
+	}
+
+	/**
+	 * Compare the stored value of one parent with its computed value, and record any difference.
+	 */
+	private static void compare(AggregateDriftReport report, Serializable parentPk, Number storedValue, 
+			Map<Serializable, Number> computedValues) {
+		Number computedValue = computedValues.get(parentPk);
+		report.addParentChecked();
+		if ( ! valuesMatch(report.getAggregate(), storedValue, computedValue))
+			report.addDrift(parentPk, storedValue, computedValue);
+	}
+
+	/**
+	 * Compare a stored value with the computed value. For sums and counts, null is the same as zero.
+	 */
+	private static boolean valuesMatch(AbstractAggregateRule aggregate, Number storedValue, Number computedValue) {
+		if ( ! (aggregate instanceof MinMaxRule)) {
+			if (storedValue == null)
+				storedValue = Integer.valueOf(0);
+			if (computedValue == null)
+				computedValue = Integer.valueOf(0);
+		}
+		if (storedValue == null || computedValue == null)
+			return storedValue == computedValue;
+		BigDecimal stored = (BigDecimal)NumberUtil.convertNumberToType(storedValue, BigDecimal.class);
+		BigDecimal computed = (BigDecimal)NumberUtil.convertNumberToType(computedValue, BigDecimal.class);
+		return stored.compareTo(computed) == 0;
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -58,7 +58,12 @@ public class BeanMapContext extends MapContext {
 		// wrap it in a BeanMapContext so that we can handle null values properly.
 		if (metaProp.isRelationship() && value != null && handleNullRelationships) {
 			MetaRole role = (MetaRole)metaProp;
-			PersistentBean persBean = HibPersistentBeanFactory.getInstance(logicContext.getSession()).
+			HibPersistentBeanFactory beanFactory;
+			if (logicContext.getLogicRunner() != null)
+				beanFactory = logicContext.getLogicRunner().getContext().getPersistentBeanFactory();
+			else
+				beanFactory = HibPersistentBeanFactory.getInstance(logicContext.getSession());
+			PersistentBean persBean = beanFactory.
 				createPersistentBeanFromEntity(value, role.getOtherMetaEntity().getEntityName());
 			return new BeanMapContext(persBean, logicContext, handleNullRelationships);
 		}
@@ -0,0 +1,166 @@
+package com.autobizlogic.abl.rule;
+
+import org.apache.commons.jexl2.JexlArithmetic;
+
+import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.data.hibernate.HibPersistentBean;
+
+/**
+ * The superclass of the classes generated by ExpressionCompiler. A generated class evaluates one
+ * expression by calling the getters of the entity directly, and by using the same arithmetic as Jexl
+ * for all the operators, so that the result is the same as if the expression had been interpreted
+ * by Jexl against a BeanMapContext.
+ * <p/>
+ * This class must be public, as must all the methods used by the generated code, since the generated
+ * classes are defined in their own class loader.
+ */
+public abstract class CompiledExpression {
+
+	/**
+	 * The arithmetic used by default by JexlEngine.
+	 */
+	private static final JexlArithmetic arithmetic = new JexlArithmetic(true);
+
+	private String expression;
+
+	private Class<?> entityClass;
+
+	/**
+	 * The values of the literals in the expression, as evaluated by Jexl.
+	 */
+	protected Object[] constants;
+
+	/**
+	 * For each attribute referenced in the expression, the value to use if the attribute is null.
+	 * See BeanMapContext.convertNull.
+	 */
+	protected Object[] nullValues;
+
+	/**
+	 * Internal method, called by ExpressionCompiler once the instance has been created.
+	 */
+	protected void initialize(String expr, Class<?> cls, Object[] theConstants, Object[] theNullValues) {
+		this.expression = expr;
+		this.entityClass = cls;
+		this.constants = theConstants;
+		this.nullValues = theNullValues;
+	}
+
+	/**
+	 * Get the expression that this was compiled from.
+	 */
+	public String getExpression() {
+		return expression;
+	}
+
+	/**
+	 * Whether this can evaluate the expression for the given bean. This is true only for beans
+	 * that are actual instances of the entity class. Copies of beans, and beans represented
+	 * as maps, must be evaluated by Jexl.
+	 */
+	public boolean canEvaluate(PersistentBean bean) {
+		if ( ! (bean instanceof HibPersistentBean) || ! bean.isPojo())
+			return false;
+		return entityClass.isInstance(bean.getBean());
+	}
+
+	/**
+	 * Evaluate the expression for the given bean. Only call this if canEvaluate returns true.
+	 */
+	public Object evaluate(PersistentBean bean) {
+		return evaluateEntity(bean.getBean());
+	}
+
+	/**
+	 * Implemented by the generated class.
+	 * @param entity The entity, which is always an instance of the entity class
+	 */
+	protected abstract Object evaluateEntity(Object entity);
+
+	///////////////////////////////////////////////////////////////////////////////////////
+	// Methods called by the generated code
+
+	/**
+	 * Get the value of an attribute the same way BeanMapContext does.
+	 * @param value The value returned by the getter
+	 * @param idx The index of the attribute in nullValues
+	 */
+	protected final Object attribute(Object value, int idx) {
+		if (value == null)
+			return nullValues[idx];
+		if (value instanceof Character)
+			return value.toString();
+		return value;
+	}
+
+	protected static final boolean truth(Object value) {
+		return arithmetic.toBoolean(value);
+	}
+
+	protected static final Boolean bool(boolean value) {
+		return value ? Boolean.TRUE : Boolean.FALSE;
+	}
+
+	protected static final Object add(Object left, Object right) {
+		return arithmetic.add(left, right);
+	}
+
+	protected static final Object subtract(Object left, Object right) {
+		return arithmetic.subtract(left, right);
+	}
+
+	protected static final Object multiply(Object left, Object right) {
+		return arithmetic.multiply(left, right);
+	}
+
+	protected static final Object divide(Object left, Object right) {
+		return arithmetic.divide(left, right);
+	}
+
+	protected static final Object mod(Object left, Object right) {
+		return arithmetic.mod(left, right);
+	}
+
+	protected static final Object negate(Object value) {
+		return arithmetic.negate(value);
+	}
+
+	protected static final Boolean eq(Object left, Object right) {
+		return bool(arithmetic.equals(left, right));
+	}
+
+	protected static final Boolean ne(Object left, Object right) {
+		return bool( ! arithmetic.equals(left, right));
+	}
+
+	protected static final Boolean lt(Object left, Object right) {
+		return bool(arithmetic.lessThan(left, right));
+	}
+
+	protected static final Boolean le(Object left, Object right) {
+		return bool(arithmetic.lessThanOrEqual(left, right));
+	}
+
+	protected static final Boolean gt(Object left, Object right) {
+		return bool(arithmetic.greaterThan(left, right));
+	}
+
+	protected static final Boolean ge(Object left, Object right) {
+		return bool(arithmetic.greaterThanOrEqual(left, right));
+	}
+
+	@Override
+	public String toString() {
+		return "Compiled expression for " + entityClass.getName() + ": " + expression;
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND,
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+
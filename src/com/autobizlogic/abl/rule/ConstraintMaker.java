@@ -5,6 +5,7 @@ import java.util.List;
 import java.util.Set;
 
 import com.autobizlogic.abl.annotations.Verbs;
+import com.autobizlogic.abl.engine.ConstraintFailure;
 import com.autobizlogic.abl.logic.analysis.AnnotationEntry;
 import com.autobizlogic.abl.logic.analysis.LogicClassAnalysis;
 import com.autobizlogic.abl.logic.analysis.LogicMethodAnalysis;
@@ -77,7 +78,8 @@ import com.autobizlogic.abl.util.StringUtil;
 	 * <ul>
 	 * <li>whether the constraint ever calls ConstraintFailure.failConstraint. If it does not, a warning
 	 * will be logged.
-	 * <li>if the constraint method has a non-null return type, an exception will be thrown.
+	 * <li>if the constraint method returns something other than void, boolean or ConstraintFailure, 
+	 * an exception will be thrown.
 	 * <li>if any of the attributes listed in problemAttributes do not actually exist, an exception
 	 * will be thrown.
 	 * </ul>
@@ -87,12 +89,19 @@ import com.autobizlogic.abl.util.StringUtil;
 	 */
 	private ConstraintRule createConstraint(LogicMethodAnalysis methodAnalysis, boolean commitTime) {
 
-		// Verify that the method is void
+		// Verify that the method returns something we understand
 		String returnType = methodAnalysis.getReturnTypeName();
-		if (returnType != null && !returnType.equals("void"))
+		ConstraintRule.ResultType resultType;
+		if (returnType == null || returnType.equals("void"))
+			resultType = ConstraintRule.ResultType.VOID;
+		else if (returnType.equals("boolean") || returnType.equals("java.lang.Boolean"))
+			resultType = ConstraintRule.ResultType.BOOLEAN;
+		else if (returnType.equals(ConstraintFailure.class.getName()))
+			resultType = ConstraintRule.ResultType.FAILURE;
+		else
 			throw new RuntimeException("Logic class " + logicGroup.logicClassName + " has method " + methodAnalysis.getMethodName() +
-					" which is defined as a constraint, but it has a non-void return type. " +
-					"All constraints must be declared as void.");
+					" which is defined as a constraint, but it has a return type of " + returnType + ". " +
+					"All constraints must be declared as void, boolean or ConstraintFailure.");
 
 		AnnotationEntry annot = methodAnalysis.getAnnotations().get("Constraint");
 		if (annot == null)
@@ -131,6 +140,7 @@ import com.autobizlogic.abl.util.StringUtil;
 			constraint = new ConstraintRule(logicGroup, methodAnalysis.getMethodName());
 		constraint.problemAttributes = problemAttributes;
 		constraint.setErrorMessage(errorMessage);
+		constraint.setResultType(resultType);
 		Verbs verbs = (Verbs)annot.parameters.get("verbs");
 		if (verbs == null)
 			verbs = Verbs.ALL;
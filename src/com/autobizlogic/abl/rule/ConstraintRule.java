@@ -1,7 +1,6 @@
 package com.autobizlogic.abl.rule;
 
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 
 import org.apache.commons.jexl2.Expression;
 import org.apache.commons.jexl2.JexlContext;
@@ -15,10 +14,10 @@ import com.autobizlogic.abl.logic.LogicContext;
 import com.autobizlogic.abl.perf.PerformanceMonitor;
 import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.event.LogicAfterConstraintEvent;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
 import com.autobizlogic.abl.session.LogicTransactionContext;
 import com.autobizlogic.abl.text.LogicMessageFormatter;
 import com.autobizlogic.abl.text.MessageName;
-import com.autobizlogic.abl.util.MethodInvocationUtil;
 import com.autobizlogic.abl.util.NodalPathUtil;
 
 /**
@@ -26,12 +25,48 @@ import com.autobizlogic.abl.util.NodalPathUtil;
  */
 public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 	
+	/**
+	 * How the constraint method signals a failure, as determined from its return type.
+	 */
+	public enum ResultType {
+		
+		/**
+		 * The method is void, and calls ConstraintFailure.failConstraint if the constraint fails.
+		 */
+		VOID,
+		
+		/**
+		 * The method returns false if the constraint fails. The error message is then used.
+		 */
+		BOOLEAN,
+		
+		/**
+		 * The method returns a ConstraintFailure if the constraint fails, and null otherwise.
+		 */
+		FAILURE
+	}
+	
 	protected String[] problemAttributes;
 	
 	private String expression = null;
+
+	/**
+	 * The compiled version of the expression, or null if it could not be compiled.
+	 * See ExpressionCompiler.
+	 */
+	private volatile CompiledExpression compiledExpression;
+
+	private volatile boolean expressionCompiled = false;
 	
 	private String errorMessage = null;
 	
+	/**
+	 * The parsed version of errorMessage, created when it is first needed.
+	 */
+	private volatile ErrorMessageTemplate errorMessageTemplate;
+	
+	private ResultType resultType = ResultType.VOID;
+	
 	protected static final JexlEngine jexlEngine = new JexlEngine();
 	static {
 		jexlEngine.setCache(512);
@@ -62,6 +97,7 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 	
 	protected void setExpression(String s) {
 		expression = s;
+		expressionCompiled = false;
 	}
 	
 	/**
@@ -73,6 +109,18 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 	
 	protected void setErrorMessage(String s) {
 		errorMessage = s;
+		errorMessageTemplate = null;
+	}
+	
+	/**
+	 * Get how the constraint method signals a failure.
+	 */
+	public ResultType getResultType() {
+		return resultType;
+	}
+	
+	protected void setResultType(ResultType resultType) {
+		this.resultType = resultType;
 	}
 	
 	/**
@@ -103,44 +151,12 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 			return LogicMessageFormatter.getMessage(MessageName.rule_Constraint_genericFailure, 
 					new Object[]{getBeanAttributeName(), bean});
 		
-		if (errorMessage.indexOf('{') == -1)
-			return errorMessage;
-		
-		StringBuffer formattedMsg = new StringBuffer();
-		int braceIdx = 0;
-		int startIdx = 0;
-		int closeBraceIdx = 0;
-		while (braceIdx != -1 && braceIdx < errorMessage.length() - 1) {
-			braceIdx = errorMessage.indexOf('{', braceIdx);
-			if (braceIdx == -1)
-				break;
-			closeBraceIdx = errorMessage.indexOf('}', braceIdx);
-			if (braceIdx == -1) {
-				break;
-			}
-			formattedMsg.append(errorMessage.substring(startIdx, braceIdx));
-			String expr = errorMessage.substring(braceIdx + 1, closeBraceIdx);
-			JexlEngine jexl = new JexlEngine();
-			try {
-				Expression e = jexl.createExpression(expr);
-				BeanMapContext ctxt = new BeanMapContext(bean, null, false);
-				Object result = e.evaluate(ctxt);
-				if (result != null)
-					formattedMsg.append(result.toString());
-				else
-					formattedMsg.append("<null>");
-			}
-			catch(Exception ex) {
-				formattedMsg.append("<error>");
-			}
-			
-			startIdx = closeBraceIdx + 1;
-			braceIdx++;
+		ErrorMessageTemplate template = errorMessageTemplate;
+		if (template == null) {
+			template = new ErrorMessageTemplate(errorMessage, jexlEngine);
+			errorMessageTemplate = template;
 		}
-		if (closeBraceIdx > 0 && closeBraceIdx < errorMessage.length() - 1)
-			formattedMsg.append(errorMessage.substring(closeBraceIdx + 1));
-		
-		return formattedMsg.toString();
+		return template.format(bean);
 	}
 	
 	public void execute(PersistentBean bean, LogicRunner aLogicRunner) {
@@ -159,42 +175,23 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 		//	return null;
 		
 		long startTime = System.nanoTime();
+		computeLazyDependencies(aLogicRunner);
 		ConstraintFailure failure = null;
 		try {
 			if (expression != null && expression.trim().length() > 0) {
-				executeDeclaredConstraint(aLogicRunner.getLogicObject(), aLogicRunner.getCurrentDomainObject(), 
-						false, aLogicRunner.getLogicContext());
+				failure = executeDeclaredConstraint(aLogicRunner.getLogicObject(), aLogicRunner.getCurrentDomainObject(), 
+						aLogicRunner.getPriorDomainObject(), false, aLogicRunner.getLogicContext());
 			}
 			else {
-				String theLogicMethodName = getLogicMethodName();
-				Class<?> logicClass = aLogicRunner.getLogicObject().getClass();
-				Method constraintMethod = logicClass.getMethod(theLogicMethodName, (Class<?>[])null);
-				if (constraintMethod == null)
-					throw new RuntimeException("Unable to find constraint method " + theLogicMethodName + " in class " + logicClass.getName());
-				constraintMethod.invoke(aLogicRunner.getLogicObject(), (Object[])null);
+				Object result = callLogicMethod(aLogicRunner);
+				failure = getFailureFromResult(result, aLogicRunner.getCurrentDomainObject());
 			}
 		}
-		catch (NoSuchMethodException e) {
-			throw new LogicException("Failure finding / executing constraint: " + logicMethodName + " on: " + aLogicRunner.getLogicObject(), e);
-		}
-		catch (IllegalAccessException e) {
-			throw new LogicException("Failure finding or executing constraint: " + logicMethodName + " on: " + aLogicRunner.getLogicObject(), e);
-		}
-		catch (InvocationTargetException e) {  // this is the exception we get for failed constraints
+		catch (InvocationTargetException e) {  // this is the exception we get for failed void constraints
 			Throwable cause = e.getCause();
 			if (cause != null && (cause instanceof InternalConstraintException)) {
 				InternalConstraintException ice = (InternalConstraintException)cause;
-				String[] atts = ice.getProblemAttributes();
-				if (atts == null)
-					atts = problemAttributes;
-				failure = new ConstraintFailure(ice.getMessage(), atts);
-				failure.setLogicClassName(aLogicRunner.getLogicObject().getClass().getName());
-				failure.setConstraintName(getLogicMethodName());
-				failure.setProblemPk(aLogicRunner.getCurrentDomainObject().getPk());
-				if (log.isDebugEnabled()) {
-					log.debug("Constraint failure: " + failure.getLogicClassName() + "." + 
-							failure.getConstraintName() + " for object [" + failure.getProblemPk() + "]");
-				}
+				failure = new ConstraintFailure(ice.getMessage(), ice.getProblemAttributes());
 			}
 			else {
 				throw new LogicException("Failure finding or executing constraint: " + 
@@ -207,6 +204,18 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 			throw new LogicException("Failure finding or executing constraint: " + logicMethodName + " on: " + aLogicRunner.getLogicObject(), e);
 		}
 		
+		if (failure != null) {
+			if (failure.getProblemAttributes() == null)
+				failure.setProblemAttributes(problemAttributes);
+			failure.setLogicClassName(aLogicRunner.getLogicObject().getClass().getName());
+			failure.setConstraintName(getLogicMethodName());
+			failure.setProblemPk(aLogicRunner.getCurrentDomainObject().getPk());
+			if (log.isDebugEnabled()) {
+				log.debug("Constraint failure: " + failure.getLogicClassName() + "." + 
+						failure.getConstraintName() + " for object [" + failure.getProblemPk() + "]");
+			}
+		}
+		
 		firePostEvent(aLogicRunner.getLogicObject(), aLogicRunner, failure, System.nanoTime() - startTime);
 		
 		return failure;
@@ -216,11 +225,12 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 	 * Execute the expression defined in the annotation.
 	 * @param aLogicObject The logic object for the bean
 	 * @param bean The bean itself
+	 * @param priorBean The old version of the bean, if any
 	 * @param skipMethodIfPossible If true, and the constraint is an expression, do not execute the method.
-	 * @throws InvocationTargetException If the expression did not evaluate successfully
+	 * @return Null if the expression evaluated to true, otherwise the failure
 	 */
-	private void executeDeclaredConstraint(Object aLogicObject, PersistentBean bean, 
-			boolean skipMethodIfPossible, LogicContext logicContext) throws InvocationTargetException {
+	private ConstraintFailure executeDeclaredConstraint(Object aLogicObject, PersistentBean bean, PersistentBean priorBean,
+			boolean skipMethodIfPossible, LogicContext logicContext) {
 		
 		Object result = evaluateExpression(bean, logicContext);
 		if (result == null)
@@ -232,7 +242,7 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 		
 		if ( ! skipMethodIfPossible) {
 			try { // Then call the method for debugging purposes, but ignore its return value
-				MethodInvocationUtil.invokeMethodOnObject(aLogicObject, logicMethodName);
+				callLogicMethod(aLogicObject, bean, priorBean, logicContext);
 			}
 			catch(Exception ex) {
 				log.warn("Constraint method " + this.getLogicGroup().getLogicClassName() + "." +
@@ -247,9 +257,38 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 			String msg = "Constraint expression " + getLogicGroup().getLogicClassName() + "." + getLogicMethodName() + " evaluated to false.";
 			if (errorMessage != null) 
 				msg = getFormattedErrorMessage(bean);
-			throw new InvocationTargetException(new InternalConstraintException(msg));
-		}		
-}
+			return new ConstraintFailure(msg, null);
+		}
+		return null;
+	}
+	
+	/**
+	 * Interpret the value returned by the constraint method, according to its result type.
+	 * @return Null if the constraint was satisfied, otherwise a new failure, which can be modified
+	 */
+	private ConstraintFailure getFailureFromResult(Object result, PersistentBean bean) {
+		switch(resultType) {
+			case BOOLEAN :
+				if (result == null)
+					throw new RuntimeException("Constraint " + this.getLogicGroup().getLogicClassName() + "." +
+							this.getLogicMethodName() + " returned null. A constraint must return true or false.");
+				if ((Boolean)result)
+					return null;
+				return new ConstraintFailure(getFormattedErrorMessage(bean), null);
+			case FAILURE : {
+				// The returned failure may well be shared (e.g. a constant), so we fill in a copy of it
+				ConstraintFailure returnedFailure = (ConstraintFailure)result;
+				if (returnedFailure == null)
+					return null;
+				ConstraintFailure failure = new ConstraintFailure(returnedFailure.getConstraintMessage(), 
+						returnedFailure.getProblemAttributes());
+				failure.setProblemClass(returnedFailure.getProblemClass());
+				return failure;
+			}
+			default :
+				return null;
+		}
+	}
 	
 	/**
 	 * Execute the constraint method, but without a full context. This is used for post-facto checking.
@@ -260,23 +299,16 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 	public ConstraintFailure executeConstraintForObject(Object aLogicObject, PersistentBean bean) {
 		ConstraintFailure failure = null;
 		
-		Class<?> logicClass = aLogicObject.getClass();
 		String theLogicMethodName = getLogicMethodName();
 		try {
 			if (expression != null && expression.trim().length() > 0) {
-				executeDeclaredConstraint(aLogicObject, bean, true, null);
+				failure = executeDeclaredConstraint(aLogicObject, bean, null, true, null);
 			}
 			else {
-				Method constraintMethod = logicClass.getMethod(theLogicMethodName, (Class<?>[])null); 
-				constraintMethod.invoke(aLogicObject, (Object[])null); 
+				Object result = callLogicMethod(aLogicObject, bean, null, null);
+				failure = getFailureFromResult(result, bean);
 			}
 		}
-		catch (NoSuchMethodException e) {
-			throw new LogicException("Failure finding / executing constraint: " + theLogicMethodName + " on: " + aLogicObject, e);
-		}
-		catch (IllegalAccessException e) {
-			throw new LogicException("Failure finding or executing constraint: " + theLogicMethodName + " on: " + aLogicObject, e);
-		}
 		catch (InvocationTargetException e) {  // this is the exception we get for failed constraints
 			Throwable cause = e.getCause();
 			String causeMsg = cause == null ? "System error - unknown message" : cause.getMessage();
@@ -286,6 +318,8 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 			throw new LogicException("Failure finding or executing constraint: " + theLogicMethodName + " on: " + aLogicObject, e);
 		}
 		
+		if (failure != null && failure.getProblemAttributes() == null)
+			failure.setProblemAttributes(problemAttributes);
 		return failure;
 	}
 	
@@ -298,6 +332,16 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 		if (expression == null || expression.trim().length() == 0)
 			return null;
 		
+		CompiledExpression compiled = getCompiledExpression();
+		if (compiled != null && compiled.canEvaluate(bean)) {
+			try {
+				return compiled.evaluate(bean);
+			}
+			catch(Exception ex) {
+				throw new LogicException("Error while evaluating expression : " + expression, ex);
+			}
+		}
+		
 		JexlContext context = new BeanMapContext(bean, null, false);
 		Expression expr;
 		try {
@@ -317,16 +361,35 @@ public class ConstraintRule extends AbstractDependsOnWithVerbsRule {
 		return res;
 	}
 
+	/**
+	 * Get the compiled version of the expression, compiling it if this has not been done yet.
+	 * @return Null if the expression could not be compiled, and must be interpreted.
+	 */
+	private CompiledExpression getCompiledExpression() {
+		if ( ! expressionCompiled) {
+			synchronized(this) {
+				if ( ! expressionCompiled) {
+					if (ExpressionCompiler.isEnabled())
+						compiledExpression = ExpressionCompiler.compile(expression, getLogicGroup().getMetaEntity());
+					expressionCompiled = true;
+				}
+			}
+		}
+		return compiledExpression;
+	}
+
 	/**
 	 * Fire the post event for this constraint.
 	 */
 	protected void firePostEvent(Object aLogicObject, LogicRunner aLogicRunner, 
 			ConstraintFailure failure, long executionTime) {
 		
-		LogicAfterConstraintEvent evt = new LogicAfterConstraintEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(),
-				this, aLogicRunner.getCurrentDomainObject(), failure);
-		evt.setExecutionTime(executionTime);
-		LogicTransactionContext.fireEvent(evt);
+		if (LogicTransactionContext.hasEventListeners(EventType.AFTER_CONSTRAINT)) {
+			LogicAfterConstraintEvent evt = new LogicAfterConstraintEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(),
+					this, aLogicRunner.getCurrentDomainObject(), failure);
+			evt.setExecutionTime(executionTime);
+			LogicTransactionContext.fireEvent(evt);
+		}
 		PerformanceMonitor.addRuleExecution(this, executionTime);
 	}
 	
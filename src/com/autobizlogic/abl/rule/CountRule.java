@@ -1,14 +1,12 @@
 package com.autobizlogic.abl.rule;
 
-import java.util.Collection;
+import java.math.BigDecimal;
 import java.util.Map;
 import java.util.Set;
 
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
-import org.hibernate.collection.PersistentCollection;
-import org.hibernate.engine.PersistenceContext;
 import org.hibernate.impl.SessionImpl;
 import org.hibernate.persister.entity.EntityPersister;
 
@@ -17,8 +15,6 @@ import com.autobizlogic.abl.metadata.MetaAttribute;
 import com.autobizlogic.abl.metadata.MetaRole;
 import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
 import com.autobizlogic.abl.data.PersistentBean;
-import com.autobizlogic.abl.data.hibernate.HibPersistentBeanFactory;
-import com.autobizlogic.abl.hibernate.HibernateSessionUtil;
 import com.autobizlogic.abl.engine.phase.AdjustAllParents;
 import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.engine.LogicException;
@@ -26,7 +22,6 @@ import com.autobizlogic.abl.engine.LogicRunner.LogicRunnerPhase;
 import com.autobizlogic.abl.engine.LogicRunner.LogicProcessingState;
 import com.autobizlogic.abl.session.LogicTransactionContext;
 import com.autobizlogic.abl.session.LogicTransactionManager;
-import com.autobizlogic.abl.util.BeanMap;
 import com.autobizlogic.abl.util.BeanUtil;
 import com.autobizlogic.abl.util.NodalPathUtil;
 import com.autobizlogic.abl.util.ProxyUtil;
@@ -45,7 +40,9 @@ public class CountRule extends AbstractAggregateRule {
 	public void adjustedParentDomainObject(AdjustAllParents aParentAdjustments) {
 		
 		LogicRunner childLogicRunner = aParentAdjustments.getChildLogicRunner();
-		if (childLogicRunner.getVerb() == Verb.UPDATE)
+		if (getAggregateAlgorithm() == AggregateAlgorithm.SQL || getAggregateAlgorithm() == AggregateAlgorithm.MEMORY)
+			recomputeParents(aParentAdjustments);
+		else if (childLogicRunner.getVerb() == Verb.UPDATE)
 			adjustFromUpdatedChild(aParentAdjustments);
 		else if (childLogicRunner.getVerb() == Verb.INSERT)
 			adjustFromInsertedChild(aParentAdjustments);
@@ -55,6 +52,37 @@ public class CountRule extends AbstractAggregateRule {
 			throw new LogicException("Unexpected Verb: " + childLogicRunner.getVerb());
 	}
 	
+	/**
+	 * Counts can be coalesced if they are persistent, and their method has no code.
+	 */
+	@Override
+	public boolean isCoalescable() {
+		if ( ! noCode || getAggregateAlgorithm() != AggregateAlgorithm.ADJUST)
+			return false;
+		MetaAttribute metaAttribute = getLogicGroup().getMetaEntity().getMetaAttribute(getBeanAttributeName());
+		return ! metaAttribute.isTransient();
+	}
+	
+	/**
+	 * Each qualified child counts for one.
+	 */
+	@Override
+	protected BigDecimal getChildContribution(PersistentBean child) {
+		return BigDecimal.ONE;
+	}
+	
+	@Override
+	protected String getAggregateSelectExpression() {
+		return "count(*)";
+	}
+	
+	@Override
+	protected void checkAdjustedValue(PersistentBean parentBean, BigDecimal newValue) {
+		if (newValue.signum() < 0)
+			throw new RuntimeException("Count attribute " + getBeanAttributeName() + " in object " + 
+					parentBean + " cannot have a value less than 0");
+	}
+	
 	public void adjustFromUpdatedChild(AdjustAllParents aParentAdjustments) {
 		
 		long startTime = System.nanoTime();
@@ -94,14 +122,14 @@ public class CountRule extends AbstractAggregateRule {
 				currentParent = ProxyUtil.getNonProxyObject(currentParent);
 			ep = sessionImpl.getEntityPersister(entityName, currentParent);
 		}
-		priorParentBean = HibPersistentBeanFactory.getInstance(context.getSession()).
+		priorParentBean = context.getPersistentBeanFactory().
 			createPersistentBeanFromObject(priorParent, ep);
 		
 		PersistentBean currentParentBean;
 		if (priorParent instanceof PersistentBean)
 			throw new LogicException("Unexpected Persistent Bean - expected map/pojo");
 		
-		currentParentBean = HibPersistentBeanFactory.getInstance(context.getSession()).
+		currentParentBean = context.getPersistentBeanFactory().
 			createPersistentBeanFromObject(currentParent, parentMetaEntity.getEntityPersister());
 
 		// Look ahead in the LogicRunner queue for a LogicRunner for the
@@ -269,7 +297,7 @@ public class CountRule extends AbstractAggregateRule {
 			SessionImpl sessionImpl = (SessionImpl)context.getSession();
 			String entityName = sessionImpl.getEntityName(currentParent);
 			EntityPersister ep = sessionImpl.getEntityPersister(entityName, currentParent);
-			theParent = HibPersistentBeanFactory.getInstance(context.getSession()).
+			theParent = context.getPersistentBeanFactory().
 				createPersistentBeanFromObject(currentParent, ep);
 
 			// Look ahead in the LogicRunner queue for a LogicRunner for the
@@ -348,7 +376,7 @@ public class CountRule extends AbstractAggregateRule {
 			HibMetaEntity parentMetaEntity = (HibMetaEntity)role.getMetaEntity();
 			ep = parentMetaEntity.getEntityPersister();
 		}
-		PersistentBean theParent = HibPersistentBeanFactory.getInstance(context.getSession()).
+		PersistentBean theParent = context.getPersistentBeanFactory().
 				createPersistentBeanFromObject(parent, ep);
 
 		if (theParent == null || context.objectIsDeleted(theParent))
@@ -400,56 +428,6 @@ public class CountRule extends AbstractAggregateRule {
 			aParentAdjustments.setAdjustedParentDomainObject (theParent);  // cause it to be saved
 	}
 	
-	/* COMMENTED OUT until we have a better idea of how this is supposed to work.
-	public void computeAggregateFromDatabase(Object bean, LogicTransactionContext context) {
-		//BeanMap beanMap = new BeanMap(bean);
-		String beanClassName = HibernateMetaUtil.getEntityNameForObject(bean); // objectState.getObjectClassName();
-		//String attName = this.getBeanAttributeName();
-		String roleName = this.getRoleName();
-		String[] inverse = context.getMetaUtil().getInverseForRole(beanClassName, roleName);
-		ClassMetadata childClassMeta = context.getSessionFactory().getClassMetadata(inverse[0]);
-		String childEntityName = childClassMeta.getEntityName();
-		String childRoleName = inverse[1];
-		String whereClause = this.getQualificationSQL();
-		if (whereClause == null)
-			whereClause = "";
-		else
-			whereClause = " and (" + whereClause + ")";
-		String sql = "select count(*) from " + childEntityName + " where " + childRoleName + " = :parent" + whereClause;
-		
-		FlushMode oldFlushMode = context.getSession().getFlushMode();
-		context.getSession().setFlushMode(FlushMode.MANUAL);
-		
-		Query query = context.getSession().createQuery(sql);
-		query.setEntity("parent", bean);
-		Long count = (Long)query.list().get(0);
-		//beanMap.put(attName, count);
-		
-		context.getSession().setFlushMode(oldFlushMode);
-		
-		// return count;
-	}
-	
-	public void computeAggregateFromDatabase2(Object bean, LogicTransactionContext context) {
-		BeanMap beanMap = new BeanMap(bean);
-		@SuppressWarnings("unchecked")
-		Collection<Object> value = (Collection<Object>)beanMap.get(getRoleName());
-		int size = value.size();
-		//if (value instanceof List<?>) { // Lists can have null elements, so we have to count the non-null elements
-		//	for (Object obj : value) {
-		//		if (obj != null)
-		//			size++;
-		//	}
-		//}
-		//if (value instanceof PersistentList) {
-		//	((PersistentList)value).clearDirty();
-		//}
-		//else
-		//	throw new RuntimeException("Collection is not a persistent list");
-		beanMap.put(getBeanAttributeName(), size);
-	}
-	*/
-	
 	/**
 	 * Mechanism to initialize count attribute, e.g., from Domain Object getter.
 	 * 
@@ -488,45 +466,18 @@ public class CountRule extends AbstractAggregateRule {
 	
 	/**
 	 * Compute the count in-memory, i.e. without directly accessing the database. This is used for
-	 * transient attributes.
-	 * @param bean The parent object
+	 * transient attributes. See computeAggregateInMemory for details.
+	 * @param bean The parent object, either a PersistentBean or an entity
 	 * @param aContext The current context
 	 * @return The count value
 	 */
-
 	public Integer computeCountInMemory(Object bean, LogicTransactionContext aContext) {
-		BeanMap beanMap = new BeanMap(bean);
-		int resultNumber = 0;
-		Collection<?> theChildren = (Collection<?>)beanMap.get(roleName);
-		
-		if (theChildren == null || theChildren.isEmpty())
-			return 0;
-		
-		PersistenceContext persistenceContext = HibernateSessionUtil.getPersistenceContextForSession(aContext.getSession());
-		if ( ! persistenceContext.containsCollection((PersistentCollection)theChildren)) {
-			String errMsg = "Persistent collection " + roleName + " of object " + bean + " is not in the current transaction. This usually means " +
-			"that you are trying to use a transient sum or count in a commit action or commit constraint, and the object in question is being deleted. " +
-			"You should change your constraint or action (in this case, " + getLogicGroup().getLogicClassName() + "." + getLogicMethodName() +
-			") so that it does not fire when the object is being deleted (e.g. logicContext.verb != Verb.DELETE).";
-			throw new RuntimeException(errMsg);
-		}
-		
-/* Note : I am commenting this out until we have a better idea of how PersistentBeans are handled
-		for (Object eachChild: theChildren) {
-			ObjectState childObjectState = ObjectStateFactory.createObjectStateForObject(eachChild, aContext.getSession());
-			if (childObjectState == null) // This usually means the child has not yet been saved, and therefore has no pk yet. We'll get to it later.
-				return null;
-			
-			if (runQualificationForBean(childObjectState))
-				resultNumber++;
-				
-		} // for eachChild
-*/		
-		if (log.isInfoEnabled())
-			log.info ("InMem[" + getBeanAttributeName() + "]==" + resultNumber + 
-					" in parent " + beanMap.toString());
-
-		return resultNumber;		
+		PersistentBean parentBean;
+		if (bean instanceof PersistentBean)
+			parentBean = (PersistentBean)bean;
+		else
+			parentBean = aContext.getPersistentBeanFactory().createPersistentBeanFromEntity(bean);
+		return Integer.valueOf(computeAggregateInMemory(parentBean, aContext).intValue());
 	}
 	
 	/**
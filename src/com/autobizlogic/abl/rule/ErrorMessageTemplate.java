@@ -0,0 +1,97 @@
+package com.autobizlogic.abl.rule;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.jexl2.Expression;
+import org.apache.commons.jexl2.JexlEngine;
+
+import com.autobizlogic.abl.data.PersistentBean;
+
+/**
+ * A constraint error message, parsed once into literal text and {expression} placeholders.
+ * The expressions are compiled when the template is created, and evaluated against the bean
+ * every time the message is formatted.
+ * <p/>
+ * An expression that cannot be parsed or evaluated is rendered as &lt;error&gt;, and a null value
+ * as &lt;null&gt;. A brace that is not closed is kept as literal text.
+ */
+public class ErrorMessageTemplate {
+
+	/**
+	 * The literal parts of the message. There is always one more literal than there are expressions.
+	 */
+	private final String[] literals;
+	
+	/**
+	 * The compiled expressions. An entry is null if the expression could not be parsed.
+	 */
+	private final Expression[] expressions;
+
+	public ErrorMessageTemplate(String message, JexlEngine jexlEngine) {
+		List<String> literalList = new ArrayList<String>();
+		List<Expression> expressionList = new ArrayList<Expression>();
+		int startIdx = 0;
+		while (true) {
+			int braceIdx = message.indexOf('{', startIdx);
+			int closeBraceIdx = braceIdx == -1 ? -1 : message.indexOf('}', braceIdx);
+			if (closeBraceIdx == -1)
+				break;
+			literalList.add(message.substring(startIdx, braceIdx));
+			String expr = message.substring(braceIdx + 1, closeBraceIdx);
+			Expression expression = null;
+			try {
+				expression = jexlEngine.createExpression(expr);
+			}
+			catch(Exception ex) {
+				// This will be rendered as <error>
+			}
+			expressionList.add(expression);
+			startIdx = closeBraceIdx + 1;
+		}
+		literalList.add(message.substring(startIdx));
+		
+		literals = literalList.toArray(new String[literalList.size()]);
+		expressions = expressionList.toArray(new Expression[expressionList.size()]);
+	}
+
+	/**
+	 * Format the message for the given bean.
+	 */
+	public String format(PersistentBean bean) {
+		if (expressions.length == 0)
+			return literals[0];
+		
+		StringBuilder formattedMsg = new StringBuilder();
+		BeanMapContext ctxt = new BeanMapContext(bean, null, false);
+		for (int i = 0; i < expressions.length; i++) {
+			formattedMsg.append(literals[i]);
+			if (expressions[i] == null) {
+				formattedMsg.append("<error>");
+				continue;
+			}
+			try {
+				Object result = expressions[i].evaluate(ctxt);
+				if (result != null)
+					formattedMsg.append(result.toString());
+				else
+					formattedMsg.append("<null>");
+			}
+			catch(Exception ex) {
+				formattedMsg.append("<error>");
+			}
+		}
+		formattedMsg.append(literals[expressions.length]);
+		return formattedMsg.toString();
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -0,0 +1,442 @@
+package com.autobizlogic.abl.rule;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+
+import org.apache.commons.jexl2.JexlEngine;
+import org.apache.commons.jexl2.MapContext;
+
+import com.autobizlogic.abl.config.LogicConfiguration;
+import com.autobizlogic.abl.config.LogicConfiguration.PropertyName;
+import com.autobizlogic.abl.logic.analysis.ClassLoaderManager;
+import com.autobizlogic.abl.metadata.MetaEntity;
+import com.autobizlogic.abl.metadata.MetaProperty;
+import com.autobizlogic.abl.util.GeneratedClassLoader;
+import com.autobizlogic.abl.util.LogicLogger;
+import com.autobizlogic.abl.util.LogicLogger.LoggerName;
+
+/**
+ * Compiles the expressions of formulas and constraints into Java classes (subclasses of CompiledExpression),
+ * which call the getters of the entity directly instead of going through Jexl, BeanMapContext and
+ * reflection.
+ * <p/>
+ * Only a subset of Jexl is compiled: literals, attributes of the entity itself, parentheses, and the
+ * arithmetic, comparison and logical operators (in symbol or word form). Anything else, such as references
+ * through relationships, method calls or the ternary operator, is not compiled: compile then returns null,
+ * and the expression should be interpreted by Jexl as usual. Operators are evaluated using Jexl's own arithmetic,
+ * and literals are evaluated by Jexl at compile time, so that the results are the same as with Jexl.
+ * <p/>
+ * This is turned on with the compileExpressions configuration property.
+ */
+public class ExpressionCompiler {
+
+	private static final JexlEngine jexlEngine = new JexlEngine();
+	static {
+		jexlEngine.setSilent(false);
+	}
+
+	private static int classCounter = 0;
+
+	private static final LogicLogger _logger = LogicLogger.getLogger(LoggerName.RULES_ENGINE);
+
+	private static final Map<String, String> wordOperators = new HashMap<String, String>();
+	static {
+		wordOperators.put("and", "&&");
+		wordOperators.put("or", "||");
+		wordOperators.put("not", "!");
+		wordOperators.put("eq", "==");
+		wordOperators.put("ne", "!=");
+		wordOperators.put("lt", "<");
+		wordOperators.put("le", "<=");
+		wordOperators.put("gt", ">");
+		wordOperators.put("ge", ">=");
+		wordOperators.put("div", "/");
+		wordOperators.put("mod", "%");
+	}
+
+	private static final Map<String, String> operatorMethods = new HashMap<String, String>();
+	static {
+		operatorMethods.put("==", "eq");
+		operatorMethods.put("!=", "ne");
+		operatorMethods.put("<", "lt");
+		operatorMethods.put("<=", "le");
+		operatorMethods.put(">", "gt");
+		operatorMethods.put(">=", "ge");
+		operatorMethods.put("+", "add");
+		operatorMethods.put("-", "subtract");
+		operatorMethods.put("*", "multiply");
+		operatorMethods.put("/", "divide");
+		operatorMethods.put("%", "mod");
+	}
+
+	/**
+	 * Whether the compilation of expressions has been turned on in the configuration.
+	 */
+	public static boolean isEnabled() {
+		String prop = LogicConfiguration.getInstance().getProperty(PropertyName.COMPILE_EXPRESSIONS);
+		return "true".equalsIgnoreCase(prop);
+	}
+
+	/**
+	 * Compile the given expression for the given entity.
+	 * @return Null if the expression cannot be compiled, in which case it should be interpreted by Jexl.
+	 */
+	public static CompiledExpression compile(String expression, MetaEntity metaEntity) {
+		if (expression == null || expression.trim().length() == 0 || ! metaEntity.isPojo())
+			return null;
+		Class<?> entityClass = metaEntity.getEntityClass();
+		if (entityClass == null || ! Modifier.isPublic(entityClass.getModifiers()))
+			return null;
+
+		ExpressionCompiler compiler = new ExpressionCompiler(expression, metaEntity, entityClass);
+		String code;
+		try {
+			code = compiler.parse();
+		}
+		catch(UnsupportedExpressionException ex) {
+			if (_logger.isDebugEnabled())
+				_logger.debug("Expression " + expression + " for " + metaEntity.getEntityName() +
+						" will be interpreted: " + ex.getMessage());
+			return null;
+		}
+
+		try {
+			return compiler.generateClass(code);
+		}
+		catch(Exception ex) {
+			if (_logger.isWarnEnabled())
+				_logger.warn("Unable to compile expression " + expression + " for " + metaEntity.getEntityName() +
+						" -- it will be interpreted", ex);
+			return null;
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	private String expression;
+	private MetaEntity metaEntity;
+	private Class<?> entityClass;
+	private List<String> tokens;
+	private int pos = 0;
+	private List<Object> constants = new ArrayList<Object>();
+	private List<Object> nullValues = new ArrayList<Object>();
+	private Map<String, Integer> attributeIndexes = new HashMap<String, Integer>();
+
+	private ExpressionCompiler(String expression, MetaEntity metaEntity, Class<?> entityClass) {
+		this.expression = expression;
+		this.metaEntity = metaEntity;
+		this.entityClass = entityClass;
+	}
+
+	/**
+	 * Parse the expression.
+	 * @return The Java code to evaluate the expression
+	 */
+	private String parse() throws UnsupportedExpressionException {
+		tokens = tokenize(expression);
+		String code = parseOr();
+		if (pos < tokens.size())
+			throw new UnsupportedExpressionException("unexpected token " + tokens.get(pos));
+		return code;
+	}
+
+	private String parseOr() throws UnsupportedExpressionException {
+		String code = parseAnd();
+		while (nextIs("||"))
+			code = "bool(truth(" + code + ") || truth(" + parseAnd() + "))";
+		return code;
+	}
+
+	private String parseAnd() throws UnsupportedExpressionException {
+		String code = parseEquality();
+		while (nextIs("&&"))
+			code = "bool(truth(" + code + ") && truth(" + parseEquality() + "))";
+		return code;
+	}
+
+	private String parseEquality() throws UnsupportedExpressionException {
+		String code = parseRelational();
+		String op;
+		while ((op = nextOneOf("==", "!=")) != null)
+			code = operatorMethods.get(op) + "(" + code + ", " + parseRelational() + ")";
+		return code;
+	}
+
+	private String parseRelational() throws UnsupportedExpressionException {
+		String code = parseAdditive();
+		String op;
+		while ((op = nextOneOf("<", "<=", ">", ">=")) != null)
+			code = operatorMethods.get(op) + "(" + code + ", " + parseAdditive() + ")";
+		return code;
+	}
+
+	private String parseAdditive() throws UnsupportedExpressionException {
+		String code = parseMultiplicative();
+		String op;
+		while ((op = nextOneOf("+", "-")) != null)
+			code = operatorMethods.get(op) + "(" + code + ", " + parseMultiplicative() + ")";
+		return code;
+	}
+
+	private String parseMultiplicative() throws UnsupportedExpressionException {
+		String code = parseUnary();
+		String op;
+		while ((op = nextOneOf("*", "/", "%")) != null)
+			code = operatorMethods.get(op) + "(" + code + ", " + parseUnary() + ")";
+		return code;
+	}
+
+	private String parseUnary() throws UnsupportedExpressionException {
+		if (nextIs("!"))
+			return "bool( ! truth(" + parseUnary() + "))";
+		if (nextIs("-")) {
+			// A negative number is a literal, so that it gets the same type as in Jexl
+			if (pos < tokens.size() && Character.isDigit(tokens.get(pos).charAt(0)))
+				return constant("-" + tokens.get(pos++));
+			return "negate(" + parseUnary() + ")";
+		}
+		return parsePrimary();
+	}
+
+	private String parsePrimary() throws UnsupportedExpressionException {
+		if (pos >= tokens.size())
+			throw new UnsupportedExpressionException("unexpected end of expression");
+		String token = tokens.get(pos++);
+		char c = token.charAt(0);
+
+		if (token.equals("(")) {
+			String code = parseOr();
+			if ( ! nextIs(")"))
+				throw new UnsupportedExpressionException("missing closing parenthesis");
+			return "(" + code + ")";
+		}
+		if (Character.isDigit(c) || c == '\'' || c == '"')
+			return constant(token);
+		if (token.equals("true") || token.equals("false") || token.equals("null"))
+			return constant(token);
+		if (Character.isJavaIdentifierStart(c))
+			return attribute(token);
+
+		throw new UnsupportedExpressionException("unexpected token " + token);
+	}
+
+	/**
+	 * Generate the code for a literal. The value of the literal is computed by Jexl.
+	 */
+	private String constant(String literal) throws UnsupportedExpressionException {
+		Object value;
+		try {
+			value = jexlEngine.createExpression(literal).evaluate(new MapContext());
+		}
+		catch(Exception ex) {
+			throw new UnsupportedExpressionException("unsupported literal " + literal);
+		}
+		constants.add(value);
+		return "constants[" + (constants.size() - 1) + "]";
+	}
+
+	/**
+	 * Generate the code to get the value of an attribute.
+	 */
+	private String attribute(String name) throws UnsupportedExpressionException {
+		if (pos < tokens.size() && tokens.get(pos).equals("("))
+			throw new UnsupportedExpressionException("function call " + name);
+		MetaProperty metaProperty = metaEntity.getMetaProperty(name);
+		if (metaProperty == null || ! metaProperty.isAttribute())
+			throw new UnsupportedExpressionException(name + " is not an attribute");
+		Method getter = findGetter(name);
+		if (getter == null)
+			throw new UnsupportedExpressionException("no public getter for " + name);
+
+		Integer idx = attributeIndexes.get(name);
+		if (idx == null) {
+			nullValues.add(BeanMapContext.convertNull(metaEntity, name));
+			idx = Integer.valueOf(nullValues.size() - 1);
+			attributeIndexes.put(name, idx);
+		}
+
+		String call = "((" + entityClass.getName() + ")entity)." + getter.getName() + "()";
+		Class<?> type = getter.getReturnType();
+		if (type.isPrimitive())
+			call = getWrapperClass(type).getName() + ".valueOf(" + call + ")";
+		return "attribute(" + call + ", " + idx + ")";
+	}
+
+	private Method findGetter(String name) {
+		String capName = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+		for (String prefix : new String[]{"get", "is"}) {
+			try {
+				Method method = entityClass.getMethod(prefix + capName);
+				if (method.getReturnType() != Void.TYPE && Modifier.isPublic(method.getDeclaringClass().getModifiers()))
+					return method;
+			}
+			catch(NoSuchMethodException ex) {
+				// Try the next prefix
+			}
+		}
+		return null;
+	}
+
+	private static Class<?> getWrapperClass(Class<?> primitive) {
+		if (primitive == Integer.TYPE) return Integer.class;
+		if (primitive == Long.TYPE) return Long.class;
+		if (primitive == Double.TYPE) return Double.class;
+		if (primitive == Float.TYPE) return Float.class;
+		if (primitive == Short.TYPE) return Short.class;
+		if (primitive == Byte.TYPE) return Byte.class;
+		if (primitive == Boolean.TYPE) return Boolean.class;
+		if (primitive == Character.TYPE) return Character.class;
+		throw new RuntimeException("Unknown primitive type: " + primitive);
+	}
+
+	private boolean nextIs(String op) {
+		if (pos < tokens.size() && tokens.get(pos).equals(op)) {
+			pos++;
+			return true;
+		}
+		return false;
+	}
+
+	private String nextOneOf(String... ops) {
+		if (pos >= tokens.size())
+			return null;
+		String token = tokens.get(pos);
+		for (String op : ops) {
+			if (token.equals(op)) {
+				pos++;
+				return op;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Split the expression into tokens. Word operators are replaced by the equivalent symbol.
+	 */
+	private static List<String> tokenize(String expr) throws UnsupportedExpressionException {
+		List<String> result = new ArrayList<String>();
+		int i = 0;
+		while (i < expr.length()) {
+			char c = expr.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			int start = i;
+			if (Character.isDigit(c)) {
+				while (i < expr.length() && (Character.isLetterOrDigit(expr.charAt(i)) || expr.charAt(i) == '.'))
+					i++;
+				result.add(expr.substring(start, i));
+			}
+			else if (c == '\'' || c == '"') {
+				i++;
+				while (i < expr.length() && expr.charAt(i) != c) {
+					if (expr.charAt(i) == '\\')
+						i++;
+					i++;
+				}
+				if (i >= expr.length())
+					throw new UnsupportedExpressionException("unterminated string");
+				i++;
+				result.add(expr.substring(start, i));
+			}
+			else if (Character.isJavaIdentifierStart(c)) {
+				while (i < expr.length() && Character.isJavaIdentifierPart(expr.charAt(i)))
+					i++;
+				String word = expr.substring(start, i);
+				if (wordOperators.containsKey(word))
+					result.add(wordOperators.get(word));
+				else if (isReservedWord(word))
+					throw new UnsupportedExpressionException("unsupported keyword " + word);
+				else
+					result.add(word);
+			}
+			else {
+				String twoChars = i + 1 < expr.length() ? expr.substring(i, i + 2) : "";
+				if (twoChars.equals("==") || twoChars.equals("!=") || twoChars.equals("<=") || twoChars.equals(">=") ||
+						twoChars.equals("&&") || twoChars.equals("||")) {
+					if (twoChars.equals("!=") || twoChars.equals("==")) {
+						// Exclude the regular expression operators =~ and !~ as well as ===
+						if (i + 2 < expr.length() && (expr.charAt(i + 2) == '~' || expr.charAt(i + 2) == '='))
+							throw new UnsupportedExpressionException("unsupported operator");
+					}
+					result.add(twoChars);
+					i += 2;
+				}
+				else if ("()+-*/%<>!".indexOf(c) != -1) {
+					if (c == '!' && i + 1 < expr.length() && expr.charAt(i + 1) == '~')
+						throw new UnsupportedExpressionException("unsupported operator !~");
+					result.add(String.valueOf(c));
+					i++;
+				}
+				else
+					throw new UnsupportedExpressionException("unsupported character " + c);
+			}
+		}
+		return result;
+	}
+
+	private static boolean isReservedWord(String word) {
+		return word.equals("if") || word.equals("else") || word.equals("for") || word.equals("foreach") ||
+			word.equals("while") || word.equals("new") || word.equals("empty") || word.equals("size") ||
+			word.equals("function") || word.equals("return") || word.equals("var") || word.equals("in");
+	}
+
+	/**
+	 * Generate the class for the expression, and create an instance of it.
+	 */
+	private CompiledExpression generateClass(String code) throws Exception {
+		synchronized(ExpressionCompiler.class) {
+			classCounter++;
+			String className = "com.autobizlogic.abl.rule.compiled.Expression" + classCounter + "_" +
+					entityClass.getSimpleName();
+			ClassLoaderManager.getInstance().addClassLoader(entityClass.getClassLoader());
+			ClassPool classPool = ClassLoaderManager.getInstance().getClassPool();
+			CtClass ctClass = classPool.makeClass(className);
+			ctClass.setSuperclass(classPool.get(CompiledExpression.class.getName()));
+			ctClass.addConstructor(CtNewConstructor.defaultConstructor(ctClass));
+			ctClass.addMethod(CtNewMethod.make("protected Object evaluateEntity(Object entity) { return " + code + "; }", ctClass));
+			byte[] bytecode = ctClass.toBytecode();
+			ctClass.detach();
+
+			GeneratedClassLoader loader = new GeneratedClassLoader(entityClass.getClassLoader());
+			Class<?> cls = loader.defineGeneratedClass(className, bytecode);
+			CompiledExpression compiledExpression = (CompiledExpression)cls.newInstance();
+			compiledExpression.initialize(expression, entityClass, constants.toArray(), nullValues.toArray());
+			if (_logger.isDebugEnabled())
+				_logger.debug("Compiled expression " + expression + " for " + metaEntity.getEntityName() + " as: " + code);
+			return compiledExpression;
+		}
+	}
+
+	/**
+	 * Thrown while parsing when the expression cannot be compiled.
+	 */
+	private static class UnsupportedExpressionException extends Exception {
+
+		private UnsupportedExpressionException(String msg) {
+			super(msg);
+		}
+
+		private static final long serialVersionUID = 1;
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND,
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+
@@ -13,8 +13,8 @@ import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.logic.LogicContext;
 import com.autobizlogic.abl.metadata.MetaAttribute;
 import com.autobizlogic.abl.event.LogicAfterFormulaEvent;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
 import com.autobizlogic.abl.session.LogicTransactionContext;
-import com.autobizlogic.abl.util.MethodInvocationUtil;
 import com.autobizlogic.abl.util.ObjectUtil;
 
 /**
@@ -24,10 +24,24 @@ import com.autobizlogic.abl.util.ObjectUtil;
 public class FormulaRule extends AbstractDependsOnRule {
 
 	private boolean lazy = false;
+	
+	/**
+	 * Whether this formula is actually computed only when read. Determined when first needed,
+	 * see LogicGroup.canDeferFormula.
+	 */
+	private volatile Boolean deferred;
 
 	private boolean persistent = true;
 	
 	private String expression = null;
+
+	/**
+	 * The compiled version of the expression, or null if it could not be compiled.
+	 * See ExpressionCompiler.
+	 */
+	private volatile CompiledExpression compiledExpression;
+
+	private volatile boolean expressionCompiled = false;
 	
 	private boolean skipDuringRecompute = false;
 	
@@ -57,6 +71,18 @@ public class FormulaRule extends AbstractDependsOnRule {
 
 	protected void setLazy(boolean b) {
 		lazy = b;
+		deferred = null;
+	}
+	
+	/**
+	 * Whether this formula is computed only when its value is read. This is true for lazy formulas
+	 * that are not persistent, and that no rule from another entity depends on. Otherwise, 
+	 * lazy formulas are computed like any other formula.
+	 */
+	public boolean isDeferred() {
+		if (deferred == null)
+			deferred = Boolean.valueOf(lazy && getLogicGroup().canDeferFormula(this));
+		return deferred.booleanValue();
 	}
 
 	public boolean isPersistent() {
@@ -73,6 +99,7 @@ public class FormulaRule extends AbstractDependsOnRule {
 	
 	protected void setExpression(String s) {
 		expression = s;
+		expressionCompiled = false;
 	}
 	
 	public boolean isSkipDuringRecompute() {
@@ -96,16 +123,51 @@ public class FormulaRule extends AbstractDependsOnRule {
 	 */
 	public boolean execute(Object aLogicObject, LogicRunner aLogicRunner) {
 
+		// Deferred formulas only get marked as out of date: they are computed when read
+		if (isDeferred()) {
+			if ( ! pruning || hasStaleLazyDependencies(aLogicRunner) || ! isFormulaPrunable(aLogicRunner)) {
+				aLogicRunner.getContext().getLazyFormulaIndex().markStale(this, aLogicRunner);
+				if (log.isDebugEnabled())
+					log.debug ("Lazy formula deferred " + getBeanAttributeName(), aLogicRunner);
+			}
+			return false;
+		}
+
 		long startTime = System.nanoTime();
-		boolean rtnDidExecute = false;
-		String theLogicMethodName = getLogicMethodName();
-		Object result = null;
-		if (pruning && isFormulaPrunable(aLogicRunner)) {
+		boolean lazyDependencyComputed = computeLazyDependencies(aLogicRunner);
+		if (pruning && ! lazyDependencyComputed && isFormulaPrunable(aLogicRunner)) {
 			if (log.isDebugEnabled())
 				log.debug ("Formula pruned " + getBeanAttributeName(), aLogicRunner);
 			return false; // Note that we do not fire any event since the formula was not executed
 		}
 		
+		return computeFormula(aLogicObject, aLogicRunner, startTime);
+	}
+	
+	/**
+	 * Compute this formula for the LogicRunner's bean if it is deferred and out of date.
+	 * @return True if the formula was computed and its value changed
+	 */
+	public boolean computeIfStale(LogicRunner aLogicRunner) {
+		long startTime = System.nanoTime();
+		if ( ! aLogicRunner.getContext().getLazyFormulaIndex().isStale(this, aLogicRunner.getCurrentDomainObject()))
+			return false;
+		computeLazyDependencies(aLogicRunner);
+		boolean changed = computeFormula(aLogicRunner.getLogicObject(), aLogicRunner, startTime);
+		// Only once the value has been successfully computed is the formula up to date
+		aLogicRunner.getContext().getLazyFormulaIndex().markComputed(this, aLogicRunner.getCurrentDomainObject());
+		if (log.isDebugEnabled())
+			log.debug ("Lazy formula computed " + getBeanAttributeName(), aLogicRunner);
+		return changed;
+	}
+	
+	/**
+	 * Compute the value of this formula and set it in the LogicRunner's bean.
+	 * @return True if the value of the attribute changed
+	 */
+	private boolean computeFormula(Object aLogicObject, LogicRunner aLogicRunner, long startTime) {
+		boolean rtnDidExecute = false;
+		Object result = null;
 		PersistentBean currentDomainObject = aLogicRunner.getCurrentDomainObject();
 
 		// Is the formula expressed in the annotation? If so, we evaluate it, and we call
@@ -126,7 +188,8 @@ public class FormulaRule extends AbstractDependsOnRule {
 				
 				if ("true".equals(LogicConfiguration.getInstance().getProperty(PropertyName.INVOKE_FORMULA_METHODS))) {
 					try { // Then call the method for debugging purposes, but ignore its return value
-						MethodInvocationUtil.invokeMethodOnObject(aLogicObject, theLogicMethodName);
+						callLogicMethod(aLogicObject, aLogicRunner.getCurrentDomainObject(), 
+								aLogicRunner.getPriorDomainObject(), aLogicRunner.getLogicContext());
 					}
 					catch(Exception ex) {
 						if (log.isWarnEnabled())
@@ -156,7 +219,8 @@ public class FormulaRule extends AbstractDependsOnRule {
 		}
 		
 		try {
-			result = MethodInvocationUtil.invokeMethodOnObject(aLogicObject, theLogicMethodName);
+			result = callLogicMethod(aLogicObject, aLogicRunner.getCurrentDomainObject(), 
+					aLogicRunner.getPriorDomainObject(), aLogicRunner.getLogicContext());
 			if (result == null && getLogicGroup().isGroovy()) {
 				if (sysLog.isDebugEnabled())
 					sysLog.debug ("Groovy formula returns null, value unchanged " + getBeanAttributeName(), aLogicRunner);
@@ -206,7 +270,7 @@ public class FormulaRule extends AbstractDependsOnRule {
 		}
 		else {
 			try {
-				result = MethodInvocationUtil.invokeMethodOnObject(aLogicObject, theLogicMethodName);
+				result = callLogicMethod(aLogicObject, bean, null, null);
 			}
 			catch(Exception ex) {
 				throw new RuntimeException("Exception while computing formula " + theLogicMethodName + " on object " + aLogicObject, ex);
@@ -244,6 +308,16 @@ public class FormulaRule extends AbstractDependsOnRule {
 		if (expression == null || expression.trim().length() == 0)
 			return null;
 		
+		CompiledExpression compiled = getCompiledExpression();
+		if (compiled != null && compiled.canEvaluate(obj)) {
+			try {
+				return compiled.evaluate(obj);
+			}
+			catch(Exception ex) {
+				throw new LogicException("Error while evaluating expression : " + expression, ex);
+			}
+		}
+		
 		JexlContext context = new BeanMapContext(obj, logicContext, true);
 		Expression expr = jexlEngine.createExpression(expression);
 		Object res = null;
@@ -260,6 +334,23 @@ public class FormulaRule extends AbstractDependsOnRule {
 		return res;
 	}
 
+	/**
+	 * Get the compiled version of the expression, compiling it if this has not been done yet.
+	 * @return Null if the expression could not be compiled, and must be interpreted.
+	 */
+	private CompiledExpression getCompiledExpression() {
+		if ( ! expressionCompiled) {
+			synchronized(this) {
+				if ( ! expressionCompiled) {
+					if (ExpressionCompiler.isEnabled())
+						compiledExpression = ExpressionCompiler.compile(expression, getLogicGroup().getMetaEntity());
+					expressionCompiled = true;
+				}
+			}
+		}
+		return compiledExpression;
+	}
+
 	/*
 	public void computeValue(Object object, LogicTransactionContext context) {
 		Class<?> cls = object.getClass();
@@ -281,10 +372,12 @@ public class FormulaRule extends AbstractDependsOnRule {
 	 * Fire the post event for this formula.
 	 */
 	protected void firePostEvent(Object aLogicObject, LogicRunner aLogicRunner, Object oldValue, long executionTime) {
-		LogicAfterFormulaEvent evt = new LogicAfterFormulaEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(),
-				this, aLogicRunner.getCurrentDomainObject(), oldValue);
-		evt.setExecutionTime(executionTime);
-		LogicTransactionContext.fireEvent(evt);
+		if (LogicTransactionContext.hasEventListeners(EventType.AFTER_FORMULA)) {
+			LogicAfterFormulaEvent evt = new LogicAfterFormulaEvent(aLogicRunner.getContext(), aLogicRunner.getLogicContext(),
+					this, aLogicRunner.getCurrentDomainObject(), oldValue);
+			evt.setExecutionTime(executionTime);
+			LogicTransactionContext.fireEvent(evt);
+		}
 		PerformanceMonitor.addRuleExecution(this, executionTime);
 	}
 
@@ -0,0 +1,125 @@
+package com.autobizlogic.abl.rule;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.autobizlogic.abl.config.LogicConfiguration;
+import com.autobizlogic.abl.config.LogicConfiguration.PropertyName;
+import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.engine.LogicRunner;
+
+/**
+ * The lazy formulas whose value is out of date, kept for the duration of a transaction.
+ * <p/>
+ * A lazy formula (see FormulaRule.isDeferred) is not computed when its dependencies change:
+ * it is only marked as stale here, and it gets computed when its value is read by another rule,
+ * or when the application asks for it (see LogicTransactionContext.computeLazyFormulas).
+ * A formula that nobody reads is never computed, and its bean keeps its obsolete value, unless the
+ * computeLazyFormulasAtCommit configuration property is true, in which case whatever is still stale
+ * at the end of the logic phase is computed then (see LogicTransactionContext.computeAllLazyFormulas).
+ * Once computed, its value is kept in the bean until its dependencies change again.
+ * <p/>
+ * Beans are tracked by identity of the underlying entity (POJO or Map).
+ */
+public class LazyFormulaIndex {
+
+	private Map<Object, StaleFormulas> staleFormulas = new IdentityHashMap<Object, StaleFormulas>();
+
+	/**
+	 * Whether the lazy formulas that are still out of date should be computed at the end of the logic phase.
+	 */
+	public static boolean isComputeAtCommitEnabled() {
+		String prop = LogicConfiguration.getInstance().getProperty(PropertyName.COMPUTE_LAZY_FORMULAS_AT_COMMIT);
+		return "true".equalsIgnoreCase(prop);
+	}
+
+	/**
+	 * Record that the given formula needs to be recomputed for the LogicRunner's bean.
+	 */
+	public void markStale(FormulaRule formula, LogicRunner runner) {
+		Object entity = runner.getCurrentDomainObject().getEntity();
+		StaleFormulas stale = staleFormulas.get(entity);
+		if (stale == null) {
+			stale = new StaleFormulas();
+			staleFormulas.put(entity, stale);
+		}
+		stale.runner = runner;
+		stale.formulas.add(formula);
+	}
+
+	/**
+	 * Whether the given formula needs to be recomputed for the given bean.
+	 */
+	public boolean isStale(FormulaRule formula, PersistentBean bean) {
+		StaleFormulas stale = staleFormulas.get(bean.getEntity());
+		return stale != null && stale.formulas.contains(formula);
+	}
+
+	/**
+	 * Record that the given formula is about to be recomputed for the given bean.
+	 * @return True if the formula was stale, false if there is nothing to do
+	 */
+	public boolean markComputed(FormulaRule formula, PersistentBean bean) {
+		Object entity = bean.getEntity();
+		StaleFormulas stale = staleFormulas.get(entity);
+		if (stale == null || ! stale.formulas.remove(formula))
+			return false;
+		if (stale.formulas.isEmpty())
+			staleFormulas.remove(entity);
+		return true;
+	}
+
+	/**
+	 * Get the latest LogicRunner for the given entity, if it has any stale formula.
+	 * @param entity The persistent POJO or Map
+	 * @return Null if the entity has no stale formula
+	 */
+	public LogicRunner getRunnerForEntity(Object entity) {
+		StaleFormulas stale = staleFormulas.get(entity);
+		if (stale == null)
+			return null;
+		return stale.runner;
+	}
+
+	/**
+	 * Whether any formula is out of date.
+	 */
+	public boolean isEmpty() {
+		return staleFormulas.isEmpty();
+	}
+	
+	/**
+	 * Get the latest LogicRunner of every entity that has stale formulas.
+	 * The list is a copy, so computing the formulas while iterating over it is safe.
+	 */
+	public List<LogicRunner> getRunnersWithStaleFormulas() {
+		List<LogicRunner> runners = new ArrayList<LogicRunner>(staleFormulas.size());
+		for (StaleFormulas stale : staleFormulas.values())
+			runners.add(stale.runner);
+		return runners;
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * The stale formulas of one bean, and the latest LogicRunner that marked any of them.
+	 */
+	private static class StaleFormulas {
+		private LogicRunner runner;
+		private Set<FormulaRule> formulas = new HashSet<FormulaRule>();
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -4,6 +4,8 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.autobizlogic.abl.annotations.Verbs;
+import com.autobizlogic.abl.engine.LogicException;
+import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.logic.analysis.AnnotationEntry;
 import com.autobizlogic.abl.logic.analysis.ClassDependency;
 import com.autobizlogic.abl.logic.analysis.ClassLoaderManager;
@@ -49,6 +51,16 @@ public class LogicGroup {
 	 * LogicClass is Groovy.
 	 */
 	private boolean isGroovy = false;
+	
+	/**
+	 * LogicClass is declared as stateless (see the StatelessLogic annotation).
+	 */
+	private boolean stateless = false;
+	
+	/**
+	 * If the logic class is stateless, the one instance of it.
+	 */
+	private volatile Object statelessLogicObject;
 
 	/**
 	 * The formulas contained by this object.
@@ -60,6 +72,12 @@ public class LogicGroup {
 	 */
 	private List<FormulaRule> orderedFormulas;
 	private Object orderedFormulasFlag = new Object();
+	
+	/**
+	 * The formulas that are computed only when their value is read, in execution order.
+	 * See FormulaRule.isDeferred.
+	 */
+	private volatile List<FormulaRule> deferredFormulas;
 
 	/**
 	 * The aggregates contained by this object
@@ -114,6 +132,12 @@ public class LogicGroup {
 	 */
 	private Set<AbstractRule> allRules = null;
 
+	/**
+	 * The invokers for the logic methods, by logic class. There is normally only one logic class,
+	 * but logic objects for subclasses can also run the rules in this LogicGroup.
+	 */
+	private Map<Class<?>, LogicMethodInvoker> methodInvokers = new ConcurrentHashMap<Class<?>, LogicMethodInvoker>();
+
 	/**
 	 * The name of the field that should be set to the current bean.
 	 */
@@ -276,6 +300,24 @@ public class LogicGroup {
 		return allRules;
 	}
 
+	/**
+	 * Get the invoker for the logic methods of the given class, creating it if necessary.
+	 * The methods for all the rules in this LogicGroup are looked up when the invoker is created.
+	 * @param logicClass The class of the logic object, normally the logic class for this LogicGroup.
+	 */
+	public LogicMethodInvoker getMethodInvoker(Class<?> logicClass) {
+		LogicMethodInvoker invoker = methodInvokers.get(logicClass);
+		if (invoker != null)
+			return invoker;
+
+		Set<String> methodNames = new HashSet<String>();
+		for (AbstractRule rule : getAllRules())
+			methodNames.add(rule.getLogicMethodName());
+		invoker = new LogicMethodInvoker(logicClass, methodNames);
+		methodInvokers.put(logicClass, invoker);
+		return invoker;
+	}
+
 	/**
 	 * Get all the constraints for this class (not including commit-time constraints).
 	 */
@@ -478,6 +520,69 @@ public class LogicGroup {
 		return orderedFormulas;
 	}
 
+	/**
+	 * Get the formulas that are computed only when their value is read, in the order in which
+	 * they should be executed.
+	 */
+	public List<FormulaRule> getDeferredFormulas() {
+		if (deferredFormulas != null)
+			return deferredFormulas;
+		
+		List<FormulaRule> newDeferredFormulas = new ArrayList<FormulaRule>();
+		for (FormulaRule formula : getFormulas()) {
+			if (formula.isDeferred())
+				newDeferredFormulas.add(formula);
+		}
+		deferredFormulas = newDeferredFormulas;
+		return deferredFormulas;
+	}
+	
+	/**
+	 * Compute all the lazy formulas that are out of date for the LogicRunner's bean. This is
+	 * used before running rules that can read any attribute, such as actions.
+	 */
+	public void computeLazyFormulas(LogicRunner logicRunner) {
+		for (FormulaRule formula : getDeferredFormulas())
+			formula.computeIfStale(logicRunner);
+	}
+	
+	/**
+	 * Determine whether a lazy formula can in fact be computed only when it is read. This is the case
+	 * only if the formula is not persistent (otherwise its value must be up to date when the bean
+	 * is saved), and if no rule in a related entity depends on it, since these rules read
+	 * the value directly from the bean.
+	 */
+	protected boolean canDeferFormula(FormulaRule formula) {
+		if ( ! formula.isLazy() || formula.isPersistent())
+			return false;
+		
+		String entityName = metaEntity.getEntityName();
+		String attributeName = formula.getBeanAttributeName();
+		Set<MetaRole> roles = new HashSet<MetaRole>(metaEntity.getRolesFromChildToParents());
+		roles.addAll(metaEntity.getRolesFromParentToChildren());
+		RuleManager ruleManager = RuleManager.getInstance(metaEntity.getMetaModel());
+		for (MetaRole role : roles) {
+			LogicGroup otherGroup = ruleManager.getLogicGroupForEntity(role.getOtherMetaEntity());
+			if (otherGroup == null)
+				continue;
+			for (AbstractRule rule : otherGroup.getAllRules()) {
+				for (RuleDependency dep : rule.getDependencies()) {
+					if ( ! dep.getBeanClassName().equals(entityName) || ! dep.getBeanAttributeName().equals(attributeName))
+						continue;
+					// Rules of this entity that read the value from the same bean compute it when needed
+					if (otherGroup == this && dep.getBeanRoleName() == null && ! (rule instanceof AbstractAggregateRule))
+						continue;
+					if (log.isInfoEnabled())
+						log.info("Lazy formula " + formula + " will be computed eagerly because " + rule + 
+								" depends on it");
+					return false;
+				}
+			}
+		}
+		
+		return true;
+	}
+
 	/**
 	 * Get the rule that derives the value for the given attribute.
 	 * @param attributeName The name of the attribute, e.g. orderTotal
@@ -498,6 +603,39 @@ public class LogicGroup {
 		return isGroovy;
 	}
 	
+	/**
+	 * Is this logic class declared as stateless? If so, there is only one instance of it,
+	 * see getStatelessLogicObject.
+	 */
+	public boolean isStateless() {
+		analyze();
+		return stateless;
+	}
+	
+	/**
+	 * Get the one instance of the logic class, creating it if necessary. This only makes sense
+	 * if the logic class is stateless.
+	 */
+	public Object getStatelessLogicObject() {
+		if (statelessLogicObject != null)
+			return statelessLogicObject;
+		
+		synchronized(this) {
+			if (statelessLogicObject == null) {
+				if ( ! isStateless())
+					throw new RuntimeException("Logic class " + logicClassName + " is not stateless");
+				try {
+					Class<?> logicClass = ClassLoaderManager.getInstance().getLogicClassFromName(logicClassName);
+					statelessLogicObject = logicClass.newInstance();
+				}
+				catch(Exception ex) {
+					throw new LogicException("Unable to instantiate stateless logic class " + logicClassName, ex);
+				}
+			}
+		}
+		return statelessLogicObject;
+	}
+	
 	/**
 	 * Returns all the aggregate rules that rely on the given parent-to-child role.
 	 */
@@ -614,6 +752,15 @@ public class LogicGroup {
 			}
 			isGroovy = classAnalysis.isGroovy();
 		}
+		
+		if (classAnalysis.getClassAnnotation("StatelessLogic") != null) {
+			if (currentBeanFieldName != null || oldBeanFieldName != null || originalBeanFieldName != null || 
+					contextFieldName != null)
+				throw new RuntimeException("Logic class " + logicClassName + " is declared as StatelessLogic, " +
+						"and therefore cannot have CurrentBean, OldBean, OriginalBean or LogicContextObject variables. " +
+						"Use StatelessLogicState instead.");
+			stateless = true;
+		}
 	}
 
 	/**
@@ -0,0 +1,122 @@
+package com.autobizlogic.abl.rule;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.autobizlogic.abl.engine.LogicException;
+
+/**
+ * Invokes the logic methods (formulas, actions, constraints, aggregates and parent copies) of one
+ * logic class. The methods are looked up once, and are then invoked through method handles,
+ * rather than being looked up by name every time they are invoked.
+ * <p/>
+ * Instances are obtained from LogicGroup, which creates one for each logic class it encounters.
+ * When the logic classes are reloaded, the LogicGroups are discarded, and their invokers with them.
+ */
+public class LogicMethodInvoker {
+
+	/**
+	 * The type of all the method handles: the logic object in, the return value (if any) out.
+	 */
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+	private final Class<?> logicClass;
+
+	/**
+	 * The method handles, by method name.
+	 */
+	private final Map<String, MethodHandle> handles = new ConcurrentHashMap<String, MethodHandle>();
+
+	/**
+	 * Create an invoker for the given logic class.
+	 * @param logicClass The logic class
+	 * @param methodNames The names of the logic methods, which will be looked up right away.
+	 * Methods with other names will be looked up on demand.
+	 */
+	/* package */ LogicMethodInvoker(Class<?> logicClass, Collection<String> methodNames) {
+		this.logicClass = logicClass;
+		for (String methodName : methodNames) {
+			MethodHandle handle = findMethod(methodName);
+			if (handle != null)
+				handles.put(methodName, handle);
+		}
+	}
+
+	/**
+	 * Get the logic class for which this invoker was created.
+	 */
+	public Class<?> getLogicClass() {
+		return logicClass;
+	}
+
+	/**
+	 * Invoke a logic method, which must take no parameters. The method does not have to be public.
+	 * @param logicObject The logic object, which must be an instance of the logic class
+	 * @param methodName The name of the method
+	 * @return The value returned by the method, or null if it is a void method
+	 * @throws InvocationTargetException If the method throws anything, as with Method.invoke
+	 */
+	public Object invoke(Object logicObject, String methodName) throws InvocationTargetException {
+		MethodHandle handle = handles.get(methodName);
+		if (handle == null) {
+			handle = findMethod(methodName);
+			if (handle == null)
+				throw new LogicException("No such method: " + logicClass.getName() + "." + methodName + "()");
+			handles.put(methodName, handle);
+		}
+
+		try {
+			return handle.invokeExact(logicObject);
+		}
+		catch(Throwable t) {
+			throw new InvocationTargetException(t);
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Find the method with the given name and no parameters, in the logic class or its superclasses.
+	 * This is done this way so that we can invoke non-public methods (see MethodInvocationUtil).
+	 * @return Null if there is no such method
+	 */
+	private MethodHandle findMethod(String methodName) {
+		Class<?> cls = logicClass;
+		while (cls != null) {
+			for (Method meth : cls.getDeclaredMethods()) {
+				if (meth.getName().equals(methodName) && meth.getParameterTypes().length == 0) {
+					meth.setAccessible(true);
+					try {
+						return MethodHandles.lookup().unreflect(meth).asType(INVOKER_TYPE);
+					}
+					catch(IllegalAccessException ex) {
+						throw new LogicException("Unable to access logic method " + logicClass.getName() + "." + methodName, ex);
+					}
+				}
+			}
+			cls = cls.getSuperclass();
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "Logic method invoker for " + logicClass.getName();
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -1,11 +1,14 @@
 package com.autobizlogic.abl.rule;
 
+import java.io.Serializable;
 import java.math.BigDecimal;
+import java.util.List;
 
 import org.hibernate.Query;
 
+import com.autobizlogic.abl.config.LogicConfiguration;
+import com.autobizlogic.abl.config.LogicConfiguration.PropertyName;
 import com.autobizlogic.abl.data.PersistentBean;
-import com.autobizlogic.abl.data.hibernate.HibPersistentBeanFactory;
 import com.autobizlogic.abl.engine.phase.AdjustAllParents;
 import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.engine.LogicRunner;
@@ -46,9 +49,20 @@ public class MinMaxRule extends AbstractAggregateRule {
 		return type;
 	}
 	
+	/**
+	 * Whether min/max rules should keep the values of the children they recompute. This is set
+	 * by the minMaxValueIndex configuration property.
+	 */
+	public static boolean isValueIndexEnabled() {
+		String prop = LogicConfiguration.getInstance().getProperty(PropertyName.MIN_MAX_VALUE_INDEX);
+		return "true".equalsIgnoreCase(prop);
+	}
+	
 	@Override
 	public void adjustedParentDomainObject(AdjustAllParents aParentAdjustments) {
 		LogicRunner childLogicRunner = aParentAdjustments.getChildLogicRunner();
+		if (isValueIndexEnabled())
+			updateValueIndex(childLogicRunner);
 		if (childLogicRunner.getVerb() == Verb.UPDATE)
 			adjustFromUpdatedChild(aParentAdjustments);
 		else if (childLogicRunner.getVerb() == Verb.INSERT)
@@ -95,7 +109,7 @@ public class MinMaxRule extends AbstractAggregateRule {
 		if (theParent instanceof PersistentBean)
 			parentBean = (PersistentBean)theParent;
 		else
-			parentBean = HibPersistentBeanFactory.getInstance(context.getSession()).
+			parentBean = context.getPersistentBeanFactory().
 				createPersistentBeanFromObject(theParent, otherMetaEntity.getEntityPersister());
 		
 		BigDecimal currentMinMax = null;
@@ -198,13 +212,13 @@ public class MinMaxRule extends AbstractAggregateRule {
 		if (priorParent instanceof PersistentBean)
 			throw new LogicException("Unexpected Persistent Bean - expected map/pojo");
 		
-		PersistentBean priorParentPersBean = HibPersistentBeanFactory.getInstance(context.getSession()).
+		PersistentBean priorParentPersBean = context.getPersistentBeanFactory().
 			createPersistentBeanFromObject(priorParent, parentMetaEntity.getEntityPersister());
 		
 		if (priorParent instanceof PersistentBean)
 			throw new LogicException("Unexpected Persistent Bean - expected map/pojo");
 		
-		PersistentBean currentParentPersBean = HibPersistentBeanFactory.getInstance(context.getSession()).
+		PersistentBean currentParentPersBean = context.getPersistentBeanFactory().
 			createPersistentBeanFromObject(currentParent, parentMetaEntity.getEntityPersister());
 		
 		// Look ahead in the LogicRunner queue for a LogicRunner for the
@@ -442,7 +456,7 @@ public class MinMaxRule extends AbstractAggregateRule {
 		
 		if (parent != null) {
 			HibMetaEntity parentMetaEntity = (HibMetaEntity)role.getMetaEntity();
-			theParentState = HibPersistentBeanFactory.getInstance(context.getSession()).
+			theParentState = context.getPersistentBeanFactory().
 					createPersistentBeanFromObject(parent, parentMetaEntity.getEntityPersister());
 
 			// Look ahead in the LogicRunner queue for a LogicRunner for the
@@ -502,24 +516,93 @@ public class MinMaxRule extends AbstractAggregateRule {
 	/**
 	 * When there is no other way, we have to issue a SQL to figure out the new min/max value.
 	 */
-	/*private*/ void sqlRecompute(PersistentBean bean, LogicTransactionContext context) {
-		
+	@Override
+	protected String getAggregateSelectExpression() {
 		String minMax = "max";
 		if (type == MinMaxType.MIN)
 			minMax = "min";
-		String sql = "select " + minMax + "(" + getWatchedFieldName() + ") from " + 
-			getRole().getOtherMetaEntity().getEntityName() + " where " + 
-			getRole().getOtherMetaRole().getRoleName() + " = :parent";
-		if (getQualificationSQL() != null)
-			sql += " and (" + getQualificationSQL() + ")";
-		Query query = context.getSession().createQuery(sql);
-		query.setEntity("parent", bean.getEntity());
-		Object result = query.uniqueResult();
+		return minMax + "(" + getWatchedFieldName() + ")";
+	}
+	
+	/*private*/ void sqlRecompute(PersistentBean bean, LogicTransactionContext context) {
+		
+		Number result;
+		if (isValueIndexEnabled() && bean.getPk() != null)
+			result = recomputeFromValueIndex(bean, context);
+		else
+			result = computeAggregateFromDatabase(bean, context);
 		Class<?> attType = bean.getMetaEntity().getMetaAttribute(getBeanAttributeName()).getType();
-		Number newMax = NumberUtil.convertNumberToType((Number)result, attType);
+		Number newMax = NumberUtil.convertNumberToType(result, attType);
 		bean.put(getBeanAttributeName(), newMax);
 	}
 	
+	/**
+	 * Get the new min/max from the values kept for this transaction. If the values for this
+	 * parent have not been loaded yet, load them all with a single query.
+	 */
+	private BigDecimal recomputeFromValueIndex(PersistentBean bean, LogicTransactionContext context) {
+		MinMaxValueIndex index = context.getMinMaxValueIndex();
+		Serializable parentPk = bean.getPk();
+		if ( ! index.isLoaded(this, parentPk)) {
+			HibMetaEntity childMetaEntity = (HibMetaEntity)getRole().getOtherMetaEntity();
+			String idName = childMetaEntity.getEntityPersister().getIdentifierPropertyName();
+			if (idName == null)
+				idName = "id";
+			String sql = "select " + idName + ", " + watchedField + " from " + childMetaEntity.getEntityName() + 
+				" where " + getRole().getOtherMetaRole().getRoleName() + " = :parent and " + watchedField + " is not null";
+			String qualificationSQL = getQualificationSQL();
+			if (qualificationSQL != null && qualificationSQL.trim().length() > 0)
+				sql += " and (" + qualificationSQL + ")";
+			Query query = context.getSession().createQuery(sql);
+			query.setEntity("parent", bean.getEntity());
+			@SuppressWarnings("unchecked")
+			List<Object[]> rows = query.list();
+			index.load(this, parentPk, rows);
+			if (log.isDebugEnabled())
+				log.debug("Loaded " + rows.size() + " value(s) for " + this + " in parent " + bean.toShortString());
+		}
+		if (type == MinMaxType.MIN)
+			return index.getMinimum(this, parentPk);
+		return index.getMaximum(this, parentPk);
+	}
+	
+	/**
+	 * Record the child's current value in the values kept for its parent(s), if they have been loaded.
+	 */
+	private void updateValueIndex(LogicRunner childLogicRunner) {
+		LogicTransactionContext context = childLogicRunner.getContext();
+		MinMaxValueIndex index = context.getMinMaxValueIndex();
+		if (index.isEmpty())
+			return;
+
+		String roleToParentName = getRole().getOtherMetaRole().getRoleName();
+		PersistentBean currentChild = childLogicRunner.getCurrentDomainObject();
+		PersistentBean currentParent = getParentBean(currentChild.get(roleToParentName), context);
+		Serializable currentParentPk = currentParent == null ? null : currentParent.getPk();
+		Serializable priorParentPk = null;
+		if (childLogicRunner.getVerb() == Verb.UPDATE) {
+			PersistentBean priorParent = getParentBean(childLogicRunner.getPriorDomainObject().get(roleToParentName), context);
+			priorParentPk = priorParent == null ? null : priorParent.getPk();
+		}
+
+		Serializable childPk = currentChild.getPk();
+		if (childPk == null) { // Should not happen, but if it does, we can't keep track of this child
+			if (currentParentPk != null)
+				index.forget(this, currentParentPk);
+			if (priorParentPk != null)
+				index.forget(this, priorParentPk);
+			return;
+		}
+
+		if (priorParentPk != null && ! priorParentPk.equals(currentParentPk))
+			index.setChildValue(this, priorParentPk, childPk, null);
+
+		BigDecimal value = null;
+		if (childLogicRunner.getVerb() != Verb.DELETE && runQualificationForBean(currentChild))
+			value = getObjectPropertyAsBigDecimal(currentChild, watchedField, true);
+		index.setChildValue(this, currentParentPk, childPk, value);
+	}
+	
 	////////////////////////////////////////////////////////////////////////////////////////////////////
 	// Mundane stuff
 
@@ -0,0 +1,159 @@
+package com.autobizlogic.abl.rule;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.autobizlogic.abl.util.NumberUtil;
+
+/**
+ * The values of the children that qualify for min/max rules, kept for the duration of a transaction
+ * so that a min/max can be recomputed without going back to the database.
+ * <p/>
+ * For a given rule and parent, the values are loaded once from the database (see MinMaxRule), and
+ * then kept up to date as children are inserted, updated and deleted. Values are kept by child
+ * primary key, so that recording the current value of a child can be done any number of times
+ * with the same result -- it does not matter whether the change was already reflected in the
+ * values that were loaded.
+ * <p/>
+ * This is used only if the minMaxValueIndex configuration property is true.
+ */
+public class MinMaxValueIndex {
+
+	/**
+	 * For each rule, the values by parent primary key.
+	 */
+	private Map<MinMaxRule, Map<Serializable, ParentValues>> values = new HashMap<MinMaxRule, Map<Serializable, ParentValues>>();
+
+	/**
+	 * Whether any values have been loaded at all.
+	 */
+	public boolean isEmpty() {
+		return values.isEmpty();
+	}
+
+	/**
+	 * Whether the values for the given parent have been loaded.
+	 */
+	public boolean isLoaded(MinMaxRule rule, Serializable parentPk) {
+		Map<Serializable, ParentValues> ruleValues = values.get(rule);
+		return ruleValues != null && ruleValues.containsKey(parentPk);
+	}
+
+	/**
+	 * Set the values for the given parent.
+	 * @param rows The rows as returned by the database: each row contains the child's primary key,
+	 * and the child's value.
+	 */
+	public void load(MinMaxRule rule, Serializable parentPk, List<Object[]> rows) {
+		ParentValues parentValues = new ParentValues();
+		for (Object[] row : rows) {
+			if (row[1] == null)
+				continue;
+			BigDecimal value = (BigDecimal)NumberUtil.convertNumberToType((Number)row[1], BigDecimal.class);
+			parentValues.setChildValue((Serializable)row[0], value);
+		}
+		Map<Serializable, ParentValues> ruleValues = values.get(rule);
+		if (ruleValues == null) {
+			ruleValues = new HashMap<Serializable, ParentValues>();
+			values.put(rule, ruleValues);
+		}
+		ruleValues.put(parentPk, parentValues);
+	}
+
+	/**
+	 * Record the current value of a child. If the values for the parent have not been loaded,
+	 * this does nothing.
+	 * @param value The child's value, or null if the child does not count (not qualified, deleted, etc...)
+	 */
+	public void setChildValue(MinMaxRule rule, Serializable parentPk, Serializable childPk, BigDecimal value) {
+		ParentValues parentValues = getParentValues(rule, parentPk);
+		if (parentValues != null)
+			parentValues.setChildValue(childPk, value);
+	}
+
+	/**
+	 * Forget the values for the given parent, so that they will be loaded again if needed.
+	 */
+	public void forget(MinMaxRule rule, Serializable parentPk) {
+		Map<Serializable, ParentValues> ruleValues = values.get(rule);
+		if (ruleValues != null)
+			ruleValues.remove(parentPk);
+	}
+
+	/**
+	 * Get the smallest value for the given parent.
+	 * @return Null if there are no values, or if the values for the parent have not been loaded.
+	 */
+	public BigDecimal getMinimum(MinMaxRule rule, Serializable parentPk) {
+		ParentValues parentValues = getParentValues(rule, parentPk);
+		if (parentValues == null || parentValues.counts.isEmpty())
+			return null;
+		return parentValues.counts.firstKey();
+	}
+
+	/**
+	 * Get the largest value for the given parent.
+	 * @return Null if there are no values, or if the values for the parent have not been loaded.
+	 */
+	public BigDecimal getMaximum(MinMaxRule rule, Serializable parentPk) {
+		ParentValues parentValues = getParentValues(rule, parentPk);
+		if (parentValues == null || parentValues.counts.isEmpty())
+			return null;
+		return parentValues.counts.lastKey();
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	private ParentValues getParentValues(MinMaxRule rule, Serializable parentPk) {
+		if (parentPk == null)
+			return null;
+		Map<Serializable, ParentValues> ruleValues = values.get(rule);
+		if (ruleValues == null)
+			return null;
+		return ruleValues.get(parentPk);
+	}
+
+	/**
+	 * The values of the children of one parent: the value of each child, and how many children
+	 * have each value, in order.
+	 */
+	private static class ParentValues {
+		private Map<Serializable, BigDecimal> childValues = new HashMap<Serializable, BigDecimal>();
+		private TreeMap<BigDecimal, Integer> counts = new TreeMap<BigDecimal, Integer>();
+
+		private void setChildValue(Serializable childPk, BigDecimal value) {
+			BigDecimal oldValue;
+			if (value == null)
+				oldValue = childValues.remove(childPk);
+			else
+				oldValue = childValues.put(childPk, value);
+			if (oldValue != null) {
+				Integer count = counts.get(oldValue);
+				if (count != null) {
+					if (count.intValue() <= 1)
+						counts.remove(oldValue);
+					else
+						counts.put(oldValue, Integer.valueOf(count.intValue() - 1));
+				}
+			}
+			if (value != null) {
+				Integer count = counts.get(value);
+				counts.put(value, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+			}
+		}
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -7,6 +7,7 @@ import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.metadata.MetaRole;
 import com.autobizlogic.abl.perf.PerformanceMonitor;
 import com.autobizlogic.abl.event.LogicAfterParentCopyEvent;
+import com.autobizlogic.abl.event.LogicEvent.EventType;
 import com.autobizlogic.abl.session.LogicTransactionContext;
 import com.autobizlogic.abl.util.BeanMap;
 import com.autobizlogic.abl.util.BeanUtil;
@@ -132,10 +133,12 @@ public class ParentCopyRule extends AbstractDependsOnRule {
 	 * Fire the post event for this rule.
 	 */
 	protected void firePostEvent(Object aLogicObject, LogicRunner aLogicRunner, long executionTime) {
-		LogicAfterParentCopyEvent evt = new LogicAfterParentCopyEvent(aLogicRunner.getContext(), 
-				aLogicRunner.getLogicContext(), this, aLogicRunner.getCurrentDomainObject());
-		evt.setExecutionTime(executionTime);
-		LogicTransactionContext.fireEvent(evt);
+		if (LogicTransactionContext.hasEventListeners(EventType.AFTER_PARENT_COPY)) {
+			LogicAfterParentCopyEvent evt = new LogicAfterParentCopyEvent(aLogicRunner.getContext(), 
+					aLogicRunner.getLogicContext(), this, aLogicRunner.getCurrentDomainObject());
+			evt.setExecutionTime(executionTime);
+			LogicTransactionContext.fireEvent(evt);
+		}
 		PerformanceMonitor.addRuleExecution(this, executionTime);
 	}
 
@@ -1,29 +1,23 @@
 package com.autobizlogic.abl.rule;
 
 import java.math.BigDecimal;
-import java.util.Collection;
 import java.util.Map;
 
 import com.autobizlogic.abl.logic.Verb;
 import com.autobizlogic.abl.metadata.MetaAttribute;
 import com.autobizlogic.abl.metadata.hibernate.HibMetaEntity;
 import com.autobizlogic.abl.data.PersistentBean;
-import com.autobizlogic.abl.data.hibernate.HibPersistentBeanFactory;
-import com.autobizlogic.abl.hibernate.HibernateSessionUtil;
 import com.autobizlogic.abl.engine.phase.AdjustAllParents;
 import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.engine.LogicRunner.LogicRunnerPhase;
 import com.autobizlogic.abl.engine.LogicRunner.LogicProcessingState;
 import com.autobizlogic.abl.session.LogicTransactionContext;
-import com.autobizlogic.abl.util.BeanMap;
 import com.autobizlogic.abl.util.BeanUtil;
 import com.autobizlogic.abl.util.NodalPathUtil;
 import com.autobizlogic.abl.util.NumberUtil;
 import com.autobizlogic.abl.util.ProxyUtil;
 
-import org.hibernate.collection.PersistentCollection;
-import org.hibernate.engine.PersistenceContext;
 import org.hibernate.impl.SessionImpl;
 import org.hibernate.persister.entity.EntityPersister;
 
@@ -41,6 +35,12 @@ import org.hibernate.persister.entity.EntityPersister;
 public class SumRule extends AbstractAggregateRule {
 
 	private String summedField;
+	
+	/**
+	 * Whether both the summed attribute and the sum attribute are integral types, in which case
+	 * adjustments are done using long arithmetic rather than BigDecimal. Determined on first use.
+	 */
+	private volatile Boolean integral;
 
 	protected SumRule(LogicGroup logicGroup, String logicMethodName, String roleName, String clause, String summedField, String beanAttributeName) {
 		super(logicGroup, logicMethodName, roleName, clause, beanAttributeName);
@@ -73,7 +73,9 @@ public class SumRule extends AbstractAggregateRule {
 	public void adjustedParentDomainObject(AdjustAllParents aParentAdjustments) {
 		// return
 		LogicRunner childLogicRunner = aParentAdjustments.getChildLogicRunner();
-		if (childLogicRunner.getVerb() == Verb.UPDATE)
+		if (getAggregateAlgorithm() == AggregateAlgorithm.SQL || getAggregateAlgorithm() == AggregateAlgorithm.MEMORY)
+			recomputeParents(aParentAdjustments);
+		else if (childLogicRunner.getVerb() == Verb.UPDATE)
 			adjustFromUpdatedChild(aParentAdjustments);
 		else if (childLogicRunner.getVerb() == Verb.INSERT)
 			adjustFromInsertedChild(aParentAdjustments);
@@ -90,17 +92,14 @@ public class SumRule extends AbstractAggregateRule {
 		LogicRunner childLogicRunner = aParentAdjustments.getChildLogicRunner();
 		LogicTransactionContext context = childLogicRunner.getContext();
 		
-		BigDecimal currSummedD;
 		// adjust new by delta (if any) - TODO - other algorithms
 		PersistentBean currentChild = childLogicRunner.getCurrentDomainObject();
 		boolean currQual = runQualificationForBean(currentChild);  	//todo - can possibly prune per dependsOn roles (needs thought)
 		if (currQual ==  false)
 			return;  // not qualified: no adjustment
-		currSummedD = getObjectPropertyAsBigDecimal(currentChild, summedField);
-		BigDecimal adjustment = BigDecimal.ZERO;
-		if (currSummedD.equals(adjustment))
+		Number adjustment = getChildValue(currentChild);
+		if (isZero(adjustment))
 			return; // summed value is 0: no adjustment
-		adjustment = currSummedD;
 
 		if ( ! getRole().isCollection())
 			throw new RuntimeException("Cannot sum a non-collection relationship: " + getRole());
@@ -117,7 +116,7 @@ public class SumRule extends AbstractAggregateRule {
 //				SessionImpl sessionImpl = (SessionImpl)context.getSession();
 //				String entityName = sessionImpl.getEntityName(theParent);
 //				EntityPersister ep = sessionImpl.getEntityPersister(entityName, theParent);
-				parentBean = HibPersistentBeanFactory.getInstance(context.getSession()).
+				parentBean = context.getPersistentBeanFactory().
 					createPersistentBeanFromObject(theParent, otherMetaEntity.getEntityPersister());
 			}
 
@@ -136,7 +135,7 @@ public class SumRule extends AbstractAggregateRule {
 			if ( ! cascadeDeferred)
 				aParentAdjustments.setOldAdjustedParentDomainObject(parentBean);
 			
-			BigDecimal theSum = BigDecimal.ZERO;
+			Number theSum = BigDecimal.ZERO;
 
 			// For transient attributes, we just set them to null so that they are recomputed when needed
 			MetaAttribute metaAttribute = getLogicGroup().getMetaEntity().getMetaAttribute(getBeanAttributeName());
@@ -144,13 +143,9 @@ public class SumRule extends AbstractAggregateRule {
 				parentBean.put(getBeanAttributeName(), null);
 			}
 			else {
-				theSum = getObjectPropertyAsBigDecimal(parentBean, getBeanAttributeName());
-				if (theSum == null) 
-					theSum = BigDecimal.ZERO;  // no need to initialize aggregates
-				BigDecimal theNewSumD = theSum.add(adjustment);
+				theSum = getParentSum(parentBean);  // no need to initialize aggregates
 				Class<?> attType = parentBean.getMetaEntity().getMetaAttribute(getBeanAttributeName()).getType();
-				Number theNewNewSum = NumberUtil.convertNumberToType(theNewSumD, attType);
-				parentBean.put(getBeanAttributeName(), theNewNewSum);
+				parentBean.put(getBeanAttributeName(), toAttributeType(add(theSum, adjustment), attType));
 			}
 			if (log.isDebugEnabled())
 				log.debug ("Adjusting sum " +  theParent.getClass().getSimpleName() +
@@ -206,14 +201,14 @@ public class SumRule extends AbstractAggregateRule {
 				currentParent = ProxyUtil.getNonProxyObject(currentParent);
 			ep = sessionImpl.getEntityPersister(entityName, currentParent);
 		}
-		priorParentPersBean = HibPersistentBeanFactory.getInstance(context.getSession()).
+		priorParentPersBean = context.getPersistentBeanFactory().
 			createPersistentBeanFromObject(priorParent, ep);
 		
 		PersistentBean currentParentPersBean;
 		if (priorParent instanceof PersistentBean)
 			throw new LogicException("Unexpected Persistent Bean - expected map/pojo");
 		
-		currentParentPersBean = HibPersistentBeanFactory.getInstance(context.getSession()).
+		currentParentPersBean = context.getPersistentBeanFactory().
 			createPersistentBeanFromObject(currentParent, parentMetaEntity.getEntityPersister());
 		
 		// Look ahead in the LogicRunner queue for a LogicRunner for the
@@ -267,14 +262,9 @@ public class SumRule extends AbstractAggregateRule {
 			// the above should not require a getParent sql, but we need all the values now (fetched below)
 			PersistentBean priorParentOldValues = priorParentPersBean.duplicate();
 
-			BigDecimal oldChildValue = getObjectPropertyAsBigDecimal(priorChild, summedField);
-			if (oldChildValue == null)
-				oldChildValue = BigDecimal.ZERO;
-			BigDecimal oldParentValue = getObjectPropertyAsBigDecimal(priorParentPersBean, getBeanAttributeName());
-			if (oldParentValue == null)
-				oldParentValue = BigDecimal.ZERO;
-			BigDecimal oldParentNewValue = oldParentValue.subtract(oldChildValue);
-			if ( ! oldParentNewValue.equals(oldParentValue)) {
+			Number oldChildValue = getChildValue(priorChild);
+			Number oldParentValue = getParentSum(priorParentPersBean);
+			if ( ! isZero(oldChildValue)) {
 
 				// For transient attribute, we just reset them to null, and they'll get 
 				// recomputed when needed.
@@ -282,8 +272,8 @@ public class SumRule extends AbstractAggregateRule {
 					priorParentPersBean.put(getBeanAttributeName(), null);
 				}
 				else {
-					Number theNewNewSum = NumberUtil.convertNumberToType(oldParentNewValue, attType);
-					priorParentPersBean.put(getBeanAttributeName(), theNewNewSum);
+					Number oldParentNewValue = add(oldParentValue, negate(oldChildValue));
+					priorParentPersBean.put(getBeanAttributeName(), toAttributeType(oldParentNewValue, attType));
 				}
 				firePostEvent(aParentAdjustments.getChildLogicRunner().getLogicObject(), 
 						aParentAdjustments.getChildLogicRunner(), priorParentPersBean, 
@@ -311,9 +301,9 @@ public class SumRule extends AbstractAggregateRule {
 		if (currentParent == null)
 			return;
 
-		BigDecimal currentAdjustBy = BigDecimal.ZERO;
-		BigDecimal currentChildValue = getObjectPropertyAsBigDecimal(currentChild, summedField);
-		BigDecimal priorChildValue = getObjectPropertyAsBigDecimal(priorChild, summedField);
+		Number currentAdjustBy = null;
+		Number currentChildValue = getChildValue(currentChild);
+		Number priorChildValue = getChildValue(priorChild);
 
 		// If this is a change of parent, does the child qualify?
 		if ( ! oldAndNewParentsAreEqual) {
@@ -321,21 +311,21 @@ public class SumRule extends AbstractAggregateRule {
 				currentAdjustBy = currentChildValue;
 		}
 		else { // The parent is the same
-			currentAdjustBy = currentChildValue.subtract(priorChildValue);
-
 			// Did the qualification change? If it did, the adjustment is the whole value.
 			if (priorQual && !currQual) {
-				currentAdjustBy = priorChildValue.negate();
+				currentAdjustBy = negate(priorChildValue);
 			}
 			else if (!priorQual && currQual)
 				currentAdjustBy = currentChildValue;
+			else
+				currentAdjustBy = add(currentChildValue, negate(priorChildValue));
 		}
 
 		// If there is something to adjust, do it
-		if ( currentAdjustBy.compareTo(BigDecimal.ZERO) != 0) {
+		if (currentAdjustBy != null && ! isZero(currentAdjustBy)) {
 			if ( ! currentCascadeDeferred)
 				aParentAdjustments.setOldAdjustedParentDomainObject(currentParentPersBean);
-			BigDecimal currentParentValue = BigDecimal.ZERO;
+			Number currentParentValue = BigDecimal.ZERO;
 			
 			// For transient attribute, we just reset them to null, and they'll get 
 			// recomputed when needed.
@@ -343,12 +333,8 @@ public class SumRule extends AbstractAggregateRule {
 				currentParentPersBean.put(getBeanAttributeName(), null);
 			}
 			else {
-				currentParentValue = getObjectPropertyAsBigDecimal(currentParentPersBean, getBeanAttributeName());
-				if (currentParentValue == null)
-					currentParentValue = BigDecimal.ZERO;
-				BigDecimal currentParentNewValue = currentParentValue.add(currentAdjustBy);
-				Number theNewNewSum = NumberUtil.convertNumberToType(currentParentNewValue, attType);
-				currentParentPersBean.put(getBeanAttributeName(), theNewNewSum);
+				currentParentValue = getParentSum(currentParentPersBean);
+				currentParentPersBean.put(getBeanAttributeName(), toAttributeType(add(currentParentValue, currentAdjustBy), attType));
 			}
 
 			if (log.isInfoEnabled())  {
@@ -380,7 +366,6 @@ public class SumRule extends AbstractAggregateRule {
 		long startTime = System.nanoTime();
 		LogicRunner childLogicRunner = aParentAdjustments.getChildLogicRunner();
 		LogicTransactionContext context = childLogicRunner.getContext();
-		BigDecimal currSummedD;
 		
 		// adjust new by delta (if any) - TODO - other algorithms
 		PersistentBean currentChild = childLogicRunner.getCurrentDomainObject();
@@ -388,8 +373,7 @@ public class SumRule extends AbstractAggregateRule {
 		boolean currQual = runQualificationForBean(currentChild);  	//todo - can possibly prune per dependsOn roles (needs thought)
 		if (currQual ==  false)
 			return; // not qualified - no adjustment
-		currSummedD = getObjectPropertyAsBigDecimal(currentChild, summedField);
-		BigDecimal adjustment = BigDecimal.ZERO.subtract(currSummedD);
+		Number adjustment = negate(getChildValue(currentChild));
 
 		if ( ! role.isCollection())
 			throw new RuntimeException("Sum cannot be defined on a non-collection relationship: " + role);
@@ -409,7 +393,7 @@ public class SumRule extends AbstractAggregateRule {
 				HibMetaEntity parentMetaEntity = (HibMetaEntity)role.getMetaEntity();
 				ep = parentMetaEntity.getEntityPersister();
 			}
-			theParentState = HibPersistentBeanFactory.getInstance(context.getSession()).
+			theParentState = context.getPersistentBeanFactory().
 					createPersistentBeanFromObject(parent, ep);
 
 			// Look ahead in the LogicRunner queue for a LogicRunner for the
@@ -426,7 +410,7 @@ public class SumRule extends AbstractAggregateRule {
 		}
 		
 		if (parent != null && ! context.objectIsDeleted(theParentState)) {
-			BigDecimal theSum = BigDecimal.ZERO;
+			Number theSum = BigDecimal.ZERO;
 			
 			// For transient attribute, we just reset them to null, and they'll get 
 			// recomputed when needed.
@@ -437,13 +421,9 @@ public class SumRule extends AbstractAggregateRule {
 			else {
 				if ( ! cascadeDeferred)
 					aParentAdjustments.setOldAdjustedParentDomainObject (theParentState);
-				theSum = getObjectPropertyAsBigDecimal(theParentState, getBeanAttributeName());
-				if (theSum == null) 
-					theSum = BigDecimal.ZERO;  // no need to initialize aggregates
-				BigDecimal theNewSum = theSum.add(adjustment);
+				theSum = getParentSum(theParentState);  // no need to initialize aggregates
 				Class<?> attType = theParentState.getMetaEntity().getMetaAttribute(getBeanAttributeName()).getType();
-				Number theNewNewSum = NumberUtil.convertNumberToType(theNewSum, attType);
-				theParentState.put(getBeanAttributeName(), theNewNewSum);
+				theParentState.put(getBeanAttributeName(), toAttributeType(add(theSum, adjustment), attType));
 			}
 			if (log.isInfoEnabled())
 				log.debug ("Adjusting sum " +  theParentState.getClass().getSimpleName() +
@@ -460,32 +440,99 @@ public class SumRule extends AbstractAggregateRule {
 	}
 
 	/**
-	 * General shape of query:
-	 * <br><br> 
-	 * SELECT SUM(Amount) FROM Lineitem<br>
-	 * WHERE PurchaseOrderNumber IN<br>
-	 * (SELECT OrderNumber FROM Purchaseorder<br>
-	 * WHERE CustomerName="Gloria's Garden" and isReady = false) and QtyOrdered > 0;
-	 *
-	 * @param aParentObjectState
-	 * @param aContext
-	 * return sum, using sql select
+	 * Sums can be coalesced if they are persistent, and their method has no code.
 	 */
-//	public void computeAggregateFromDatabase(Object bean, LogicTransactionContext aContext) {
-//		if (dependsOnTransientWhere() )
-//			computeAggregateInMemory(bean, aContext);
-//		else
-//			throw new LogicException("Sum from SQL coming soon");
-//	}
+	@Override
+	public boolean isCoalescable() {
+		if ( ! noCode || getAggregateAlgorithm() != AggregateAlgorithm.ADJUST)
+			return false;
+		MetaAttribute metaAttribute = getLogicGroup().getMetaEntity().getMetaAttribute(getBeanAttributeName());
+		return ! metaAttribute.isTransient();
+	}
 
 	/**
-	 * 
-	 * @return true if transients in where clause
+	 * A child contributes the value of its summed field.
 	 */
-//	private boolean dependsOnTransientWhere() {
-//		return true;
-//	}
+	@Override
+	protected BigDecimal getChildContribution(PersistentBean child) {
+		return getObjectPropertyAsBigDecimal(child, summedField);
+	}
 
+	/**
+	 * Determine (once) whether this sum can be adjusted using long arithmetic.
+	 */
+	private boolean isIntegral() {
+		Boolean result = integral;
+		if (result == null) {
+			MetaAttribute sumAttribute = getLogicGroup().getMetaEntity().getMetaAttribute(getBeanAttributeName());
+			MetaAttribute summedAttribute = getRole().getOtherMetaEntity().getMetaAttribute(summedField);
+			result = sumAttribute != null && summedAttribute != null && 
+					NumberUtil.isIntegralType(sumAttribute.getType()) && 
+					NumberUtil.isIntegralType(summedAttribute.getType());
+			integral = result;
+		}
+		return result;
+	}
+	
+	/**
+	 * Get the summed value of a child, as a Long if this sum is integral, otherwise as a BigDecimal.
+	 * @return Zero if the value is null
+	 */
+	private Number getChildValue(PersistentBean child) {
+		if (isIntegral()) {
+			Number value = (Number)child.get(summedField);
+			return value == null ? Long.valueOf(0) : Long.valueOf(value.longValue());
+		}
+		return getObjectPropertyAsBigDecimal(child, summedField);
+	}
+	
+	/**
+	 * Get the current value of the sum in a parent, as a Long if this sum is integral, otherwise
+	 * as a BigDecimal.
+	 * @return Zero if the value is null
+	 */
+	private Number getParentSum(PersistentBean parent) {
+		if (isIntegral()) {
+			Number value = (Number)parent.get(getBeanAttributeName());
+			return value == null ? Long.valueOf(0) : Long.valueOf(value.longValue());
+		}
+		return getObjectPropertyAsBigDecimal(parent, getBeanAttributeName());
+	}
+	
+	private Number add(Number n1, Number n2) {
+		if (isIntegral())
+			return Long.valueOf(NumberUtil.addExact(n1.longValue(), n2.longValue()));
+		return ((BigDecimal)n1).add((BigDecimal)n2);
+	}
+	
+	private Number negate(Number n) {
+		if (isIntegral()) {
+			if (n.longValue() == Long.MIN_VALUE)
+				throw new ArithmeticException("Overflow while negating " + n);
+			return Long.valueOf(-n.longValue());
+		}
+		return ((BigDecimal)n).negate();
+	}
+	
+	private static boolean isZero(Number n) {
+		if (n instanceof BigDecimal)
+			return ((BigDecimal)n).signum() == 0;
+		return n.longValue() == 0;
+	}
+	
+	/**
+	 * Convert a value computed by add or negate to the type of the sum attribute.
+	 */
+	private Number toAttributeType(Number n, Class<?> attType) {
+		if (isIntegral())
+			return NumberUtil.convertLongToType(n.longValue(), attType);
+		return NumberUtil.convertNumberToType(n, attType);
+	}
+
+	@Override
+	protected String getAggregateSelectExpression() {
+		return "sum(" + summedField + ")";
+	}
 
 	//private static boolean proxyCallsForValue = false;  // interim scaffolding until implemented
 
@@ -529,86 +576,19 @@ public class SumRule extends AbstractAggregateRule {
 
 	/**
 	 * Called when adjustment notes null, or proxy getter notes null, to set pojo attribute value.
+	 * The sum is computed from the children currently in memory, see computeAggregateInMemory.
 	 * 
-	 * @return old value, but deletions not counted (hmm, useful for apps?)
+	 * @param bean The parent object, either a PersistentBean or an entity
+	 * @param aContext The current context
+	 * @return The value of the sum
 	 */
 	public BigDecimal computeSumInMemory(Object bean, LogicTransactionContext aContext) {
-		
-		BeanMap beanMap = new BeanMap(bean);
-		BigDecimal resultNumber = BigDecimal.ZERO;
-		Collection<?> theChildren = (Collection<?>)beanMap.get(roleName);
-		
-		if (theChildren == null || theChildren.isEmpty())
-			return BigDecimal.ZERO;
-		
-		PersistenceContext persistenceContext = HibernateSessionUtil.getPersistenceContextForSession(aContext.getSession());
-		if ( ! persistenceContext.containsCollection((PersistentCollection)theChildren)) {
-			String errMsg = "Persistent collection " + roleName + " of object " + bean + " is not in the current transaction. This usually means " +
-			"that you are trying to use a transient sum or count in a commit action or commit constraint, and the object in question is being deleted. " +
-			"You should change your constraint or action (in this case, " + getLogicGroup().getLogicClassName() + "." + getLogicMethodName() +
-			") so that it does not fire when the object is being deleted.";
-			throw new RuntimeException(errMsg);
-		}
-		
-/* Note : I am commenting this out until we have a better idea of how PersistentBeans are handled
-		for (Object eachChild: theChildren) {
-			ObjectState childObjectState = ObjectStateFactory.createObjectStateForObject(eachChild, aContext.getSession());
-			if (childObjectState == null) // This usually means the child has not yet been saved, and therefore has no pk yet. We'll get to it later.
-				return null;
-			
-			// Always compute value from scratch -- we'll refine this to real adjustments at some point in the future.
-			BigDecimal summedValue2 = getObjectPropertyAsBigDecimal(childObjectState, this.summedField);
-			boolean childMeetsQualificationCondition2 = runQualificationForBean(childObjectState);
-			if (childMeetsQualificationCondition2)
-				resultNumber = resultNumber.add(summedValue2);
-*/
-			/** This code is turned off until we're ready to try real adjustments 
-			// We want to use the old values to add up because the new values will result in an adjustment later on.
-			 
-			ObjectState oldChildObjectState = childObjectState;
-			String fromQualifiedChild = " from qualified child ";
-			LogicRunner childLogicRunner = aContext.findLogicRunner(childObjectState);
-			if (childLogicRunner != null) {  // deletes do not show up here, so are skipped for adjustment of transients
-				fromQualifiedChild = " from Qualified <" + childLogicRunner.getLogicProcessingState() + "> child ";
-				if (childLogicRunner.getPriorDomainObject() == null)
-					oldChildObjectState = null;	// it's an insert - we'll process that later, and it does not contribute to the old sum
-				else
-					oldChildObjectState = childLogicRunner.getPriorDomainObject();
-			}
-			
-			if (oldChildObjectState == null)
-				continue;
-			
-			// Of course, this only makes sense if the old value actually belonged to this parent.
-			// We compare the primary keys because the objects themselves are often different, i.e. the
-			// one retrieved from the old ObjectState is typically a proxy.
-			Object oldParent = oldChildObjectState.get(parentRole);
-			if (oldParent == null)
-				continue;
-			
-			Object oldParentPk = aContext.getSession().getIdentifier(oldParent);
-			if (oldParentPk == null)
-				continue;
-			Object beanPk = aContext.getSession().getIdentifier(bean);
-			if ( ! oldParentPk.equals(beanPk))
-				continue;
-			
-			BigDecimal summedValue = getObjectPropertyAsBigDecimal(oldChildObjectState, this.summedField);
-			boolean childMeetsQualificationCondition = runQualificationForBean(childObjectState);
-			if (childMeetsQualificationCondition) {
-				resultNumber = resultNumber.add(summedValue);
-
-			if (log.isDebugEnabled()) 
-				log.debug("InMem["  + getBeanAttributeName() + "]+="+ resultNumber + fromQualifiedChild + childObjectState.toString(null, aContext.getSession()));
-			}
-			*/
-//		} // for eachChild
-		
-		if (log.isInfoEnabled())
-			log.info ("InMem[" + getBeanAttributeName() + "]==" + resultNumber + 
-					" in parent " + beanMap.toString());
-
-		return resultNumber;		
+		PersistentBean parentBean;
+		if (bean instanceof PersistentBean)
+			parentBean = (PersistentBean)bean;
+		else
+			parentBean = aContext.getPersistentBeanFactory().createPersistentBeanFromEntity(bean);
+		return computeAggregateInMemory(parentBean, aContext);
 	}
 
 	@Override
@@ -0,0 +1,238 @@
+package com.autobizlogic.abl.session;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.engine.LogicRunner;
+import com.autobizlogic.abl.engine.LogicRunner.LogicProcessingState;
+
+/**
+ * An index of the LogicRunners currently in the work queue of a LogicTransactionContext,
+ * by entity name and primary key. For a given object, the LogicRunners are kept in the
+ * order in which they were queued, so that we can find the oldest, the newest, or the first one
+ * that has not yet run without going through the whole queue.
+ * <p/>
+ * LogicRunners for objects that do not yet have a primary key are kept on the side, and
+ * are moved into the index as soon as their primary key becomes available.
+ */
+public class LogicRunnerIndex {
+
+	/**
+	 * The main index. The key is the entity name, and in the value, the key is the PK and the value is
+	 * the list of entries for that object, in queue order.
+	 */
+	private Map<String, Map<Serializable, List<Entry>>> entries = new HashMap<String, Map<Serializable, List<Entry>>>();
+
+	/**
+	 * Entries for LogicRunners whose object had no primary key when they were queued.
+	 */
+	private List<Entry> transientEntries = new ArrayList<Entry>();
+
+	/**
+	 * Incremented for every LogicRunner added, so that we can keep entries in queue order
+	 * when a transient entry gets moved into the main index.
+	 */
+	private long sequence = 0;
+
+	/**
+	 * Add a LogicRunner to the index. This must be called in the same order as the LogicRunners
+	 * are added to the queue.
+	 */
+	public void add(LogicRunner runner) {
+		Entry entry = new Entry(runner, sequence++);
+		PersistentBean bean = runner.getCurrentDomainObject();
+		Serializable pk = bean.getPk();
+		if (pk == null) {
+			transientEntries.add(entry);
+			return;
+		}
+		getEntriesForKey(bean.getEntityName(), pk, true).add(entry);
+	}
+
+	/**
+	 * Remove a LogicRunner from the index.
+	 * @return True if the LogicRunner was in the index.
+	 */
+	public boolean remove(LogicRunner runner) {
+		PersistentBean bean = runner.getCurrentDomainObject();
+		Serializable pk = bean.getPk();
+		if (pk != null) {
+			Map<Serializable, List<Entry>> entityEntries = entries.get(bean.getEntityName());
+			if (entityEntries != null) {
+				List<Entry> beanEntries = entityEntries.get(pk);
+				if (beanEntries != null && removeEntry(beanEntries, runner)) {
+					if (beanEntries.isEmpty())
+						entityEntries.remove(pk);
+					return true;
+				}
+			}
+		}
+		return removeEntry(transientEntries, runner);
+	}
+
+	/**
+	 * Determine whether the given LogicRunner is in the index.
+	 */
+	public boolean contains(LogicRunner runner) {
+		List<Entry> beanEntries = getEntriesForBean(runner.getCurrentDomainObject());
+		if (beanEntries == null)
+			return false;
+		for (Entry entry : beanEntries) {
+			if (entry.runner == runner)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Find the oldest LogicRunner for the given bean.
+	 * @return Null if there is no LogicRunner for this bean.
+	 */
+	public LogicRunner findFirst(PersistentBean bean) {
+		List<Entry> beanEntries = getEntriesForBean(bean);
+		if (beanEntries == null || beanEntries.isEmpty())
+			return null;
+		return beanEntries.get(0).runner;
+	}
+
+	/**
+	 * Find the oldest LogicRunner for the given bean that is still in QUEUED state.
+	 * @return Null if there is no such LogicRunner.
+	 */
+	public LogicRunner findFirstQueued(PersistentBean bean) {
+		List<Entry> beanEntries = getEntriesForBean(bean);
+		if (beanEntries == null)
+			return null;
+		for (Entry entry : beanEntries) {
+			if (entry.runner.getLogicProcessingState() == LogicProcessingState.QUEUED)
+				return entry.runner;
+		}
+		return null;
+	}
+
+	/**
+	 * Find the most recently added LogicRunner for the given bean.
+	 * @return Null if there is no LogicRunner for this bean.
+	 */
+	public LogicRunner findNewest(PersistentBean bean) {
+		List<Entry> beanEntries = getEntriesForBean(bean);
+		if (beanEntries == null || beanEntries.isEmpty())
+			return null;
+		return beanEntries.get(beanEntries.size() - 1).runner;
+	}
+
+	/**
+	 * Remove everything from the index.
+	 */
+	public void clear() {
+		entries.clear();
+		transientEntries.clear();
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+	// Internal methods
+
+	/**
+	 * Get the entries for the given bean, in queue order.
+	 * @return Null if there are no entries for the given bean.
+	 */
+	private List<Entry> getEntriesForBean(PersistentBean bean) {
+		if (bean == null)
+			return null;
+
+		if ( ! transientEntries.isEmpty())
+			promoteTransientEntries();
+
+		Serializable pk = bean.getPk();
+		if (pk != null)
+			return getEntriesForKey(bean.getEntityName(), pk, false);
+
+		// The bean has no primary key yet, so all we can do is compare the underlying entities
+		List<Entry> beanEntries = null;
+		for (Entry entry : transientEntries) {
+			PersistentBean entryBean = entry.runner.getCurrentDomainObject();
+			if (entryBean.getEntity() == bean.getEntity() && entryBean.getEntityName().equals(bean.getEntityName())) {
+				if (beanEntries == null)
+					beanEntries = new ArrayList<Entry>();
+				beanEntries.add(entry);
+			}
+		}
+		return beanEntries;
+	}
+
+	/**
+	 * Move into the main index any transient entry whose object now has a primary key.
+	 */
+	private void promoteTransientEntries() {
+		Iterator<Entry> iter = transientEntries.iterator();
+		while (iter.hasNext()) {
+			Entry entry = iter.next();
+			PersistentBean bean = entry.runner.getCurrentDomainObject();
+			Serializable pk = bean.getPk();
+			if (pk == null)
+				continue;
+			iter.remove();
+
+			// Insert in queue order
+			List<Entry> beanEntries = getEntriesForKey(bean.getEntityName(), pk, true);
+			int idx = beanEntries.size();
+			while (idx > 0 && beanEntries.get(idx - 1).sequence > entry.sequence)
+				idx--;
+			beanEntries.add(idx, entry);
+		}
+	}
+
+	private List<Entry> getEntriesForKey(String entityName, Serializable pk, boolean create) {
+		Map<Serializable, List<Entry>> entityEntries = entries.get(entityName);
+		if (entityEntries == null) {
+			if ( ! create)
+				return null;
+			entityEntries = new HashMap<Serializable, List<Entry>>();
+			entries.put(entityName, entityEntries);
+		}
+		List<Entry> beanEntries = entityEntries.get(pk);
+		if (beanEntries == null && create) {
+			beanEntries = new ArrayList<Entry>(2);
+			entityEntries.put(pk, beanEntries);
+		}
+		return beanEntries;
+	}
+
+	private static boolean removeEntry(List<Entry> list, LogicRunner runner) {
+		for (int i = 0; i < list.size(); i++) {
+			if (list.get(i).runner == runner) {
+				list.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * A LogicRunner, along with its position in the queue.
+	 */
+	private static class Entry {
+		private final LogicRunner runner;
+		private final long sequence;
+
+		private Entry(LogicRunner runner, long sequence) {
+			this.runner = runner;
+			this.sequence = sequence;
+		}
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -1,15 +1,12 @@
 package com.autobizlogic.abl.session;
 
 import java.io.Serializable;
-//import java.util.Collection;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.Vector;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
@@ -18,12 +15,16 @@ import org.hibernate.metadata.ClassMetadata;
 import org.hibernate.proxy.HibernateProxy;
 
 import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.data.hibernate.HibPersistentBeanFactory;
 import com.autobizlogic.abl.hibernate.LogicEventListener.QueuedEventPhase;
 import com.autobizlogic.abl.metadata.MetaModel;
 import com.autobizlogic.abl.metadata.MetaModelFactory;
 import com.autobizlogic.abl.engine.LogicRunner;
 import com.autobizlogic.abl.engine.LogicRunner.LogicProcessingState;
+import com.autobizlogic.abl.engine.phase.AggregateAdjustmentCoalescer;
 import com.autobizlogic.abl.rule.ActionRule;
+import com.autobizlogic.abl.rule.LazyFormulaIndex;
+import com.autobizlogic.abl.rule.MinMaxValueIndex;
 import com.autobizlogic.abl.engine.LogicException;
 import com.autobizlogic.abl.event.GlobalLogicEventHandler;
 import com.autobizlogic.abl.event.LogicEvent;
@@ -55,10 +56,10 @@ public class LogicTransactionContext {
 	
 	private String useCaseName = null;
 	
-	private List<LogicRunner> objectsToProcess = new CopyOnWriteArrayList<LogicRunner>();
-	
 	/**
-	private List<LogicRunner> objectsToProcess = new Vector<LogicRunner>();
+	 * The LogicRunners waiting to be executed, in the order in which they were submitted.
+	 */
+	private LogicWorkQueue objectsToProcess = new LogicWorkQueue();
 	
 	/**
 	 * Keep track of objects that have been deleted. The main key is the entity name, and in the
@@ -92,6 +93,27 @@ public class LogicTransactionContext {
 	 * Keep track of all modified objects within this transaction.
 	 */
 	private TransactionSummary transactionSummary = new TransactionSummary();
+	
+	/**
+	 * If aggregate adjustments are being coalesced, where they are accumulated. Null otherwise.
+	 */
+	private AggregateAdjustmentCoalescer aggregateAdjustmentCoalescer = null;
+	
+	/**
+	 * The values of the children used by min/max rules, if they are kept. Created when first needed.
+	 */
+	private MinMaxValueIndex minMaxValueIndex = null;
+	
+	/**
+	 * The lazy formulas that are out of date. Created when first needed.
+	 */
+	private LazyFormulaIndex lazyFormulaIndex = null;
+	
+	/**
+	 * The factory used by the rules to wrap the objects they navigate to, so that each object
+	 * gets wrapped only once per transaction. Created when first needed.
+	 */
+	private HibPersistentBeanFactory persistentBeanFactory = null;
 		
 	@SuppressWarnings("unused")
 	private final static LogicLogger log = LogicLogger.getLogger(LogicLogger.LoggerName.PERSISTENCE);
@@ -159,7 +181,7 @@ public class LogicTransactionContext {
 	/**
 	 * Get all the logic runners currently lined up to run.
 	 */
-	public List<LogicRunner> getObjectsToProcess() {
+	public LogicWorkQueue getObjectsToProcess() {
 		return objectsToProcess;
 	}
 	
@@ -170,6 +192,13 @@ public class LogicTransactionContext {
 	public void addObjectToProcess(LogicRunner logicRunner) {
 		objectsToProcess.add(logicRunner);
 	}
+	
+	/**
+	 * Determine whether the given LogicRunner is in the list of objects to process, regardless of its state.
+	 */
+	public boolean containsObjectToProcess(LogicRunner logicRunner) {
+		return objectsToProcess.contains(logicRunner);
+	}
 
 	/**
 	 * Look through all the logic runners that have not yet run for any that is for
@@ -181,11 +210,7 @@ public class LogicTransactionContext {
 
 		if (bean == null)
 			return null;
-		for (LogicRunner runner : objectsToProcess) {
-			if (bean.equals(runner.getCurrentDomainObject()) && runner.getLogicProcessingState() == LogicProcessingState.QUEUED)
-				return runner;
-		}
-		return null;
+		return objectsToProcess.findFirstQueued(bean);
 	}
 	
 	/**
@@ -222,6 +247,20 @@ public class LogicTransactionContext {
 		runnersForClass.put(pk, runner); // Note that this will overwrite a LogicRunner already there for this object. This is as intended.
 	}
 	
+	/**
+	 * Forget the given LogicRunner, so that it does not take part in the commit-time actions and constraints.
+	 * This is used when its object has been evicted from the session. If another LogicRunner has been 
+	 * registered since for the same object, this does nothing.
+	 */
+	public void unregisterLogicRunner(LogicRunner runner) {
+		Map<Serializable, LogicRunner> runnersForClass = allLogicRunners.get(runner.getCurrentDomainObject().getEntityName());
+		if (runnersForClass == null)
+			return;
+		Serializable pk = runner.getCurrentDomainObject().getPk();
+		if (runnersForClass.get(pk) == runner)
+			runnersForClass.remove(pk);
+	}
+	
 	/**
 	 * Get the LogicRunners for all objects touched during the transaction.
 	 */
@@ -233,6 +272,17 @@ public class LogicTransactionContext {
 		return allRunners;
 	}
 	
+	/**
+	 * Get the latest LogicRunner of every object of the given entity touched during the transaction.
+	 * @return A read-only view, empty if there are none.
+	 */
+	public Collection<LogicRunner> getLogicRunnersForEntity(String entityName) {
+		Map<Serializable, LogicRunner> runnersForClass = allLogicRunners.get(entityName);
+		if (runnersForClass == null)
+			return Collections.emptyList();
+		return Collections.unmodifiableCollection(runnersForClass.values());
+	}
+	
 	/**
 	 * See if we have a LogicRunner for the given PersistentBean.
 	 * @param aBean The bean to check for
@@ -244,12 +294,7 @@ public class LogicTransactionContext {
 		if (aBean == null)
 			return null;
 
-		for (LogicRunner eachLogicRunner: objectsToProcess) {
-			PersistentBean eachLogicRunnerCurrentState = eachLogicRunner.getCurrentDomainObject();
-			if (eachLogicRunnerCurrentState.equals(aBean))
-				return eachLogicRunner;
-		}
-		return null;
+		return objectsToProcess.findFirst(aBean);
 	}
 	
 	/**
@@ -257,14 +302,7 @@ public class LogicTransactionContext {
 	 * @return Null if none is found.
 	 */
 	public LogicRunner findNewestLogicRunner(PersistentBean aBean) {
-		Vector<LogicRunner> revObjectsToProcess = new Vector<LogicRunner>(objectsToProcess);
-		Collections.reverse(revObjectsToProcess);
-		for (LogicRunner eachLogicRunner: revObjectsToProcess) {
-			PersistentBean eachLogicRunnerCurrentState = eachLogicRunner.getCurrentDomainObject();
-			if (eachLogicRunnerCurrentState.equals(aBean))
-				return eachLogicRunner;
-		}
-		return null;
+		return objectsToProcess.findNewest(aBean);
 	}
 	
 	/**
@@ -372,6 +410,74 @@ public class LogicTransactionContext {
 		return fk;
 	}
 	
+	/**
+	 * Get the object in which sum and count adjustments are currently being accumulated.
+	 * @return Null if adjustments are not being coalesced.
+	 */
+	public AggregateAdjustmentCoalescer getAggregateAdjustmentCoalescer() {
+		return aggregateAdjustmentCoalescer;
+	}
+	
+	public void setAggregateAdjustmentCoalescer(AggregateAdjustmentCoalescer coalescer) {
+		this.aggregateAdjustmentCoalescer = coalescer;
+	}
+	
+	/**
+	 * Get the values kept by min/max rules for this transaction.
+	 */
+	public MinMaxValueIndex getMinMaxValueIndex() {
+		if (minMaxValueIndex == null)
+			minMaxValueIndex = new MinMaxValueIndex();
+		return minMaxValueIndex;
+	}
+	
+	/**
+	 * Get the factory that should be used to create PersistentBeans during this transaction.
+	 * It returns the same PersistentBean every time it is asked for the same object, which saves
+	 * looking up its primary key and metadata again.
+	 */
+	public HibPersistentBeanFactory getPersistentBeanFactory() {
+		if (persistentBeanFactory == null || persistentBeanFactory.getSession() != session)
+			persistentBeanFactory = HibPersistentBeanFactory.getCachingInstance(session);
+		return persistentBeanFactory;
+	}
+	
+	/**
+	 * Get the lazy formulas that are out of date in this transaction.
+	 */
+	public LazyFormulaIndex getLazyFormulaIndex() {
+		if (lazyFormulaIndex == null)
+			lazyFormulaIndex = new LazyFormulaIndex();
+		return lazyFormulaIndex;
+	}
+	
+	/**
+	 * Compute the lazy formulas of the given object that are out of date. Lazy formulas
+	 * are only computed when another rule needs them, so the application should call this
+	 * before reading their value from an object that was modified in this transaction.
+	 * @param bean A persistent POJO or Map, or a PersistentBean
+	 */
+	public void computeLazyFormulas(Object bean) {
+		if (lazyFormulaIndex == null || bean == null)
+			return;
+		if (bean instanceof PersistentBean)
+			bean = ((PersistentBean)bean).getEntity();
+		LogicRunner runner = lazyFormulaIndex.getRunnerForEntity(bean);
+		if (runner != null)
+			runner.getLogicGroup().computeLazyFormulas(runner);
+	}
+	
+	/**
+	 * Compute all the lazy formulas that are still out of date. This gets called at the end of the
+	 * logic phase if the computeLazyFormulasAtCommit configuration property is true.
+	 */
+	public void computeAllLazyFormulas() {
+		if (lazyFormulaIndex == null || lazyFormulaIndex.isEmpty())
+			return;
+		for (LogicRunner runner : lazyFormulaIndex.getRunnersWithStaleFormulas())
+			runner.getLogicGroup().computeLazyFormulas(runner);
+	}
+	
 	/**
 	 * Get the use case name for this context.
 	 */
@@ -393,6 +499,14 @@ public class LogicTransactionContext {
 	public static void fireEvent(LogicEvent evt) {
 		GlobalLogicEventHandler.getGlobalLogicListenerHandler().fireEvent(evt);
 	}
+	
+	/**
+	 * Whether any listener is interested in the given type of event. If not, there is no need
+	 * to create the event.
+	 */
+	public static boolean hasEventListeners(LogicEvent.EventType eventType) {
+		return GlobalLogicEventHandler.getGlobalLogicListenerHandler().hasLogicListeners(eventType);
+	}
 
 	////////////////////////////////////////////////////////////////////////////////////////
 	
@@ -0,0 +1,206 @@
+package com.autobizlogic.abl.session;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.autobizlogic.abl.data.PersistentBean;
+import com.autobizlogic.abl.engine.LogicException;
+import com.autobizlogic.abl.engine.LogicRunner;
+
+/**
+ * The queue of LogicRunners waiting to be executed in a transaction.
+ * <p/>
+ * LogicRunners are added at the end of the queue as Hibernate events come in, and while other
+ * LogicRunners execute. They are executed by generation: startGeneration marks all the LogicRunners
+ * currently in the queue as the current generation, which can then be executed in order using get.
+ * LogicRunners added while the current generation executes belong to the next generation. Once
+ * the current generation has been executed, endGeneration removes it from the queue.
+ * <p/>
+ * The LogicRunners of the current generation remain visible to the lookup methods (findFirst, etc...)
+ * until endGeneration is called, so that a LogicRunner that is executing can still be found.
+ * <p/>
+ * The queue is backed by a circular array, so adding and removing are constant time.
+ */
+public class LogicWorkQueue implements Iterable<LogicRunner> {
+
+	private LogicRunner[] elements = new LogicRunner[16];
+
+	/**
+	 * Position of the first LogicRunner in elements.
+	 */
+	private int head = 0;
+
+	private int size = 0;
+
+	/**
+	 * The number of LogicRunners, at the head of the queue, in the current generation.
+	 */
+	private int generationSize = 0;
+
+	private boolean generationStarted = false;
+
+	private LogicRunnerIndex index = new LogicRunnerIndex();
+
+	/**
+	 * Add the given LogicRunner at the end of the queue.
+	 */
+	public void add(LogicRunner runner) {
+		if (runner == null)
+			throw new LogicException("Cannot add a null LogicRunner to the queue");
+		if (size == elements.length)
+			grow();
+		elements[(head + size) & (elements.length - 1)] = runner;
+		size++;
+		index.add(runner);
+	}
+
+	/**
+	 * Get the number of LogicRunners in the queue, including those of the current generation.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Whether the queue contains no LogicRunner at all.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the LogicRunner at the given position in the queue.
+	 */
+	public LogicRunner get(int i) {
+		if (i < 0 || i >= size)
+			throw new IndexOutOfBoundsException("Index: " + i + ", size: " + size);
+		return elements[(head + i) & (elements.length - 1)];
+	}
+
+	/**
+	 * Start a new generation: all the LogicRunners currently in the queue become part of it.
+	 * @return The number of LogicRunners in the new generation. They are the LogicRunners
+	 * at positions 0 to this number (exclusive).
+	 */
+	public int startGeneration() {
+		if (generationStarted)
+			throw new LogicException("A generation of LogicRunners is already being processed");
+		generationStarted = true;
+		generationSize = size;
+		return generationSize;
+	}
+
+	/**
+	 * End the current generation: its LogicRunners are removed from the queue.
+	 */
+	public void endGeneration() {
+		if ( ! generationStarted)
+			throw new LogicException("No generation of LogicRunners is being processed");
+		for (int i = 0; i < generationSize; i++) {
+			LogicRunner runner = elements[head];
+			elements[head] = null;
+			head = (head + 1) & (elements.length - 1);
+			size--;
+			index.remove(runner);
+		}
+		generationSize = 0;
+		generationStarted = false;
+	}
+
+	/**
+	 * Give up on the current generation, typically because one of its LogicRunners threw an exception.
+	 * Its LogicRunners stay in the queue. This does nothing if no generation is being processed.
+	 */
+	public void cancelGeneration() {
+		generationSize = 0;
+		generationStarted = false;
+	}
+
+	/**
+	 * Determine whether the given LogicRunner is in the queue, regardless of its state.
+	 */
+	public boolean contains(LogicRunner runner) {
+		return index.contains(runner);
+	}
+
+	/**
+	 * Find the oldest LogicRunner in the queue for the given bean.
+	 * @return Null if there is no LogicRunner for this bean.
+	 */
+	public LogicRunner findFirst(PersistentBean bean) {
+		return index.findFirst(bean);
+	}
+
+	/**
+	 * Find the oldest LogicRunner in the queue for the given bean that is still in QUEUED state.
+	 * @return Null if there is no such LogicRunner.
+	 */
+	public LogicRunner findFirstQueued(PersistentBean bean) {
+		return index.findFirstQueued(bean);
+	}
+
+	/**
+	 * Find the most recently queued LogicRunner for the given bean.
+	 * @return Null if there is no LogicRunner for this bean.
+	 */
+	public LogicRunner findNewest(PersistentBean bean) {
+		return index.findNewest(bean);
+	}
+
+	/**
+	 * Iterate over the LogicRunners that are in the queue at the time this is called. LogicRunners
+	 * added during the iteration are not returned.
+	 */
+	@Override
+	public Iterator<LogicRunner> iterator() {
+		final int iterSize = size;
+		return new Iterator<LogicRunner>() {
+			private int pos = 0;
+
+			@Override
+			public boolean hasNext() {
+				return pos < iterSize;
+			}
+
+			@Override
+			public LogicRunner next() {
+				if (pos >= iterSize)
+					throw new NoSuchElementException();
+				return get(pos++);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("LogicRunners cannot be removed from the queue using an iterator");
+			}
+		};
+	}
+
+	///////////////////////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Double the capacity of the queue. The capacity is always a power of two.
+	 */
+	private void grow() {
+		LogicRunner[] newElements = new LogicRunner[elements.length * 2];
+		for (int i = 0; i < size; i++)
+			newElements[i] = elements[(head + i) & (elements.length - 1)];
+		elements = newElements;
+		head = 0;
+	}
+
+	@Override
+	public String toString() {
+		return "LogicWorkQueue: " + size + " LogicRunner(s), current generation: " + generationSize;
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
@@ -1,7 +1,9 @@
 package com.autobizlogic.abl.text;
 
 import java.text.MessageFormat;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.autobizlogic.abl.util.LogicLogger;
 
@@ -14,6 +16,11 @@ public class LogicMessageFormatter {
 	
 	private static final LogicLogger log = LogicLogger.getLogger(LogicLogger.LoggerName.GENERAL);
 	
+	/**
+	 * The parsed messages. A MessageFormat is not thread-safe, so each one is synchronized on while in use.
+	 */
+	private static final Map<MessageName, MessageFormat> formats = new ConcurrentHashMap<MessageName, MessageFormat>();
+	
 	/**
 	 * Get a message that requires no parameters
 	 * @param msgName The name of the message
@@ -40,9 +47,7 @@ public class LogicMessageFormatter {
 			log.error("Unable to find message:" + msgName.name());
 			return "Error: unable to get message " + msgName.name();
 		}
-		MessageFormat form = new MessageFormat(rawMsg);
-		String fullMsg = form.format(new String[]{arg});
-		return fullMsg;
+		return format(msgName, rawMsg, new String[]{arg});
 	}
 
 	/**
@@ -57,9 +62,18 @@ public class LogicMessageFormatter {
 			log.error("Unable to find message:" + msgName.name());
 			return "Error: unable to get message " + msgName.name();
 		}
-		MessageFormat form = new MessageFormat(rawMsg);
-		String fullMsg = form.format(args);
-		return fullMsg;
+		return format(msgName, rawMsg, args);
+	}
+	
+	private static String format(MessageName msgName, String rawMsg, Object[] args) {
+		MessageFormat form = formats.get(msgName);
+		if (form == null) {
+			form = new MessageFormat(rawMsg);
+			formats.put(msgName, form);
+		}
+		synchronized(form) {
+			return form.format(args);
+		}
 	}
 }
 
@@ -0,0 +1,38 @@
+package com.autobizlogic.abl.util;
+
+/**
+ * The class loader for a class generated at runtime (see ExpressionCompiler and PropertyAccessorFactory).
+ * It sees the classes of the given class loader, typically the one for the persistent classes,
+ * but always uses our own classes for ABL, so that the generated class can be used by ABL even if
+ * the persistent classes come from a class loader that has its own copy of ABL.
+ */
+public class GeneratedClassLoader extends ClassLoader {
+
+	public GeneratedClassLoader(ClassLoader parent) {
+		super(parent);
+	}
+
+	@Override
+	protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+		if (name.startsWith("com.autobizlogic.abl."))
+			return GeneratedClassLoader.class.getClassLoader().loadClass(name);
+		return super.loadClass(name, resolve);
+	}
+
+	/**
+	 * Define the given class in this class loader.
+	 */
+	public Class<?> defineGeneratedClass(String name, byte[] bytecode) {
+		return defineClass(name, bytecode, 0, bytecode.length);
+	}
+}
+
+/*
+ * The contents of this file are subject to the Automated Business Logic Public License Version 1.0 (the "License"),
+ * which is derived from the Mozilla Public License version 1.1. You may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at http://www.automatedbusinesslogic.com/license/public-license
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis, WITHOUT WARRANTY OF ANY KIND, 
+ * either express or implied. See the License for the specific language governing rights and limitations under the License.
+ */
+ 
\ No newline at end of file
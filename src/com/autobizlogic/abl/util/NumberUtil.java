@@ -55,6 +55,54 @@ public class NumberUtil {
 		throw new RuntimeException("Number is of unknown class: " + number.getClass());
 	}
 	
+	/**
+	 * Determine whether the given type is one of the integral types that fit in a long,
+	 * i.e. Long, Integer, Short or Byte (or the corresponding primitive types).
+	 */
+	public static boolean isIntegralType(Class<?> type) {
+		return type.equals(Integer.class) || type.equals(int.class) ||
+			type.equals(Long.class) || type.equals(long.class) ||
+			type.equals(Short.class) || type.equals(short.class) ||
+			type.equals(Byte.class) || type.equals(byte.class);
+	}
+	
+	/**
+	 * Add two longs, throwing an ArithmeticException if the result overflows.
+	 */
+	public static long addExact(long n1, long n2) {
+		long result = n1 + n2;
+		if (((n1 ^ result) & (n2 ^ result)) < 0)
+			throw new ArithmeticException("Overflow while adding " + n1 + " and " + n2);
+		return result;
+	}
+	
+	/**
+	 * Transform a long into the desired integral type, throwing an ArithmeticException if the
+	 * value does not fit in that type.
+	 * @param value The value to transform
+	 * @param toType The desired type, for which isIntegralType must be true
+	 */
+	public static Number convertLongToType(long value, Class<?> toType) {
+		if (toType.equals(Long.class) || toType.equals(long.class))
+			return Long.valueOf(value);
+		if (toType.equals(Integer.class) || toType.equals(int.class)) {
+			if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+				throw new ArithmeticException("Value " + value + " is too large for an int");
+			return Integer.valueOf((int)value);
+		}
+		if (toType.equals(Short.class) || toType.equals(short.class)) {
+			if (value < Short.MIN_VALUE || value > Short.MAX_VALUE)
+				throw new ArithmeticException("Value " + value + " is too large for a short");
+			return Short.valueOf((short)value);
+		}
+		if (toType.equals(Byte.class) || toType.equals(byte.class)) {
+			if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE)
+				throw new ArithmeticException("Value " + value + " is too large for a byte");
+			return Byte.valueOf((byte)value);
+		}
+		throw new RuntimeException("Type is not an integral type: " + toType);
+	}
+	
 	/**
 	 * Return the difference between two numbers of any type, i.e. n1 - n2
 	 */